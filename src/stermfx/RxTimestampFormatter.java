@@ -0,0 +1,126 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx;
+
+import java.util.Locale;
+
+/**
+ * Works out the timing annotations shown in the terminal for received data.
+ *
+ * Possible mode values are as follows (case agnostic):
+ *      "None" - no annotations
+ *      "Line" - each line is prefixed with the seconds since the first received byte
+ *      "Gap" - each received block is preceded by the time since the previous one
+ *
+ * Independently of the mode, a block that arrives more than the highlight
+ * threshold after the previous one is preceded by a line of its own so long
+ * silences stand out.
+ *
+ * @author Brian Powell
+ */
+class RxTimestampFormatter
+{
+
+    enum Mode { NONE, LINE, GAP }
+
+    private final Mode mode;
+    private final long highlightNanos;
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+    private boolean atLineStart = true;
+
+    /**
+     * Creates a new instance of RxTimestampFormatter
+     *
+     * @param mode the annotation mode setting
+     * @param highlightMillis the gap in milliseconds above which a gap is highlighted, 0 to disable
+     */
+    RxTimestampFormatter(String mode, double highlightMillis)
+    {
+        switch (mode.toLowerCase(Locale.ENGLISH))
+        {
+            case "line":
+                this.mode = Mode.LINE;
+                break;
+            case "gap":
+                this.mode = Mode.GAP;
+                break;
+            default:
+                this.mode = Mode.NONE;
+        }
+        this.highlightNanos = (long) (highlightMillis * 1000000);
+    }
+
+    /**
+     * Tells if the formatter ever produces any annotations
+     *
+     * @return true if there is something to annotate
+     */
+    boolean isEnabled()
+    {
+        return mode != Mode.NONE || highlightNanos > 0;
+    }
+
+    /**
+     * Gets the annotation to show before a received block
+     *
+     * @param timestamp the System.nanoTime of the block
+     * @return the annotation text, or null for none
+     */
+    String blockStart(long timestamp)
+    {
+        if (firstTimestamp < 0)
+        {
+            firstTimestamp = timestamp;
+            lastTimestamp = timestamp;
+            return null;
+        }
+        long gap = timestamp - lastTimestamp;
+        lastTimestamp = timestamp;
+        StringBuilder text = new StringBuilder();
+        if (highlightNanos > 0 && gap > highlightNanos)
+        {
+            text.append(atLineStart ? "" : "\n")
+                .append(String.format(Locale.ENGLISH, "======== gap %.3f ms ========\n", gap / 1e6));
+            atLineStart = true;
+        }
+        else if (mode == Mode.GAP)
+        {
+            text.append(String.format(Locale.ENGLISH, "<+%.3fms>", gap / 1e6));
+        }
+        return text.length() > 0 ? text.toString() : null;
+    }
+
+    /**
+     * Gets the annotation to show before a received byte
+     *
+     * @param rxByte the byte about to be shown
+     * @return the annotation text, or null for none
+     */
+    String beforeByte(byte rxByte)
+    {
+        String text = null;
+        if (mode == Mode.LINE && atLineStart)
+        {
+            text = String.format(Locale.ENGLISH, "[%12.6f] ", (lastTimestamp - firstTimestamp) / 1e9);
+        }
+        atLineStart = rxByte == '\n';
+        return text;
+    }
+}
@@ -18,35 +18,79 @@
  */
 package stermfx;
 
-import gnu.io.CommPortIdentifier;
-import gnu.io.PortInUseException;
-import gnu.io.UnsupportedCommOperationException;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.ResourceBundle;
-import java.util.TooManyListenersException;
 import java.util.Vector;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
+import javafx.animation.Animation;
 import javafx.animation.FadeTransition;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
+import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Circle;
+import javafx.stage.FileChooser;
 import javafx.util.Duration;
 import javax.swing.Timer;
+import stermfx.comms.Bert;
 import stermfx.comms.CommPort;
+import stermfx.comms.CommPortInterface;
 import stermfx.comms.CommRxEvent;
+import stermfx.comms.FanOutServer;
+import stermfx.comms.LoopbackPort;
+import stermfx.comms.ProfileStore;
+import stermfx.comms.RxByteStore;
+import stermfx.comms.RxConsumer;
+import stermfx.comms.RxEventBus;
+import stermfx.comms.SelfTest;
+import stermfx.comms.TxQueue;
+import stermfx.modbus.ModbusPanel;
+import stermfx.modbus.ModbusRtuAnalyzer;
+import stermfx.plot.NumericFieldParser;
+import stermfx.plot.PlotPanel;
+import stermfx.script.Script;
+import stermfx.script.ScriptRunner;
+import stermfx.sim.DeviceSimulator;
+import stermfx.sim.SoakMonitor;
+import stermfx.sniff.SnifferSession;
+import stermfx.text.Exporter;
+import stermfx.text.FilterIndex;
+import stermfx.text.MappedLogFile;
+import stermfx.text.Scrollback;
+import stermfx.text.StyleIndex;
+import stermfx.text.TextSource;
+import stermfx.text.TextSourceView;
 
 /**
  *
@@ -62,8 +106,50 @@ public class Terminal implements Initializable
     @FXML
     ToggleButton button;
     @FXML
+    ToggleButton plotButton;
+    @FXML
+    StackPane plotPane;
+    @FXML
+    ToggleButton modbusButton;
+    @FXML
+    StackPane modbusPane;
+    @FXML
+    ToggleButton historyButton;
+    @FXML
+    StackPane historyPane;
+    @FXML
+    StackPane terminalStack;
+    @FXML
+    Circle portStateCircle;
+    @FXML
+    ProgressIndicator portProgress;
+    @FXML
+    Label portStateLabel;
+    @FXML
+    Label metricsLabel;
+    @FXML
+    Label statusLabel;
+    @FXML
+    MenuButton exportButton;
+    @FXML
+    Button openLogButton;
+    @FXML
+    TextField filterTF;
+    @FXML
+    CheckBox filterRegexCB;
+    @FXML
+    ProgressBar taskProgress;
+    @FXML
     Accordion settings;
     @FXML
+    ChoiceBox<String> profileCB;
+    @FXML
+    TextField profileNameTF;
+    @FXML
+    Button saveProfileAsButton;
+    @FXML
+    Label profileStatusLabel;
+    @FXML
     ChoiceBox commPortCB;
     @FXML
     TextField baudRateTF;
@@ -75,21 +161,118 @@ public class Terminal implements Initializable
     ChoiceBox parityCB;
     @FXML
     ChoiceBox flowControlCB;
+    @FXML
+    ChoiceBox backendCB;
+    @FXML
+    TextArea scriptTA;
+    @FXML
+    TextField iterationsTF;
+    @FXML
+    CheckBox stopOnFailureCB;
+    @FXML
+    Button runScriptButton;
+    @FXML
+    Button stopScriptButton;
+    @FXML
+    Label scriptStatusLabel;
+    @FXML
+    Button runSelfTestButton;
+    @FXML
+    Button stopSelfTestButton;
+    @FXML
+    Label selfTestStatusLabel;
+    @FXML
+    TextArea selfTestReportTA;
+    @FXML
+    ChoiceBox<Bert.Pattern> bertPatternCB;
+    @FXML
+    Button startBertButton;
+    @FXML
+    Button stopBertButton;
+    @FXML
+    Label bertStatusLabel;
+    @FXML
+    TextField snifferPortTF;
+    @FXML
+    Button startSnifferButton;
+    @FXML
+    Button stopSnifferButton;
+    @FXML
+    Label snifferStatusLabel;
 
     private Timer charTimer;
     private CommPort commPort;
+    private FanOutServer fanOutServer;
+    private DeviceSimulator simulator;
+    /**
+     * Set when running a soak test, see startSoak
+     */
+    private SoakMonitor soak;
+    private RxTimestampFormatter timestampFormatter;
+    private PlotPanel plotPanel;
+    private ModbusRtuAnalyzer modbusAnalyzer;
+    private ModbusPanel modbusPanel;
+    private Scrollback scrollback;
+    private TextSourceView historyView;
+    /**
+     * The filters over the scrollback and over an open log file, kept while
+     * hidden so showing them again only has to catch up
+     */
+    private FilterIndex scrollbackFilter;
+    private FilterIndex logFilter;
+    /**
+     * The colours of the scrollback's lines, worked out as they arrive
+     */
+    private StyleIndex scrollbackStyles;
+    private Exporter exporter;
+    private int displayMaxChars;
+    private ScriptRunner scriptRunner;
+    private SelfTest selfTest;
+    private Bert bert;
+    private Timeline bertTimeline;
+    private CommPort snifferPort;
+    private SnifferSession sniffer;
+    private Scrollback snifferOut;
+    private volatile String scriptStatus;
+    private volatile boolean scriptStatusPending;
     private volatile String lastTypedCharacter;
     private volatile boolean terminalBufferDirty;
+    /**
+     * When the first character waiting for the next flush was queued
+     */
+    private volatile long terminalBufferDirtySince;
     private Vector<Byte> terminalBuffer;
     private Properties sysSettings;
+    /**
+     * The serial ports found on this system, null until enumeration has finished
+     */
+    private volatile List<String> availablePorts;
     private static final File SYS_SETTINGS_FILE = new File(System.getProperty("user.home") + File.separator
             + ".stermfx" + File.separator + "syssettings.properties");
     private static final String COMM_SETTINGS_FILENAME = System.getProperty("user.home") + File.separator
             + ".stermfx" + File.separator + "commsettings.properties";
+    private static final File PROFILES_DIRECTORY = new File(SYS_SETTINGS_FILE.getParentFile(), "profiles");
+    /**
+     * The connection profiles and the writer that saves every settings file
+     */
+    private ProfileStore profiles;
+    private String profileName;
+    /**
+     * Set while a profile's settings are being applied, so they are not saved straight back
+     */
+    private boolean applyingProfile = false;
 
     @Override
     public void initialize(URL url, ResourceBundle rb)
     {
+        // the settings accordion is loaded on demand against this controller,
+        // only its own controls need setting up when that happens
+        if (url != null && url.getPath().endsWith("Settings.fxml"))
+        {
+            initSettingsUI();
+            return;
+        }
+
         // init globals
         terminalBuffer = new Vector<>();
         lastTypedCharacter = "";
@@ -100,35 +283,255 @@ public class Terminal implements Initializable
         {
 
             @Override
-            public void byteReceived(byte rxByte)
+            public void bytesReceived(byte[] data, int offset, int length, long timestamp)
             {
-                addCharacterToTerminal(rxByte);
+                if (timestampFormatter.isEnabled())
+                {
+                    addTextToTerminal(timestampFormatter.blockStart(timestamp));
+                    for (int i = offset; i < offset + length; i++)
+                    {
+                        addTextToTerminal(timestampFormatter.beforeByte(data[i]));
+                        addCharacterToTerminal(data[i]);
+                    }
+                }
+                else
+                {
+                    for (int i = offset; i < offset + length; i++)
+                    {
+                        addCharacterToTerminal(data[i]);
+                    }
+                }
             }
         };
 
-        // create comm port object
+        // load the system settings
+        loadSystemSettings();
+
+        // create comm port object with the selected profile, only that one is read
+        profiles = new ProfileStore(PROFILES_DIRECTORY.toPath());
+        profileName = sysSettings.getProperty("profile");
+        if (!ProfileStore.isValidName(profileName))
+        {
+            profileName = "Default";
+        }
+        File profileFile = profiles.getProfilePath(profileName).toFile();
         try
         {
-            commPort = new CommPort(rxEvent, COMM_SETTINGS_FILENAME);
+            // the settings from before there were profiles carry on as the first one
+            commPort = new CommPort(rxEvent, profileFile.exists() ? profileFile.getPath() : COMM_SETTINGS_FILENAME);
         }
         catch (IOException ex)
         {
             Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ex);
         }
-
-        // load the system settings
-        loadSystemSettings();
+        saveOnChange();
+        timestampFormatter = new RxTimestampFormatter(sysSettings.getProperty("display.timestamps"),
+                Double.parseDouble(sysSettings.getProperty("display.gap.highlight.ms")));
+        displayMaxChars = Integer.parseInt(sysSettings.getProperty("display.max.chars"));
+        scrollback = new Scrollback(Integer.parseInt(sysSettings.getProperty("scrollback.hot.blocks")),
+                Long.parseLong(sysSettings.getProperty("scrollback.max.mb")) << 20);
+        startStyling();
+        double soakHours = Double.parseDouble(System.getProperty("stermfx.soak.hours", "0"));
+        if (soakHours > 0)
+        {
+            startSoak(soakHours);
+        }
         // init the UI controls
         initUI();
 
+        // finding and opening the port can take seconds, so don't hold up the window for it
+        openCommPortInBackground();
+    }
+
+    /**
+     * Enumerates the serial ports and opens the configured one on a worker
+     * thread, showing progress in the toolbar.
+     */
+    private void openCommPortInBackground()
+    {
+        final String savedPortName = commPort.getCommPortName();
+        if (commPort.getBackend().equalsIgnoreCase("Loopback"))
+        {
+            startSimulator(savedPortName);
+        }
+        showPortState(Color.ORANGE, "Opening " + savedPortName + "...", true);
+        final Task<List<String>> openTask = new Task<List<String>>()
+        {
+
+            @Override
+            protected List<String> call() throws Exception
+            {
+                // read the available system ports
+                List<String> ports = commPort.commPortInterface().getPortNames(commPort);
+                availablePorts = ports;
+                // the saved port may no longer be available on this system
+                if (!ports.isEmpty() && !ports.contains(savedPortName))
+                {
+                    // the port name is bound to the UI and saved with the profile when it
+                    // changes, so change it on the FX thread and wait for it to be done
+                    final String firstPort = ports.get(0);
+                    FutureTask<Void> rename = new FutureTask<Void>(new Runnable()
+                    {
+
+                        @Override
+                        public void run()
+                        {
+                            commPort.setCommPortName(firstPort);
+                        }
+                    }, null);
+                    Platform.runLater(rename);
+                    rename.get();
+                }
+                commPort.commPortInterface().openCommPort(commPort);
+                return ports;
+            }
+        };
+        openTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                refreshCommPortChoices();
+                showPortState(Color.LIME, commPort.getCommPortName() + " open", false);
+                // only make the terminal edittable when the comm port is open
+                terminalTA.setEditable(true);
+                startFanOutServer();
+            }
+        });
+        openTask.setOnFailed(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                Throwable ex = openTask.getException();
+                refreshCommPortChoices();
+                showPortState(Color.RED, commPort.getCommPortName() + ": " + ex.getMessage(), false);
+                Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        });
+        Thread opener = new Thread(openTask, "CommPortOpener");
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    private void showPortState(Color color, String text, boolean busy)
+    {
+        portStateCircle.setFill(color);
+        portStateLabel.setText(text);
+        portProgress.setVisible(busy);
+    }
+
+    /**
+     * Attaches a simulated device to the far end of the loopback port
+     */
+    private void startSimulator(String portName)
+    {
+        LoopbackPort port = LoopbackPort.get(portName);
+        simulator = new DeviceSimulator(port.getDeviceInputStream(), port.getDeviceOutputStream());
+        try
+        {
+            // a soak test has its own traffic so it doesn't depend on what was last simulated
+            String prefix = soak == null ? "simulator." : "soak.";
+            simulator.setTraffic(sysSettings.getProperty(prefix + "traffic"));
+            simulator.setRate(Integer.parseInt(sysSettings.getProperty(prefix + "rate")));
+            simulator.setEcho(Boolean.parseBoolean(sysSettings.getProperty("simulator.echo")));
+            String responses = sysSettings.getProperty("simulator.responses");
+            if (!responses.isEmpty())
+            {
+                simulator.loadResponses(Paths.get(responses));
+            }
+            String replay = sysSettings.getProperty("simulator.replay");
+            if (!replay.isEmpty())
+            {
+                simulator.loadReplay(Paths.get(replay));
+            }
+        }
+        catch (IOException | NumberFormatException ex)
+        {
+            Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        simulator.start();
+    }
+
+    /**
+     * Starts colouring the scrollback with the colour.rule.N settings, numbered from 1
+     */
+    private void startStyling()
+    {
+        List<StyleIndex.Rule> rules = new ArrayList<>();
+        for (int i = 1; sysSettings.getProperty("colour.rule." + i) != null; i++)
+        {
+            String rule = sysSettings.getProperty("colour.rule." + i);
+            if (rule.isEmpty())
+            {
+                continue;
+            }
+            try
+            {
+                rules.add(StyleIndex.Rule.parse(rule));
+            }
+            catch (IllegalArgumentException ex)
+            {
+                Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (!rules.isEmpty())
+        {
+            scrollbackStyles = new StyleIndex(scrollback, rules);
+        }
+    }
+
+    /**
+     * Soaks the receive and display path under simulated traffic, exiting
+     * with the result once the soak is over. Started by setting the
+     * stermfx.soak.hours system property, the report goes next to the
+     * settings.
+     */
+    private void startSoak(double hours)
+    {
+        File reportFile = new File(SYS_SETTINGS_FILE.getParentFile(),
+                new SimpleDateFormat("'soak-'yyyyMMdd-HHmmss'.csv'").format(new Date()));
+        reportFile.getParentFile().mkdirs();
+        soak = new SoakMonitor(hours,
+                Integer.parseInt(sysSettings.getProperty("soak.sample.s")),
+                Double.parseDouble(sysSettings.getProperty("soak.warmup.minutes")),
+                Double.parseDouble(sysSettings.getProperty("soak.window.minutes")),
+                Double.parseDouble(sysSettings.getProperty("soak.max.growth.mb")),
+                reportFile.toPath(), scrollback, new SoakMonitor.Listener()
+                {
+
+                    @Override
+                    public void finished(boolean passed, String summary)
+                    {
+                        // the soak is run unattended, the exit status is its result
+                        System.exit(passed ? 0 : 1);
+                    }
+                });
+        soak.start();
+        // the simulator drives the port, the profile's backend is left alone
+        commPort.setBackend("Loopback");
+        Logger.getLogger(Terminal.class.getName()).log(Level.INFO, "Soaking for {0} hours, report in {1}",
+                new Object[] {hours, reportFile});
+    }
+
+    private void startFanOutServer()
+    {
+        if (!Boolean.parseBoolean(sysSettings.getProperty("server.enabled")))
+        {
+            return;
+        }
         try
         {
-            commPort.commPortInterface().openCommPort(commPort);
-            // only make the terminal edittable when the comm port is open
-            terminalTA.setEditable(true);
+            InetSocketAddress address = new InetSocketAddress(sysSettings.getProperty("server.bind.address"),
+                    Integer.parseInt(sysSettings.getProperty("server.port")));
+            fanOutServer = new FanOutServer(commPort.commPortInterface(), address);
+            fanOutServer.start();
         }
-        catch (PortInUseException | IOException | TooManyListenersException | UnsupportedCommOperationException ex)
+        catch (IOException | NumberFormatException ex)
         {
+            fanOutServer = null;
             Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
@@ -150,35 +553,52 @@ public class Terminal implements Initializable
                         // there's a problem so delete the textarea char and add this one
                         terminalTA.deletePreviousChar();
                         //terminalBuffer += (char)character;
-                        terminalBuffer.add(character);
-                        // only restart if this is first character since the timer has fired
-                        if (!terminalBufferDirty)
-                        {
-                            charTimer.restart();
-                        }
-                        terminalBufferDirty = true;
+                        queueForTerminal(character);
                     }
                     lastTypedCharacter = "";
                 }
                 else
                 {
-                    terminalBuffer.add(character);
-                    // only restart if this is first character since the timer has fired
-                    if (!terminalBufferDirty)
-                    {
-                        charTimer.restart();
-                    }
-                    terminalBufferDirty = true;
+                    queueForTerminal(character);
                 }
         }
     }
 
+    /**
+     * Adds annotation text to the terminal, bypassing the typed character echo check
+     */
+    private void addTextToTerminal(String text)
+    {
+        if (text == null)
+        {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++)
+        {
+            queueForTerminal((byte) text.charAt(i));
+        }
+    }
+
+    private void queueForTerminal(byte character)
+    {
+        scrollback.append(character);
+        terminalBuffer.add(character);
+        // only restart if this is first character since the timer has fired
+        if (!terminalBufferDirty)
+        {
+            terminalBufferDirtySince = System.nanoTime();
+            charTimer.restart();
+        }
+        terminalBufferDirty = true;
+    }
+
     private void caretAction()
     {
         // always service the terminal buffer first before dealing with the cursor
         if (terminalBufferDirty)
         {
             terminalBufferDirty = false;
+            long dirtySince = terminalBufferDirtySince;
             String tmp = "";
             while (terminalBuffer.size() > 0)
             {
@@ -186,6 +606,16 @@ public class Terminal implements Initializable
             }
             // update the text area and append a blank character to take care of scrolling
             terminalTA.appendText(tmp);
+            // the text area only shows the tail, the full history is in the scrollback
+            int excess = terminalTA.getLength() - displayMaxChars;
+            if (excess > 0)
+            {
+                terminalTA.deleteText(0, excess);
+            }
+            if (soak != null)
+            {
+                soak.flushed(System.nanoTime() - dirtySince);
+            }
         }
     }
 
@@ -204,51 +634,195 @@ public class Terminal implements Initializable
                     sysSettings.load(in);
                 }
             }
-            // read the available system ports
-            java.util.Enumeration<CommPortIdentifier> portEnum = CommPortIdentifier.getPortIdentifiers();
-            // setup the selection values for the comm port name
-            commPortCB.getItems().clear();
-            while (portEnum.hasMoreElements())
+        }
+        catch (IOException ioex)
+        {
+            Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ioex);
+        }
+    }
+
+    /**
+     * Saves the system settings in the background
+     */
+    private void saveSystemSettings()
+    {
+        profiles.save(SYS_SETTINGS_FILE.toPath(), sysSettings, "---sTermFX Settings---");
+    }
+
+    /**
+     * Saves the comm port settings to the current profile in the background,
+     * unless a soak test swapped in the loopback
+     */
+    private void saveProfile()
+    {
+        if (soak == null && !applyingProfile)
+        {
+            profiles.saveProfile(profileName, commPort.getSettings());
+        }
+    }
+
+    /**
+     * Saves the profile whenever one of the comm port settings changes, so
+     * nothing is lost if the application doesn't get to close cleanly
+     */
+    private void saveOnChange()
+    {
+        ChangeListener<String> saver = new ChangeListener<String>()
+        {
+
+            @Override
+            public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
             {
-                CommPortIdentifier element = portEnum.nextElement();
-                if (element.getPortType() == CommPortIdentifier.PORT_SERIAL)
-                {
-                    commPortCB.getItems().add(element.getName());
-                }
+                saveProfile();
             }
-            commPortCB.getSelectionModel().select(commPort.getCommPortName());
-            // the saved port may no longer be available on this system
-            if (commPortCB.getSelectionModel().getSelectedIndex() < 0)
+        };
+        commPort.descriptionProperty().addListener(saver);
+        commPort.commPortNameProperty().addListener(saver);
+        commPort.baudRateProperty().addListener(saver);
+        commPort.dataBitsProperty().addListener(saver);
+        commPort.stopBitsProperty().addListener(saver);
+        commPort.parityProperty().addListener(saver);
+        commPort.flowControlProperty().addListener(saver);
+        commPort.backendProperty().addListener(saver);
+    }
+
+    /**
+     * Lists the profiles in the background and fills in the profile choices
+     */
+    private void refreshProfileChoices()
+    {
+        final Task<List<String>> listTask = new Task<List<String>>()
+        {
+
+            @Override
+            protected List<String> call() throws Exception
             {
-                commPortCB.getSelectionModel().selectFirst();
-                commPort.setCommPortName((String)commPortCB.getSelectionModel().getSelectedItem());
+                return profiles.getProfileNames();
             }
-            // set the baud rate
-            baudRateTF.setText(commPort.getBaudRate());
-            // find the toggle object that matches the current data bits settigstng
-            for (Toggle current : dataBitsGroup.getToggles())
+        };
+        listTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
             {
-                if (((ToggleButton)current).getText().equals(commPort.getDataBits()))
+                List<String> names = new ArrayList<>(listTask.getValue());
+                // the current profile may not have been written yet
+                if (!names.contains(profileName))
                 {
-                    dataBitsGroup.selectToggle(current);
+                    names.add(profileName);
                 }
+                showProfileChoices(names);
+            }
+        });
+        Thread lister = new Thread(listTask, "ProfileLister");
+        lister.setDaemon(true);
+        lister.start();
+    }
+
+    /**
+     * Fills in the profile choices without that counting as a switch
+     */
+    private void showProfileChoices(List<String> names)
+    {
+        applyingProfile = true;
+        profileCB.getItems().setAll(names);
+        profileCB.setValue(profileName);
+        applyingProfile = false;
+    }
+
+    /**
+     * Reads a profile in the background and then makes it the current one
+     */
+    private void switchProfile(final String name)
+    {
+        if (name == null || name.equals(profileName) || applyingProfile)
+        {
+            return;
+        }
+        final Task<Properties> loadTask = new Task<Properties>()
+        {
+
+            @Override
+            protected Properties call() throws Exception
+            {
+                return profiles.loadProfile(name);
             }
-            // find the toggle object that matches the current stop bits setting
-            for (Toggle current : stopBitsGroup.getToggles())
+        };
+        loadTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
             {
-                if (((ToggleButton)current).getText().equals(commPort.getStopBits()))
-                {
-                    stopBitsGroup.selectToggle(current);
-                }
+                applyingProfile = true;
+                commPort.applySettings(loadTask.getValue());
+                profileName = name;
+                showCommSettings();
+                applyingProfile = false;
+                sysSettings.setProperty("profile", name);
+                saveSystemSettings();
+                // like any other change to the settings, the open port carries on as it is
+                profileStatusLabel.setText(commPort.commPortInterface().isPortOpen()
+                        ? "Applies when the port is next opened" : "");
+            }
+        });
+        loadTask.setOnFailed(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                profileStatusLabel.setText("Could not load " + name + ": " + loadTask.getException().getMessage());
+                showProfileChoices(new ArrayList<>(profileCB.getItems()));
             }
-            // setup the parity choicebox settings
-            parityCB.getItems().clear();
-            parityCB.getItems().addAll("None", "Odd", "Even", "Mark", "Space");
-            parityCB.getSelectionModel().select(commPort.getParity());
-            // setup the flow control choicebox settings
-            flowControlCB.getItems().clear();
-            flowControlCB.getItems().addAll("None", "RtsCts In", "RtsCts Out", "XonXoff In", "XonXoff Out");
-            flowControlCB.getSelectionModel().select(commPort.getFlowControl());
+        });
+        Thread loader = new Thread(loadTask, "ProfileLoader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Saves the current settings as a new profile and switches to it
+     */
+    private void saveProfileAs()
+    {
+        String name = profileNameTF.getText().trim();
+        if (!ProfileStore.isValidName(name))
+        {
+            profileStatusLabel.setText("Use letters, digits, spaces, '.', '_' and '-' for a profile name");
+            return;
+        }
+        profileName = name;
+        saveProfile();
+        sysSettings.setProperty("profile", name);
+        saveSystemSettings();
+        List<String> names = new ArrayList<>(profileCB.getItems());
+        if (!names.contains(name))
+        {
+            names.add(name);
+        }
+        showProfileChoices(names);
+        profileNameTF.clear();
+        profileStatusLabel.setText("");
+    }
+
+    /**
+     * Builds the settings accordion the first time it is needed
+     */
+    private void loadSettingsUI()
+    {
+        if (settings != null)
+        {
+            return;
+        }
+        try
+        {
+            FXMLLoader loader = new FXMLLoader(getClass().getResource("Settings.fxml"));
+            loader.setController(this);
+            loader.load();
+            // keep the accordion underneath the terminal
+            terminalStack.getChildren().add(0, settings);
         }
         catch (IOException ioex)
         {
@@ -256,8 +830,76 @@ public class Terminal implements Initializable
         }
     }
 
-    private void initUI()
+    /**
+     * Fills in the comm port choices, if the settings UI has been built
+     */
+    private void refreshCommPortChoices()
+    {
+        if (commPortCB == null)
+        {
+            return;
+        }
+        // setup the selection values for the comm port name
+        String portName = commPort.getCommPortName();
+        commPortCB.getItems().clear();
+        if (availablePorts != null)
+        {
+            commPortCB.getItems().addAll(availablePorts);
+        }
+        // keep the configured port selectable while the ports are still being enumerated
+        if (!commPortCB.getItems().contains(portName))
+        {
+            commPortCB.getItems().add(portName);
+        }
+        commPortCB.getSelectionModel().select(portName);
+    }
+
+    /**
+     * Shows the comm port settings in the settings UI controls
+     */
+    private void showCommSettings()
+    {
+        // refilling a bound choice box clears the setting, so hold on to them first
+        String parity = commPort.getParity();
+        String flowControl = commPort.getFlowControl();
+        String backend = commPort.getBackend();
+        refreshCommPortChoices();
+        // set the baud rate
+        baudRateTF.setText(commPort.getBaudRate());
+        // find the toggle object that matches the current data bits settigstng
+        for (Toggle current : dataBitsGroup.getToggles())
+        {
+            if (((ToggleButton)current).getText().equals(commPort.getDataBits()))
+            {
+                dataBitsGroup.selectToggle(current);
+            }
+        }
+        // find the toggle object that matches the current stop bits setting
+        for (Toggle current : stopBitsGroup.getToggles())
+        {
+            if (((ToggleButton)current).getText().equals(commPort.getStopBits()))
+            {
+                stopBitsGroup.selectToggle(current);
+            }
+        }
+        // setup the parity choicebox settings
+        parityCB.getItems().clear();
+        parityCB.getItems().addAll("None", "Odd", "Even", "Mark", "Space");
+        parityCB.getSelectionModel().select(parity);
+        // setup the flow control choicebox settings
+        flowControlCB.getItems().clear();
+        flowControlCB.getItems().addAll("None", "RtsCts In", "RtsCts Out", "XonXoff In", "XonXoff Out");
+        flowControlCB.getSelectionModel().select(flowControl);
+        // setup the backend choicebox settings, a change applies the next time the port is opened
+        backendCB.getItems().clear();
+        backendCB.getItems().addAll("RXTX", "Linux", "Loopback");
+        backendCB.getSelectionModel().select(backend);
+    }
+
+    private void initSettingsUI()
     {
+        showCommSettings();
+
         // setup bindings for serial port settings UI controls
         commPort.commPortNameProperty().bindBidirectional(commPortCB.valueProperty());
         commPort.baudRateProperty().bindBidirectional(baudRateTF.textProperty());
@@ -280,22 +922,129 @@ public class Terminal implements Initializable
         });
         commPort.parityProperty().bindBidirectional(parityCB.valueProperty());
         commPort.flowControlProperty().bindBidirectional(flowControlCB.valueProperty());
+        commPort.backendProperty().bindBidirectional(backendCB.valueProperty());
         //commPort.dataBitsProperty().bindBidirectional(dataBitsGroup.selectedToggleProperty());
 
-        // setup a timer regulate how fast characters are added to the text area
-        // without this the runLater queue would get flooded
-        charTimer = new Timer(500, new ActionListener()
+        // connection profiles, switching reads the chosen one in the background
+        refreshProfileChoices();
+        profileCB.valueProperty().addListener(new ChangeListener<String>()
         {
 
             @Override
-            public void actionPerformed(java.awt.event.ActionEvent ae)
+            public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
             {
-                caretAction();
+                switchProfile(newValue);
             }
         });
-        charTimer.setRepeats(true);
-        charTimer.setInitialDelay(100);
-        charTimer.start();
+        saveProfileAsButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                saveProfileAs();
+            }
+        });
+
+        runScriptButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                runScript();
+            }
+        });
+        stopScriptButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                if (scriptRunner != null)
+                {
+                    scriptRunner.cancel();
+                }
+            }
+        });
+        runSelfTestButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                runSelfTest();
+            }
+        });
+        stopSelfTestButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                if (selfTest != null)
+                {
+                    selfTest.cancel();
+                }
+            }
+        });
+        bertPatternCB.getItems().setAll(Bert.Pattern.values());
+        bertPatternCB.setValue(Bert.Pattern.PRBS15);
+        startBertButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                startBert();
+            }
+        });
+        stopBertButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                stopBert();
+            }
+        });
+        snifferPortTF.setText(sysSettings.getProperty("sniffer.port"));
+        startSnifferButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                startSniffer();
+            }
+        });
+        stopSnifferButton.setOnAction(new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                stopSniffer();
+            }
+        });
+    }
+
+    private void initUI()
+    {
+        // setup a timer regulate how fast characters are added to the text area
+        // without this the runLater queue would get flooded
+        charTimer = new Timer(500, new ActionListener()
+        {
+
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent ae)
+            {
+                caretAction();
+            }
+        });
+        charTimer.setRepeats(true);
+        charTimer.setInitialDelay(100);
+        charTimer.start();
 
         if (button != null)
         {
@@ -305,6 +1054,7 @@ public class Terminal implements Initializable
                 @Override
                 public void handle(ActionEvent event)
                 {
+                    loadSettingsUI();
                     if (terminalAP.getOpacity() == 1)
                     {
                         FadeTransition fadeOut = new FadeTransition(Duration.seconds(1), terminalAP);
@@ -325,6 +1075,176 @@ public class Terminal implements Initializable
             });
         }
 
+        if (plotButton != null)
+        {
+            plotButton.setOnAction(new EventHandler<ActionEvent>()
+            {
+
+                @Override
+                public void handle(ActionEvent event)
+                {
+                    showPlot(plotButton.isSelected());
+                }
+            });
+        }
+
+        if (modbusButton != null)
+        {
+            modbusButton.setOnAction(new EventHandler<ActionEvent>()
+            {
+
+                @Override
+                public void handle(ActionEvent event)
+                {
+                    showModbus(modbusButton.isSelected());
+                }
+            });
+        }
+
+        if (historyButton != null)
+        {
+            historyButton.setOnAction(new EventHandler<ActionEvent>()
+            {
+
+                @Override
+                public void handle(ActionEvent event)
+                {
+                    showHistory(historyButton.isSelected() ? scrollback : null);
+                }
+            });
+        }
+        if (openLogButton != null)
+        {
+            openLogButton.setOnAction(new EventHandler<ActionEvent>()
+            {
+
+                @Override
+                public void handle(ActionEvent event)
+                {
+                    openLog();
+                }
+            });
+        }
+
+        if (filterTF != null)
+        {
+            filterTF.textProperty().addListener(new ChangeListener<String>()
+            {
+
+                @Override
+                public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
+                {
+                    applyFilter();
+                }
+            });
+            filterRegexCB.setOnAction(new EventHandler<ActionEvent>()
+            {
+
+                @Override
+                public void handle(ActionEvent event)
+                {
+                    applyFilter();
+                }
+            });
+        }
+
+        if (exportButton != null)
+        {
+            // the scrollback holds the displayed text, only the receive store has the bytes as received
+            for (final Exporter.Format format : new Exporter.Format[] {Exporter.Format.RAW, Exporter.Format.HEX})
+            {
+                MenuItem item = new MenuItem("Received Bytes as "
+                        + (format == Exporter.Format.RAW ? "Raw..." : "Hex Dump..."));
+                item.setOnAction(new EventHandler<ActionEvent>()
+                {
+
+                    @Override
+                    public void handle(ActionEvent event)
+                    {
+                        exportReceived(format);
+                    }
+                });
+                exportButton.getItems().add(item);
+            }
+            for (final boolean selection : new boolean[] {false, true})
+            {
+                for (final Exporter.Format format : new Exporter.Format[] {Exporter.Format.TEXT, Exporter.Format.HEX})
+                {
+                    MenuItem item = new MenuItem((selection ? "Selection" : "Scrollback") + " as "
+                            + (format == Exporter.Format.TEXT ? "Text..." : "Hex Dump of Text..."));
+                    item.setOnAction(new EventHandler<ActionEvent>()
+                    {
+
+                        @Override
+                        public void handle(ActionEvent event)
+                        {
+                            exportScrollback(selection, format);
+                        }
+                    });
+                    exportButton.getItems().add(item);
+                }
+            }
+        }
+
+        // show the scrollback size once a second
+        final Tooltip metricsTooltip = new Tooltip();
+        metricsLabel.setTooltip(metricsTooltip);
+        Timeline metricsTimeline = new Timeline(new KeyFrame(Duration.seconds(1), new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                String metrics = String.format(Locale.ENGLISH, "Scrollback %.1f MB in %.1f MB",
+                        (scrollback.getLength() - scrollback.getStart()) / 1048576.0,
+                        scrollback.getStoredBytes() / 1048576.0);
+                FilterIndex filter = historyView == null ? null : historyView.getFilter();
+                if (filter != null && filter.isActive() && historyPane.isVisible())
+                {
+                    metrics += String.format(Locale.ENGLISH, ", filter %d lines (%.0f%%)",
+                            filter.getMatchCount() - filter.findMatch(filter.getSource().getFirstLine()),
+                            filter.getProgress() * 100);
+                }
+                if (sniffer != null && sniffer.isRunning())
+                {
+                    metrics += String.format(Locale.ENGLISH, ", sniffer A %d KB B %d KB",
+                            sniffer.getByteCount(0) >> 10, sniffer.getByteCount(1) >> 10);
+                    if (sniffer.getLostBytes(0) + sniffer.getLostBytes(1) > 0)
+                    {
+                        metrics += String.format(Locale.ENGLISH, " (%d KB lost)",
+                                (sniffer.getLostBytes(0) + sniffer.getLostBytes(1)) >> 10);
+                    }
+                }
+                TxQueue txQueue = commPort.commPortInterface().getTxQueue();
+                if (txQueue != null && txQueue.getKeyCount() > 0)
+                {
+                    metrics += String.format(Locale.ENGLISH, ", key to wire %.2f ms (p99 %.2f, max %.2f)",
+                            txQueue.getLastKeyLatencyNanos() / 1e6,
+                            txQueue.getKeyLatencyPercentileNanos(99) / 1e6,
+                            txQueue.getMaxKeyLatencyNanos() / 1e6);
+                }
+                // the lag of each rx event goes in the tooltip, only overruns are worth the space
+                StringBuilder consumers = new StringBuilder("Receive consumers");
+                long overruns = 0;
+                for (RxConsumer consumer : commPort.commPortInterface().getRxBus().getConsumers())
+                {
+                    consumers.append(String.format(Locale.ENGLISH,
+                            "%n%-14s %-9s lag %d KB (max %d KB), %d overruns, %d KB lost",
+                            consumer.getName(), consumer.getWaitStrategy(), consumer.getLagBytes() >> 10,
+                            consumer.getMaxLagBytes() >> 10, consumer.getOverruns(), consumer.getLostBytes() >> 10));
+                    overruns += consumer.getOverruns();
+                }
+                if (overruns > 0)
+                {
+                    metrics += ", " + overruns + " receive overruns";
+                }
+                metricsTooltip.setText(consumers.toString());
+                metricsLabel.setText(metrics);
+            }
+        }));
+        metricsTimeline.setCycleCount(Animation.INDEFINITE);
+        metricsTimeline.play();
+
         if (terminalTA != null)
         {
             terminalTA.setOnKeyTyped(new EventHandler<KeyEvent>()
@@ -335,10 +1255,16 @@ public class Terminal implements Initializable
                 {
                     //addCharacterToTerminal(arg0.getCharacter());
                     //System.out.println("Key: " + arg0.getCharacter().getBytes()[0]);
+                    String character = arg0.getCharacter();
+                    if (character.isEmpty())
+                    {
+                        return;
+                    }
                     try
                     {
-                        lastTypedCharacter = arg0.getCharacter();
-                        commPort.commPortInterface().sendByte(lastTypedCharacter.getBytes()[0]);
+                        // queued ahead of any bulk data, the write happens on the transmit thread
+                        lastTypedCharacter = character;
+                        commPort.commPortInterface().sendByte((byte) character.charAt(0));
                     }
                     catch (IOException ex)
                     {
@@ -356,39 +1282,731 @@ public class Terminal implements Initializable
         }
     }
 
-    public void doCleanUp()
+    private void showPlot(boolean show)
+    {
+        // the parser only starts collecting samples the first time the plot is shown
+        if (show && plotPanel == null)
+        {
+            NumericFieldParser parser = new NumericFieldParser(
+                    Integer.parseInt(sysSettings.getProperty("plot.capacity.bits")));
+            plotPanel = new PlotPanel(parser);
+            plotPane.getChildren().add(plotPanel);
+            commPort.commPortInterface().addRxEvent(parser, "Plot", RxEventBus.WaitStrategy.BLOCKING);
+        }
+        if (plotPanel != null)
+        {
+            if (show)
+            {
+                plotPanel.start();
+            }
+            else
+            {
+                plotPanel.stop();
+            }
+        }
+        plotPane.setVisible(show);
+        plotPane.setManaged(show);
+    }
+
+    private void showModbus(boolean show)
+    {
+        // the analyzer only starts framing the first time it is shown
+        if (show && modbusPanel == null)
+        {
+            modbusAnalyzer = new ModbusRtuAnalyzer(Integer.parseInt(sysSettings.getProperty("modbus.capacity.bits")));
+            modbusPanel = new ModbusPanel(modbusAnalyzer);
+            modbusPane.getChildren().add(modbusPanel);
+            commPort.commPortInterface().addRxEvent(modbusAnalyzer, "Modbus", RxEventBus.WaitStrategy.BLOCKING);
+        }
+        if (modbusPanel != null)
+        {
+            if (show)
+            {
+                // the frame gap depends on the port settings, which may have changed
+                modbusAnalyzer.configure(commPort);
+                modbusPanel.start();
+            }
+            else
+            {
+                modbusPanel.stop();
+            }
+        }
+        modbusPane.setVisible(show);
+        modbusPane.setManaged(show);
+    }
+
+    /**
+     * Swaps the terminal for a view of the whole scrollback or of a log file
+     *
+     * @param source what to show, or null to go back to the terminal
+     */
+    private void showHistory(TextSource source)
+    {
+        boolean show = source != null;
+        if (show && historyView == null)
+        {
+            historyView = new TextSourceView();
+            historyPane.getChildren().add(historyView);
+        }
+        if (historyView != null)
+        {
+            if (show)
+            {
+                historyView.setSource(source);
+                historyView.setFilter(filterFor(source));
+                // sniffer output is coloured by direction
+                historyView.setColorizer(source == snifferOut ? sniffer : null);
+                historyView.setStyles(source == scrollback ? scrollbackStyles : null);
+                historyView.start();
+            }
+            else
+            {
+                historyView.stop();
+                // let go of any log file so it can be unmapped
+                historyView.setSource(null);
+                historyView.setFilter(null);
+                historyView.setStyles(null);
+                if (logFilter != null)
+                {
+                    logFilter.close();
+                    logFilter = null;
+                }
+            }
+        }
+        historyButton.setSelected(show);
+        historyPane.setVisible(show);
+        historyPane.setManaged(show);
+        terminalTA.setVisible(!show);
+        terminalTA.setManaged(!show);
+    }
+
+    /**
+     * Gets the filter over a source, set to the current filter text
+     */
+    private FilterIndex filterFor(TextSource source)
+    {
+        FilterIndex filter;
+        if (source == scrollback)
+        {
+            if (scrollbackFilter == null)
+            {
+                scrollbackFilter = new FilterIndex(scrollback);
+            }
+            filter = scrollbackFilter;
+        }
+        else
+        {
+            if (logFilter != null && logFilter.getSource() != source)
+            {
+                logFilter.close();
+                logFilter = null;
+            }
+            if (logFilter == null)
+            {
+                logFilter = new FilterIndex(source);
+            }
+            filter = logFilter;
+        }
+        setQuery(filter);
+        return filter;
+    }
+
+    private void setQuery(FilterIndex filter)
     {
         try
         {
-            // close the comm port if open
-            if (commPort.commPortInterface().isPortOpen())
+            filter.setQuery(filterTF.getText(), filterRegexCB.isSelected());
+        }
+        catch (PatternSyntaxException ex)
+        {
+            filter.setQuery("", false);
+            statusLabel.setText("Bad expression: " + ex.getDescription());
+        }
+    }
+
+    /**
+     * Filters the history view by the text in the filter box, showing the
+     * scrollback if nothing else is shown. The terminal and capture carry on
+     * unfiltered underneath.
+     */
+    private void applyFilter()
+    {
+        if (historyView == null || !historyPane.isVisible())
+        {
+            if (filterTF.getText().isEmpty())
             {
-                commPort.commPortInterface().closeCommPort();
+                return;
             }
+            showHistory(scrollback);
+            return;
         }
-        catch (IOException ioex)
+        statusLabel.setText("");
+        setQuery(historyView.getFilter());
+        historyView.setFilter(historyView.getFilter());
+    }
+
+    /**
+     * Maps and indexes a log file on a worker thread, then shows it in the history view
+     */
+    private void openLog()
+    {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Open Log");
+        final File file = chooser.showOpenDialog(terminalTA.getScene().getWindow());
+        if (file == null)
         {
-            Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ioex);
+            return;
+        }
+        final long startTime = System.nanoTime();
+        final Task<MappedLogFile> openTask = new Task<MappedLogFile>()
+        {
+
+            @Override
+            protected MappedLogFile call() throws Exception
+            {
+                return MappedLogFile.open(file.toPath(), new MappedLogFile.Listener()
+                {
+
+                    @Override
+                    public void progress(long done, long total)
+                    {
+                        updateProgress(done, total);
+                    }
+                });
+            }
+        };
+        openTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                MappedLogFile log = openTask.getValue();
+                taskFinished(String.format(Locale.ENGLISH, "%s: %d lines, indexed in %.1f s", file.getName(),
+                        log.getLineCount(), (System.nanoTime() - startTime) / 1e9));
+                showHistory(log);
+            }
+        });
+        openTask.setOnFailed(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                taskFinished("Could not open " + file.getName() + ": " + openTask.getException().getMessage());
+                Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, openTask.getException());
+            }
+        });
+        openLogButton.setDisable(true);
+        runWithProgress(openTask, "LogIndexer");
+    }
+
+    /**
+     * Streams the scrollback, or the lines selected in the history view, to
+     * a file on a worker thread
+     */
+    private void exportScrollback(boolean selection, Exporter.Format format)
+    {
+        if (exporter != null)
+        {
+            // a second export cancels the first
+            exporter.cancel();
+            return;
         }
+        TextSource source = scrollback;
+        long from = scrollback.getStart();
+        long to = scrollback.getLength();
+        if (selection)
+        {
+            if (historyView == null || !historyPane.isVisible() || historyView.getSelectionStart() < 0)
+            {
+                statusLabel.setText("Select lines in the History view first");
+                return;
+            }
+            // the selection may be in a log file rather than the scrollback
+            source = historyView.getSource();
+            from = historyView.getSelectionStart();
+            to = historyView.getSelectionEnd();
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Export " + (selection ? "Selection" : "Scrollback"));
+        File file = chooser.showSaveDialog(terminalTA.getScene().getWindow());
+        if (file != null)
+        {
+            startExport(new Exporter(source, from, to, format), file);
+        }
+    }
+
+    /**
+     * Exports the received bytes still held in the receive store, exactly as
+     * they came from the port
+     */
+    private void exportReceived(Exporter.Format format)
+    {
+        if (exporter != null)
+        {
+            exporter.cancel();
+            return;
+        }
+        RxByteStore store = commPort.commPortInterface().getRxStore();
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Export Received Bytes");
+        File file = chooser.showSaveDialog(terminalTA.getScene().getWindow());
+        if (file != null)
+        {
+            // up to what has arrived so far, the oldest bytes are overwritten as more arrive
+            startExport(new Exporter(store, store.getOldestPosition(), store.getWritePosition(), format), file);
+        }
+    }
+
+    private void startExport(final Exporter newExporter, final File file)
+    {
+        exporter = newExporter;
+        final Task<Long> exportTask = new Task<Long>()
+        {
+
+            @Override
+            protected Long call() throws Exception
+            {
+                return exporter.export(file.toPath(), new Exporter.Listener()
+                {
+
+                    @Override
+                    public void progress(long done, long total)
+                    {
+                        updateProgress(done, total);
+                    }
+                });
+            }
+        };
+        exportTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                exporter = null;
+                String message = "Exported " + exportTask.getValue() + " bytes to " + file.getName();
+                if (newExporter.getSkipped() > 0)
+                {
+                    message += ", " + newExporter.getSkipped() + " bytes were lost before they could be written";
+                }
+                taskFinished(message);
+            }
+        });
+        exportTask.setOnFailed(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                exporter = null;
+                taskFinished("Export failed: " + exportTask.getException().getMessage());
+                Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, exportTask.getException());
+            }
+        });
+        runWithProgress(exportTask, "Exporter");
+    }
+
+    /**
+     * Runs a task on a daemon thread with its progress shown in the toolbar
+     */
+    private void runWithProgress(Task<?> task, String threadName)
+    {
+        taskProgress.progressProperty().bind(task.progressProperty());
+        taskProgress.setVisible(true);
+        Thread thread = new Thread(task, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void taskFinished(String message)
+    {
+        openLogButton.setDisable(false);
+        taskProgress.progressProperty().unbind();
+        taskProgress.setVisible(false);
+        statusLabel.setText(message);
+    }
+
+    private void runScript()
+    {
+        if (!commPort.commPortInterface().isPortOpen())
+        {
+            scriptStatusLabel.setText("The comm port is not open");
+            return;
+        }
+        Script script;
+        int iterations;
         try
         {
-            // create the system settings file if it doesn't exist
-            if (!SYS_SETTINGS_FILE.exists())
+            script = Script.compile(scriptTA.getText());
+            iterations = Integer.parseInt(iterationsTF.getText().trim());
+        }
+        catch (ParseException ex)
+        {
+            scriptStatusLabel.setText(ex.getMessage());
+            return;
+        }
+        catch (NumberFormatException ex)
+        {
+            scriptStatusLabel.setText("Iterations must be a number");
+            return;
+        }
+        scriptRunner = new ScriptRunner(script, commPort.commPortInterface(), iterations,
+                stopOnFailureCB.isSelected(), new ScriptRunner.Listener()
+        {
+
+            @Override
+            public void stepStarted(int iteration, int line)
+            {
+                showScriptStatus("Iteration " + iteration + ", line " + line);
+            }
+
+            @Override
+            public void finished(int passes, int failures, String message)
+            {
+                showScriptStatus(message + " (" + passes + " passed, " + failures + " failed)");
+                Platform.runLater(new Runnable()
+                {
+
+                    @Override
+                    public void run()
+                    {
+                        runScriptButton.setDisable(false);
+                        stopScriptButton.setDisable(true);
+                    }
+                });
+            }
+        });
+        runScriptButton.setDisable(true);
+        stopScriptButton.setDisable(false);
+        scriptRunner.start();
+    }
+
+    /**
+     * Runs the loopback self test on a worker thread and keeps a copy of the
+     * report in the settings directory
+     */
+    private void runSelfTest()
+    {
+        if (!commPort.commPortInterface().isPortOpen())
+        {
+            selfTestStatusLabel.setText("The comm port is not open");
+            return;
+        }
+        final int probes = Integer.parseInt(sysSettings.getProperty("selftest.probes"));
+        final long loadedMillis = Long.parseLong(sysSettings.getProperty("selftest.loaded.ms"));
+        selfTest = commPort.commPortInterface().createSelfTest(commPort);
+        final Task<File> testTask = new Task<File>()
+        {
+
+            @Override
+            protected File call() throws Exception
             {
-                SYS_SETTINGS_FILE.getParentFile().mkdirs();
-                SYS_SETTINGS_FILE.createNewFile();
+                String report = selfTest.run(probes, loadedMillis);
+                updateMessage(report);
+                File reportFile = new File(SYS_SETTINGS_FILE.getParentFile(),
+                        new SimpleDateFormat("'selftest-'yyyyMMdd-HHmmss'.txt'").format(new Date()));
+                reportFile.getParentFile().mkdirs();
+                try (FileOutputStream out = new FileOutputStream(reportFile))
+                {
+                    out.write(report.getBytes(StandardCharsets.UTF_8));
+                }
+                return reportFile;
             }
-            // store the system settings
-            try (FileOutputStream out = new FileOutputStream(SYS_SETTINGS_FILE))
+        };
+        testTask.messageProperty().addListener(new ChangeListener<String>()
+        {
+
+            @Override
+            public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue)
             {
-                sysSettings.store(out, "---sTermFX Settings---");
+                selfTestReportTA.setText(newValue);
+            }
+        });
+        testTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                selfTestStatusLabel.setText("Report saved to " + testTask.getValue());
+                runSelfTestButton.setDisable(false);
+                stopSelfTestButton.setDisable(true);
+            }
+        });
+        testTask.setOnFailed(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                selfTestStatusLabel.setText("Self test failed: " + testTask.getException().getMessage());
+                runSelfTestButton.setDisable(false);
+                stopSelfTestButton.setDisable(true);
+            }
+        });
+        selfTestStatusLabel.setText("Running...");
+        selfTestReportTA.clear();
+        runSelfTestButton.setDisable(true);
+        stopSelfTestButton.setDisable(false);
+        Thread tester = new Thread(testTask, "SelfTest");
+        tester.setDaemon(true);
+        tester.start();
+    }
+
+    /**
+     * Starts the bit error rate test, with its results shown live in the report area
+     */
+    private void startBert()
+    {
+        if (!commPort.commPortInterface().isPortOpen())
+        {
+            bertStatusLabel.setText("The comm port is not open");
+            return;
+        }
+        bert = commPort.commPortInterface().createBert(commPort, bertPatternCB.getValue());
+        bert.start();
+        bertTimeline = new Timeline(new KeyFrame(Duration.millis(500), new EventHandler<ActionEvent>()
+        {
+
+            @Override
+            public void handle(ActionEvent event)
+            {
+                showBertResults();
+                if (bert.getFailure() != null)
+                {
+                    stopBert();
+                }
+            }
+        }));
+        bertTimeline.setCycleCount(Animation.INDEFINITE);
+        bertTimeline.play();
+        selfTestReportTA.clear();
+        startBertButton.setDisable(true);
+        stopBertButton.setDisable(false);
+        runSelfTestButton.setDisable(true);
+    }
+
+    private void stopBert()
+    {
+        if (bert == null)
+        {
+            return;
+        }
+        bertTimeline.stop();
+        bert.stop();
+        showBertResults();
+        bert = null;
+        startBertButton.setDisable(false);
+        stopBertButton.setDisable(true);
+        runSelfTestButton.setDisable(false);
+    }
+
+    private void showBertResults()
+    {
+        long bits = bert.getBitsChecked();
+        bertStatusLabel.setText(String.format(Locale.ENGLISH, "%s, BER %.3g, %d resyncs",
+                bert.isLocked() ? "Locked" : bert.isRunning() ? "Searching" : "Stopped",
+                bits == 0 ? 0.0 : (double) bert.getBitErrors() / bits, bert.getResyncs()));
+        selfTestReportTA.setText(bert.getReport());
+    }
+
+    /**
+     * Opens the second port with the main port's settings and shows both
+     * ports' traffic merged in the history view
+     */
+    private void startSniffer()
+    {
+        final String portName = snifferPortTF.getText().trim();
+        if (!commPort.commPortInterface().isPortOpen())
+        {
+            snifferStatusLabel.setText("The comm port is not open");
+            return;
+        }
+        if (portName.isEmpty() || portName.equals(commPort.getCommPortName()))
+        {
+            snifferStatusLabel.setText("Enter the name of a second port");
+            return;
+        }
+        final String backend = commPort.getBackend();
+        final String baudRate = commPort.getBaudRate();
+        final String dataBits = commPort.getDataBits();
+        final String stopBits = commPort.getStopBits();
+        final String parity = commPort.getParity();
+        final String flowControl = commPort.getFlowControl();
+        final Task<CommPort> openTask = new Task<CommPort>()
+        {
+
+            @Override
+            protected CommPort call() throws Exception
+            {
+                // nothing is displayed from the second port on its own, it is only read through its rx store
+                CommPort port = new CommPort(null, new File(SYS_SETTINGS_FILE.getParentFile(), "sniffer.properties").getPath());
+                port.setBackend(backend);
+                port.setCommPortName(portName);
+                port.setBaudRate(baudRate);
+                port.setDataBits(dataBits);
+                port.setStopBits(stopBits);
+                port.setParity(parity);
+                port.setFlowControl(flowControl);
+                port.commPortInterface().openCommPort(port);
+                return port;
+            }
+        };
+        openTask.setOnSucceeded(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                snifferOpened(openTask.getValue());
+            }
+        });
+        openTask.setOnFailed(new EventHandler<WorkerStateEvent>()
+        {
+
+            @Override
+            public void handle(WorkerStateEvent event)
+            {
+                snifferStatusLabel.setText("Could not open " + portName + ": " + openTask.getException().getMessage());
+                startSnifferButton.setDisable(false);
+            }
+        });
+        // opening a port can take seconds, so don't hold up the UI for it
+        snifferStatusLabel.setText("Opening " + portName + "...");
+        startSnifferButton.setDisable(true);
+        Thread opener = new Thread(openTask, "SnifferPortOpener");
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    /**
+     * Starts the session once the second port is open
+     */
+    private void snifferOpened(CommPort port)
+    {
+        String portName = port.getCommPortName();
+        snifferPort = port;
+        sysSettings.setProperty("sniffer.port", portName);
+        saveSystemSettings();
+
+        // the last session's output is kept on screen until a new one starts
+        if (snifferOut != null)
+        {
+            if (historyView != null && historyView.getSource() == snifferOut)
+            {
+                showHistory(null);
+            }
+            snifferOut.close();
+        }
+        snifferOut = new Scrollback(Integer.parseInt(sysSettings.getProperty("scrollback.hot.blocks")),
+                Long.parseLong(sysSettings.getProperty("scrollback.max.mb")) << 20);
+        sniffer = new SnifferSession(new CommPortInterface[] {commPort.commPortInterface(), snifferPort.commPortInterface()},
+                snifferOut, Long.parseLong(sysSettings.getProperty("sniffer.reorder.ms")));
+        sniffer.start();
+        showHistory(snifferOut);
+        snifferStatusLabel.setText("A is " + commPort.getCommPortName() + ", B is " + portName);
+        startSnifferButton.setDisable(true);
+        stopSnifferButton.setDisable(false);
+    }
+
+    private void stopSniffer()
+    {
+        if (sniffer == null || !sniffer.isRunning())
+        {
+            return;
+        }
+        sniffer.stop();
+        try
+        {
+            snifferPort.commPortInterface().closeCommPort();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        snifferPort = null;
+        snifferStatusLabel.setText(String.format(Locale.ENGLISH, "Stopped, A %d bytes, B %d bytes, %d bytes lost",
+                sniffer.getByteCount(0), sniffer.getByteCount(1), sniffer.getLostBytes(0) + sniffer.getLostBytes(1)));
+        startSnifferButton.setDisable(false);
+        stopSnifferButton.setDisable(true);
+    }
+
+    /**
+     * Shows script progress without flooding the runLater queue when steps run quickly
+     */
+    private void showScriptStatus(String status)
+    {
+        scriptStatus = status;
+        if (!scriptStatusPending)
+        {
+            scriptStatusPending = true;
+            Platform.runLater(new Runnable()
+            {
+
+                @Override
+                public void run()
+                {
+                    scriptStatusPending = false;
+                    scriptStatusLabel.setText(scriptStatus);
+                }
+            });
+        }
+    }
+
+    public void doCleanUp()
+    {
+        if (scriptRunner != null)
+        {
+            scriptRunner.cancel();
+        }
+        if (selfTest != null)
+        {
+            selfTest.cancel();
+        }
+        if (bert != null)
+        {
+            bert.stop();
+        }
+        stopSniffer();
+        if (snifferOut != null)
+        {
+            snifferOut.close();
+        }
+        // stop sharing the port before closing it
+        if (fanOutServer != null)
+        {
+            fanOutServer.stop();
+        }
+        if (simulator != null)
+        {
+            simulator.stop();
+        }
+        if (scrollbackFilter != null)
+        {
+            scrollbackFilter.close();
+        }
+        if (scrollbackStyles != null)
+        {
+            scrollbackStyles.close();
+        }
+        scrollback.close();
+        try
+        {
+            // close the comm port if open
+            if (commPort.commPortInterface().isPortOpen())
+            {
+                commPort.commPortInterface().closeCommPort();
             }
-            // save the comm port settings
-            commPort.saveSettings();
         }
         catch (IOException ioex)
         {
             Logger.getLogger(Terminal.class.getName()).log(Level.SEVERE, null, ioex);
         }
+        // settings are saved as they change, just make sure the last of them are written
+        saveSystemSettings();
+        saveProfile();
+        profiles.flush(2000);
     }
 }
@@ -0,0 +1,394 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bit error rate tester: sends a pseudo random bit sequence at the full
+ * line rate and checks what comes back.
+ *
+ * The sequences are the ITU-T O.150 PRBS-7, PRBS-15 and PRBS-23, sent a
+ * character at a time least significant bit first, as a UART puts them on
+ * the wire, using however many data bits the port is set to. The sender
+ * keeps the transmit queue full, so the rate is whatever the port and its
+ * flow control allow.
+ *
+ * The checker synchronizes itself from the received bits: each bit of the
+ * sequence is the XOR of two earlier ones, so it loads its register from
+ * the incoming stream and declares lock once 64 bits in a row are predicted
+ * correctly. It then runs its own copy of the generator and compares every
+ * character, so a single bit error counts once. If more than one bit in
+ * eight goes wrong over 1024 bits, which is what a dropped or inserted
+ * character looks like, lock is lost and the checker resynchronizes. Bits
+ * received while searching, and the window that lost lock, are not
+ * counted; a slip shows up as a resync rather than as hundreds of bit
+ * errors.
+ *
+ * Overrun, framing and parity errors and breaks reported by the backend
+ * while the test runs are included in the report.
+ *
+ * @author Brian Powell
+ */
+public class Bert implements CommRxEvent, Runnable
+{
+
+    /**
+     * The sequences, by the degree and second tap of their polynomial
+     */
+    public enum Pattern
+    {
+
+        PRBS7(7, 6, "PRBS-7"),
+        PRBS15(15, 14, "PRBS-15"),
+        PRBS23(23, 18, "PRBS-23");
+        final int degree;
+        final int tap;
+        private final String name;
+
+        private Pattern(int degree, int tap, String name)
+        {
+            this.degree = degree;
+            this.tap = tap;
+            this.name = name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+    private static final int LOCK_BITS = 64;
+    private static final int WINDOW_BITS = 1024;
+    private static final int WINDOW_MAX_ERRORS = WINDOW_BITS / 8;
+    private final CommPortInterface cpi;
+    private final CommPort cp;
+    private final Pattern pattern;
+    private final int bitsPerChar;
+    private final int stateMask;
+    private final double lineRate;
+    private Thread sender;
+    private volatile boolean running = false;
+    private volatile String failure = null;
+    private long startNanos;
+    private long stopNanos;
+    private final long[] lineErrorsAtStart = new long[4];
+
+    // the sender's generator, used only by the sender thread
+    private int txState;
+    private volatile long txBytes = 0;
+
+    // the checker, used only by the receiving thread
+    private int rxState = 0;
+    private int bitsSeen = 0;
+    private int goodBits = 0;
+    private int windowBits = 0;
+    private int windowErrors = 0;
+    private int windowCharErrors = 0;
+    private volatile boolean locked = false;
+    private volatile long rxBytes = 0;
+    private volatile long bitsChecked = 0;
+    private volatile long bitErrors = 0;
+    private volatile long charErrors = 0;
+    private volatile long resyncs = 0;
+
+    Bert(CommPortInterface cpi, CommPort cp, Pattern pattern)
+    {
+        this.cpi = cpi;
+        this.cp = cp;
+        this.pattern = pattern;
+        bitsPerChar = Integer.parseInt(cp.getDataBits().trim());
+        stateMask = (1 << pattern.degree) - 1;
+        txState = stateMask;
+        lineRate = SelfTest.lineRate(cp);
+    }
+
+    /**
+     * Starts sending and checking
+     */
+    public void start()
+    {
+        for (int type = 0; type < lineErrorsAtStart.length; type++)
+        {
+            lineErrorsAtStart[type] = cpi.getLineErrors(type);
+        }
+        startNanos = System.nanoTime();
+        running = true;
+        cpi.addRxEvent(this, "BERT", RxEventBus.WaitStrategy.BLOCKING);
+        sender = new Thread(this, "BertSender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Stops sending and checking. What is still in flight is not checked.
+     */
+    public void stop()
+    {
+        if (!running)
+        {
+            return;
+        }
+        running = false;
+        stopNanos = System.nanoTime();
+        cpi.removeRxEvent(this);
+        sender.interrupt();
+        try
+        {
+            sender.join(1000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Gets why sending stopped, or null if it did not fail
+     */
+    public String getFailure()
+    {
+        return failure;
+    }
+
+    public boolean isLocked()
+    {
+        return locked;
+    }
+
+    public long getBitsChecked()
+    {
+        return bitsChecked;
+    }
+
+    public long getBitErrors()
+    {
+        return bitErrors;
+    }
+
+    /**
+     * Gets the number of characters with at least one bit wrong
+     */
+    public long getCharErrors()
+    {
+        return charErrors;
+    }
+
+    /**
+     * Gets the number of times lock was lost and had to be found again
+     */
+    public long getResyncs()
+    {
+        return resyncs;
+    }
+
+    public long getTxBytes()
+    {
+        return txBytes;
+    }
+
+    public long getRxBytes()
+    {
+        return rxBytes;
+    }
+
+    /**
+     * Gets the number of line errors of a kind since the test started
+     *
+     * @param type one of the CommPortInterface.LINE_ constants
+     */
+    public long getLineErrors(int type)
+    {
+        return cpi.getLineErrors(type) - lineErrorsAtStart[type];
+    }
+
+    /**
+     * Describes the results so far
+     */
+    public String getReport()
+    {
+        double seconds = ((running ? System.nanoTime() : stopNanos) - startNanos) / 1e9;
+        long checked = bitsChecked;
+        long chars = checked / bitsPerChar;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ENGLISH, "%s on %s at %s baud, %s%n", pattern, cp.getCommPortName(),
+                cp.getBaudRate(), locked ? "locked" : running ? "searching" : "stopped"));
+        report.append(String.format(Locale.ENGLISH, "Bits checked %d, bit errors %d, BER %.3g%n",
+                checked, bitErrors, checked == 0 ? 0.0 : (double) bitErrors / checked));
+        report.append(String.format(Locale.ENGLISH, "Characters checked %d, character errors %d, rate %.3g%n",
+                chars, charErrors, chars == 0 ? 0.0 : (double) charErrors / chars));
+        report.append(String.format(Locale.ENGLISH, "Resyncs %d%n", resyncs));
+        report.append(String.format(Locale.ENGLISH, "Sent %d bytes (%.0f/s), received %d bytes (%.0f/s), line rate %.0f/s%n",
+                txBytes, txBytes / seconds, rxBytes, rxBytes / seconds, lineRate));
+        report.append(String.format(Locale.ENGLISH, "Line errors: overrun %d, framing %d, parity %d, break %d",
+                getLineErrors(CommPortInterface.LINE_OVERRUN), getLineErrors(CommPortInterface.LINE_FRAMING),
+                getLineErrors(CommPortInterface.LINE_PARITY), getLineErrors(CommPortInterface.LINE_BREAK)));
+        if (failure != null)
+        {
+            report.append(String.format(Locale.ENGLISH, "%nSending failed: %s", failure));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Steps a generator register one bit
+     *
+     * @return the register with the new bit shifted in at the bottom
+     */
+    private int step(int state)
+    {
+        int bit = ((state >>> (pattern.degree - 1)) ^ (state >>> (pattern.tap - 1))) & 1;
+        return ((state << 1) | bit) & stateMask;
+    }
+
+    /**
+     * Gets the next character of a generator, first bit in the least significant place
+     */
+    private int nextChar()
+    {
+        int c = 0;
+        for (int bit = 0; bit < bitsPerChar; bit++)
+        {
+            rxState = step(rxState);
+            c |= (rxState & 1) << bit;
+        }
+        return c;
+    }
+
+    @Override
+    public void run()
+    {
+        byte[] buffer = new byte[4096];
+        try
+        {
+            while (running)
+            {
+                for (int i = 0; i < buffer.length; i++)
+                {
+                    int c = 0;
+                    for (int bit = 0; bit < bitsPerChar; bit++)
+                    {
+                        txState = step(txState);
+                        c |= (txState & 1) << bit;
+                    }
+                    buffer[i] = (byte) c;
+                }
+                // blocks while the transmit queue is full, which paces us at the line rate
+                cpi.sendBytes(buffer, 0, buffer.length);
+                txBytes += buffer.length;
+            }
+        }
+        catch (IOException ex)
+        {
+            if (running)
+            {
+                failure = ex.getMessage();
+                Logger.getLogger(Bert.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void bytesReceived(byte[] data, int offset, int length, long timestamp)
+    {
+        int charMask = (1 << bitsPerChar) - 1;
+        long checked = 0;
+        long errors = 0;
+        long badChars = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            int c = data[i] & charMask;
+            if (locked)
+            {
+                int diff = nextChar() ^ c;
+                int wrong = Integer.bitCount(diff);
+                checked += bitsPerChar;
+                errors += wrong;
+                if (diff != 0)
+                {
+                    badChars++;
+                    windowCharErrors++;
+                }
+                windowBits += bitsPerChar;
+                windowErrors += wrong;
+                if (windowBits >= WINDOW_BITS)
+                {
+                    if (windowErrors > WINDOW_MAX_ERRORS)
+                    {
+                        // lost or extra characters, find the sequence again; the
+                        // window was compared out of step so it does not count
+                        checked -= windowBits;
+                        errors -= windowErrors;
+                        badChars -= windowCharErrors;
+                        locked = false;
+                        resyncs++;
+                        bitsSeen = 0;
+                        goodBits = 0;
+                    }
+                    windowBits = 0;
+                    windowErrors = 0;
+                    windowCharErrors = 0;
+                }
+            }
+            else
+            {
+                search(c);
+            }
+        }
+        bitsChecked += checked;
+        bitErrors += errors;
+        charErrors += badChars;
+        rxBytes += length;
+    }
+
+    /**
+     * Feeds a character to the checker while it looks for the sequence
+     */
+    private void search(int c)
+    {
+        for (int bit = 0; bit < bitsPerChar; bit++)
+        {
+            int received = (c >>> bit) & 1;
+            if (bitsSeen >= pattern.degree)
+            {
+                // the register holds the last degree bits received, so it predicts the next one
+                goodBits = (step(rxState) & 1) == received ? goodBits + 1 : 0;
+            }
+            rxState = ((rxState << 1) | received) & stateMask;
+            bitsSeen++;
+        }
+        if (goodBits >= LOCK_BITS)
+        {
+            locked = true;
+            windowBits = 0;
+            windowErrors = 0;
+            windowCharErrors = 0;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded in-memory byte pipe, one direction of a loopback port.
+ *
+ * Writers block while the pipe is full, the way a transmitter is held off by
+ * flow control, so a fast producer is paced by its reader rather than losing
+ * data.
+ *
+ * @author Brian Powell
+ */
+class BytePipe
+{
+
+    private final byte[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /**
+     * Total bytes written and read, guarded by lock
+     */
+    private long written = 0;
+    private long read = 0;
+    private boolean closed = false;
+
+    BytePipe(int capacity)
+    {
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Writes all the bytes, waiting for room as needed
+     *
+     * @throws IOException the pipe has been closed
+     */
+    void write(byte[] data, int offset, int length) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (length > 0)
+            {
+                while (!closed && written - read == ring.length)
+                {
+                    notFull.await();
+                }
+                if (closed)
+                {
+                    throw new IOException("Pipe closed");
+                }
+                int index = (int) (written % ring.length);
+                int count = (int) Math.min(length, Math.min(ring.length - (written - read), ring.length - index));
+                System.arraycopy(data, offset, ring, index, count);
+                written += count;
+                offset += count;
+                length -= count;
+                notEmpty.signalAll();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads whatever is available, waiting up to the timeout for something to arrive
+     *
+     * @return the number of bytes read, 0 on timeout or -1 once closed and drained
+     * @throws IOException interrupted while waiting
+     */
+    int read(byte[] data, int offset, int length, long timeoutMillis) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (written == read)
+            {
+                if (closed)
+                {
+                    return -1;
+                }
+                if (remaining <= 0)
+                {
+                    return 0;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            int index = (int) (read % ring.length);
+            int count = (int) Math.min(length, Math.min(written - read, ring.length - index));
+            System.arraycopy(ring, index, data, offset, count);
+            read += count;
+            notFull.signalAll();
+            return count;
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a stream that reads from this pipe, blocking until data arrives
+     */
+    InputStream inputStream()
+    {
+        return new InputStream()
+        {
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] one = new byte[1];
+                int count = read(one, 0, 1);
+                return count < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (len == 0)
+                {
+                    return 0;
+                }
+                int count;
+                while ((count = BytePipe.this.read(b, off, len, 1000)) == 0)
+                {
+                    // keep waiting
+                }
+                return count;
+            }
+
+            @Override
+            public void close()
+            {
+                BytePipe.this.close();
+            }
+        };
+    }
+
+    /**
+     * Gets a stream that writes to this pipe
+     */
+    OutputStream outputStream()
+    {
+        return new OutputStream()
+        {
+
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                BytePipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close()
+            {
+                BytePipe.this.close();
+            }
+        };
+    }
+}
@@ -22,7 +22,6 @@ package stermfx.comms;
 import gnu.io.SerialPort;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Locale;
 import java.util.Properties;
@@ -38,6 +37,7 @@ import javafx.beans.property.StringProperty;
  *      StopBits - "1", "2", "1.5"
  *      Parity - "None", "Odd", "Even", "Mark", "Space"
  *      FlowControl - "None", "RtsCts In", "RtsCts Out", "XonXoff In", "XonXoff Out"
+ *      Backend - "RXTX", "Linux", "Loopback"
  */
 
 public class CommPort {
@@ -77,6 +77,11 @@ public class CommPort {
      */
     private SimpleStringProperty flowControl = new SimpleStringProperty("");
 
+    /**
+     * The serial backend used to talk to the port
+     */
+    private SimpleStringProperty backend = new SimpleStringProperty("");
+
     /**
      * The comm port interface object
      */
@@ -87,6 +92,7 @@ public class CommPort {
      */
     private Properties commSettings;
     private File commSettingsFile;
+    private final Properties defaultProps = new Properties();
 
     /**
      * Creates a new instance of CommPort
@@ -96,15 +102,29 @@ public class CommPort {
         cpi = new CommPortInterface(rxEvent);
         // load the settings
         commSettingsFile = new File(propertiesLocation);
-        Properties defaultProps = new Properties();
         defaultProps.load(getClass().getResourceAsStream("commdefaults.properties"));
-        commSettings = new Properties(defaultProps);
+        Properties settings = new Properties();
         if (commSettingsFile.exists()) {
             try (FileInputStream in = new FileInputStream(commSettingsFile))
             {
-                commSettings.load(in);
+                settings.load(in);
             }
         }
+        applySettings(settings);
+
+        //commPortName.setValue("COM14");
+    }
+
+    /**
+     * Replaces the settings with a set of saved ones, such as a profile.
+     * Anything missing takes its default. A port that is open keeps the
+     * settings it was opened with until it is next opened.
+     *
+     * @param settings the settings to use
+     */
+    public void applySettings(Properties settings) {
+        commSettings = new Properties(defaultProps);
+        commSettings.putAll(settings);
         // setup the class members
         description.setValue(commSettings.getProperty("description", "Undefined"));
         commPortName.setValue(commSettings.getProperty("comm.port.name"));
@@ -113,8 +133,37 @@ public class CommPort {
         stopBits.setValue(commSettings.getProperty("stop.bits"));
         parity.setValue(commSettings.getProperty("parity"));
         flowControl.setValue(commSettings.getProperty("flow.control"));
+        backend.setValue(commSettings.getProperty("backend"));
+    }
 
-        //commPortName.setValue("COM14");
+    /**
+     * Gets a copy of the persistent settings of this comm port as they are now
+     *
+     * @return the settings, without the defaults
+     */
+    public Properties getSettings() {
+        // save the class members to local settings
+        putSetting("description", getDescription());
+        putSetting("comm.port.name", getCommPortName());
+        putSetting("baud.rate", getBaudRate());
+        putSetting("data.bits", getDataBits());
+        putSetting("flow.control", getFlowControl());
+        putSetting("parity", getParity());
+        putSetting("stop.bits", getStopBits());
+        putSetting("backend", getBackend());
+        Properties settings = new Properties();
+        settings.putAll(commSettings);
+        return settings;
+    }
+
+    /**
+     * Keeps a setting, unless it is unset for the moment such as while a
+     * choice box bound to it is being refilled
+     */
+    private void putSetting(String key, String value) {
+        if (value != null) {
+            commSettings.setProperty(key, value);
+        }
     }
 
     /**
@@ -124,26 +173,8 @@ public class CommPort {
      * @throws IOException If a problem occurs while trying to store the properties file.
      */
     public void saveSettings() throws IOException {
-        // save the class members to local settings
-        commSettings.setProperty("description", getDescription());
-        commSettings.setProperty("comm.port.name", getCommPortName());
-        commSettings.setProperty("baud.rate", getBaudRate());
-        commSettings.setProperty("data.bits", getDataBits());
-        commSettings.setProperty("flow.control", getFlowControl());
-        commSettings.setProperty("parity", getParity());
-        commSettings.setProperty("stop.bits", getStopBits());
-
-        // create the comm settings file if it doesn't exist
-        if (!commSettingsFile.exists())
-        {
-            commSettingsFile.getParentFile().mkdirs();
-            commSettingsFile.createNewFile();
-        }
-        // store the comm settings
-        try (FileOutputStream out = new FileOutputStream(commSettingsFile))
-        {
-            commSettings.store(out, "---CommPort Settings---");
-        }
+        // store the comm settings, replacing the file in one step so a crash can't truncate it
+        ProfileStore.storeAtomically(commSettingsFile.toPath(), getSettings(), "---CommPort Settings---");
     }
 
     /**
@@ -326,6 +357,19 @@ public class CommPort {
         }
     }
 
+    /**
+     * Gets the serial backend used for this communications port
+     *
+     * @return The backend setting
+     */
+    public String getBackend() {
+        return backend.getValue();
+    }
+
+    public StringProperty backendProperty() {
+        return backend;
+    }
+
     /**
      * Get the CommPortInterface object for this comm port.
      *
@@ -398,6 +442,15 @@ public class CommPort {
         flowControl.setValue(newValue);
     }
 
+    /**
+     * Sets the serial backend used for this communications port
+     *
+     * @param backend - The backend setting
+     */
+    public void setBackend(String newValue) {
+        backend.setValue(newValue);
+    }
+
     /**
      * The toString() method for this class that returns all fields of this
      * object as a string.
@@ -413,7 +466,8 @@ public class CommPort {
                "  Data Bits:  " + getDataBits() + '\n' +
                "  Stop Bits:  " + getStopBits() + '\n' +
                "  Parity:  " + getParity() + '\n' +
-               "  FlowControl:  " + getFlowControl();
+               "  FlowControl:  " + getFlowControl() + '\n' +
+               "  Backend:  " + getBackend();
     }
 
     /**
@@ -20,39 +20,50 @@
 package stermfx.comms;
 
 import gnu.io.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.TooManyListenersException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  *
  * @author Brian Powell
  */
-public class CommPortInterface implements SerialPortEventListener
+public class CommPortInterface
 {
 
     /**
-     * A data input stream that ties to the input of the serial port
+     * The kinds of line error a backend can report
      */
-    private DataInputStream inputStream = null;
+    public static final int LINE_OVERRUN = 0;
+    public static final int LINE_FRAMING = 1;
+    public static final int LINE_PARITY = 2;
+    public static final int LINE_BREAK = 3;
+
+    /**
+     * The backend that talks to the serial port while it is open
+     */
+    private SerialBackend backend = null;
     /**
-     * A data output stream that ties to the output of the serial port
+     * Queues everything sent for the writer thread while the port is open
      */
-    private DataOutputStream outputStream = null;
+    private volatile TxQueue txQueue = null;
     /**
-     * A serial port object that will be used in this port interface
+     * The most recently received bytes along with the time each block of them was read
      */
-    private SerialPort serialPort = null;
+    private final RxByteStore rxStore = new RxByteStore(24, 18);
     /**
-     * A single CommRxEvent object that provides a callback for received bytes
+     * Delivers each received block to every rx event, each on its own thread
      */
-    private CommRxEvent rxEvent;
+    private final RxEventBus rxBus = new RxEventBus(rxStore);
     /**
      * A flag for detemining if the port is open or not
      */
-    private boolean portOpen = false;
+    private volatile boolean portOpen = false;
+    /**
+     * Counts of each kind of line error since this was created
+     */
+    private final AtomicLongArray lineErrors = new AtomicLongArray(4);
     /**
      * Tells if the communications port is open or not
      *
@@ -65,58 +76,109 @@ public class CommPortInterface implements SerialPortEventListener
 
     /** Creates a new instance of CommPortInterface */
     public CommPortInterface(CommRxEvent _rxEvent) {
-        // Set the rx event object
-        this.rxEvent = _rxEvent;
+        // Set the rx event object, a port opened only to be read through its rx store has none
+        if (_rxEvent != null)
+        {
+            addRxEvent(_rxEvent, "Display", RxEventBus.WaitStrategy.BLOCKING);
+        }
     }
 
     /**
-     * Opens the communications port specified by the given comm port setting
+     * Adds another receiver of the bytes read from the port. Each rx event is
+     * called on a thread of its own that waits for blocks on the rx bus, so a
+     * slow one never holds up the port or the other rx events.
      *
-     * @param cp Comm port settings specifying details of the port to open
-     * @throws PortInUseException port is already in use
-     * @throws IOException a general I/O exception occured at the lower levels
-     * @throws TooManyListenersException too many registered serial event listeners
-     * @throws UnsupportedCommOperationException comm operation is not supported
+     * @param event the rx event to add
      */
-    public void openCommPort(CommPort cp) throws PortInUseException,
-                                                        IOException,
-                                                        TooManyListenersException,
-                                                        UnsupportedCommOperationException
+    public void addRxEvent(CommRxEvent event)
     {
-        CommPortIdentifier portId;
-        Enumeration portList;
-        boolean commPortNameFound = false;
+        String name = event.getClass().getSimpleName();
+        addRxEvent(event, name.isEmpty() ? event.getClass().getName() : name, RxEventBus.WaitStrategy.BLOCKING);
+    }
 
-        portList = CommPortIdentifier.getPortIdentifiers();
-        while (portList.hasMoreElements())
-        {
-            portId = (CommPortIdentifier) portList.nextElement();
-            if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL)
-            {
-                if (portId.getName().equals(cp.getCommPortName()))
-                {
-                    commPortNameFound = true;
-                    serialPort = (SerialPort) portId.open("TstatSimulator", 2000);
-
-                    inputStream = new DataInputStream(serialPort.getInputStream());
-                    outputStream = new DataOutputStream(serialPort.getOutputStream());
-
-                    serialPort.addEventListener(this);
-                    serialPort.notifyOnDataAvailable(true);
-                    //serialPort.notifyOnOutputEmpty(true);
-                    serialPort.setSerialPortParams(Integer.parseInt(cp.getBaudRate()),
-                            cp.getDataBitsRaw(),
-                            cp.getStopBitsRaw(),
-                            cp.getParityRaw());
-                    serialPort.setFlowControlMode(cp.getFlowControlRaw());
-                }
-            }
-        }
-        if (!commPortNameFound)
+    /**
+     * Adds another receiver of the bytes read from the port
+     *
+     * @param event the rx event to add
+     * @param name identifies the rx event in the bus statistics
+     * @param waitStrategy how the rx event's thread waits for blocks
+     */
+    public void addRxEvent(CommRxEvent event, String name, RxEventBus.WaitStrategy waitStrategy)
+    {
+        rxBus.add(event, name, waitStrategy);
+    }
+
+    /**
+     * Gets the bus that delivers received blocks, for the lag of each rx event
+     *
+     * @return the rx bus
+     */
+    public RxEventBus getRxBus()
+    {
+        return rxBus;
+    }
+
+    /**
+     * Gets the store of recently received bytes and their receive timestamps
+     *
+     * @return the receive store
+     */
+    public RxByteStore getRxStore()
+    {
+        return rxStore;
+    }
+
+    /**
+     * Removes a receiver previously added with addRxEvent
+     *
+     * @param event the rx event to remove
+     */
+    public void removeRxEvent(CommRxEvent event)
+    {
+        rxBus.remove(event);
+    }
+
+    /**
+     * Creates the backend named by the comm port settings.
+     *
+     * Backend - "RXTX", "Linux", "Loopback"
+     */
+    private static SerialBackend createBackend(CommPort cp)
+    {
+        switch (cp.getBackend().toLowerCase(Locale.ENGLISH))
         {
-            throw new IOException("CommPort name '" + cp.getCommPortName() + "' not found!");
+            case "linux":
+                return new LinuxTtySerialBackend();
+            case "loopback":
+                return new LoopbackSerialBackend();
+            default:
+                return new RxtxSerialBackend();
         }
+    }
+
+    /**
+     * Lists the ports that can be opened with the backend the given settings select
+     *
+     * @param cp Comm port settings specifying the backend
+     * @return the port names
+     */
+    public List<String> getPortNames(CommPort cp)
+    {
+        return createBackend(cp).getPortNames();
+    }
 
+    /**
+     * Opens the communications port specified by the given comm port setting
+     *
+     * @param cp Comm port settings specifying details of the port to open
+     * @throws IOException the port is in use, could not be found or could not be configured
+     */
+    public void openCommPort(CommPort cp) throws IOException
+    {
+        SerialBackend newBackend = createBackend(cp);
+        newBackend.open(cp, this);
+        backend = newBackend;
+        txQueue = new TxQueue(newBackend, Integer.parseInt(cp.getBaudRate().trim()), cp.getCommPortName());
         portOpen = true;
     }
 
@@ -128,40 +190,123 @@ public class CommPortInterface implements SerialPortEventListener
     public void closeCommPort() throws IOException
     {
         portOpen = false;
-        serialPort.close();
-        inputStream.close();
-        outputStream.close();
-    }
-
-    @Override
-    public void serialEvent(SerialPortEvent serialPortEvent)
-    {
-        switch(serialPortEvent.getEventType()) {
-            case SerialPortEvent.BI:
-            case SerialPortEvent.OE:
-            case SerialPortEvent.FE:
-            case SerialPortEvent.PE:
-            case SerialPortEvent.CD:
-            case SerialPortEvent.CTS:
-            case SerialPortEvent.DSR:
-            case SerialPortEvent.RI:
-            case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
-                break;
-            case SerialPortEvent.DATA_AVAILABLE:
-                try {
-                    // Signal rx events for each received byte
-                    while (inputStream.available() > 0) {
-                        rxEvent.byteReceived(inputStream.readByte());
-                    }
-                } catch (Exception ex) { }
-
-                break;
-        }
+        TxQueue queue = txQueue;
+        txQueue = null;
+        // stop the writer first, then closing the backend frees a write held by flow control
+        queue.close();
+        backend.close();
+        queue.join();
     }
 
+    /**
+     * Called by the backend with each block of bytes it reads from the port
+     */
+    void received(byte[] data, int offset, int length, long timestamp)
+    {
+        rxBus.publish(data, offset, length, timestamp);
+    }
+
+    /**
+     * Called by the backend when the UART reports an overrun, framing or
+     * parity error or a break. Only the RXTX backend can see these.
+     *
+     * @param type one of the LINE_ constants
+     */
+    void lineError(int type)
+    {
+        lineErrors.incrementAndGet(type);
+    }
+
+    /**
+     * Gets the number of line errors of a kind reported since this was created
+     *
+     * @param type one of the LINE_ constants
+     */
+    public long getLineErrors(int type)
+    {
+        return lineErrors.get(type);
+    }
+
+    /**
+     * Creates a bit error rate test of this port, which must be open with
+     * its transmit looped back to its receive or to another BERT
+     *
+     * @param cp the settings the port was opened with
+     * @param pattern the pseudo random sequence to send
+     * @return the test, ready to start
+     */
+    public Bert createBert(CommPort cp, Bert.Pattern pattern)
+    {
+        return new Bert(this, cp, pattern);
+    }
+
+    /**
+     * Creates a round trip self test of this port, which must be open with its
+     * transmit looped back to its receive
+     *
+     * @param cp the settings the port was opened with
+     * @return the test, ready to run
+     */
+    public SelfTest createSelfTest(CommPort cp)
+    {
+        return new SelfTest(this, cp);
+    }
+
+    /**
+     * Gets the transmit queue, for its keystroke latency
+     *
+     * @return the queue, or null if the port is not open
+     */
+    public TxQueue getTxQueue()
+    {
+        return txQueue;
+    }
+
+    /**
+     * Sends a keystroke ahead of anything queued by sendBytes. Never blocks.
+     *
+     * @throws IOException the port is not open, too many keys are waiting or an earlier write failed
+     */
     public void sendByte(byte byteToSend) throws IOException
     {
-        outputStream.writeByte(byteToSend);
+        TxQueue queue = txQueue;
+        if (queue == null)
+        {
+            throw new IOException("Port not open");
+        }
+        queue.sendKey(byteToSend);
+    }
+
+    /**
+     * Queues bytes to send, waiting while the queue is full. The bytes are
+     * copied so the array can be reused as soon as this returns.
+     *
+     * @throws IOException the port is not open or an earlier write failed
+     */
+    public void sendBytes(byte[] bytesToSend, int offset, int length) throws IOException
+    {
+        TxQueue queue = txQueue;
+        if (queue == null)
+        {
+            throw new IOException("Port not open");
+        }
+        queue.send(bytesToSend, offset, length);
+    }
+
+    /**
+     * Queues as many of the bytes to send as there is room for, without waiting
+     *
+     * @return the number of bytes queued
+     * @throws IOException the port is not open or an earlier write failed
+     */
+    public int offerBytes(byte[] bytesToSend, int offset, int length) throws IOException
+    {
+        TxQueue queue = txQueue;
+        if (queue == null)
+        {
+            throw new IOException("Port not open");
+        }
+        return queue.offer(bytesToSend, offset, length);
     }
 
     public static void listPorts()
@@ -26,7 +26,15 @@ package stermfx.comms;
 public interface CommRxEvent
 {
     /**
-     * To be called when a byte is received from the comm. port.
+     * To be called when a block of bytes is received from the comm. port.
+     *
+     * The array is reused by the caller for the next read, so implementations
+     * must copy anything they want to keep before returning.
+     *
+     * @param data buffer holding the received bytes
+     * @param offset index of the first received byte in data
+     * @param length number of received bytes
+     * @param timestamp the System.nanoTime at which the bytes were read from the port
      */
-    public void byteReceived(byte rxByte);
+    public void bytesReceived(byte[] data, int offset, int length, long timestamp);
 }
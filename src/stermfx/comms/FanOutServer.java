@@ -0,0 +1,572 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares one open comm port with any number of TCP clients.
+ *
+ * Received bytes are not queued per client. They are copied out of the
+ * port's RxByteStore once, into a run of shared chunks, and every client is
+ * sent from read only views of the same chunks, so the memory used is the
+ * same however many clients there are. Each client has a position in the
+ * received bytes and is sent whatever lies between there and the newest
+ * byte as its socket takes it; a chunk is reused once every client has been
+ * sent all of it. All socket work happens on a single selector thread. A
+ * client that falls too far behind is disconnected, so a slow client can
+ * never hold up the port or the others, nor make the chunks held grow past
+ * the limit.
+ *
+ * Only the writer client (the longest connected one) may send to the port;
+ * input from every other client is discarded. The writer's input is offered
+ * to the transmit queue without waiting. Whatever doesn't fit is held and the
+ * writer isn't read from again until it has gone, which pushes back on the
+ * writer through TCP flow control rather than stalling the selector thread.
+ *
+ * @author Brian Powell
+ */
+public class FanOutServer implements CommRxEvent, Runnable
+{
+
+    /**
+     * The most bytes a client may fall behind the port before it is dropped
+     */
+    private static final int MAX_QUEUED_BYTES = 1 << 20;
+    private static final int CHUNK_SIZE = 16384;
+    /**
+     * How often held writer input is offered to the transmit queue again
+     */
+    private static final long RETRY_MILLIS = 5;
+    /**
+     * The comm port interface being shared
+     */
+    private final CommPortInterface cpi;
+    private final RxByteStore store;
+    /**
+     * The address the server listens on
+     */
+    private final InetSocketAddress address;
+    /**
+     * Set when the selector has been woken for new bytes that it has not yet sent
+     */
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+    /**
+     * The connected clients, oldest first. Only touched by the selector thread.
+     */
+    private final List<Client> clients = new ArrayList<>();
+    /**
+     * The number of connected clients, readable from the receive thread
+     */
+    private volatile int clientCount = 0;
+    /**
+     * Input read from the writer and not yet taken by the transmit queue.
+     * Only touched by the selector thread.
+     */
+    private final ByteBuffer writerInput = ByteBuffer.allocate(4096);
+    /**
+     * Input from clients other than the writer is read into this and dropped
+     */
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(4096);
+    /**
+     * The received bytes not yet sent to every client, oldest first. Every
+     * chunk but the newest is full, so the chunk holding a position can be
+     * worked out. Only touched by the selector thread.
+     */
+    private final List<Chunk> chunks = new ArrayList<>();
+    /**
+     * Buffers of chunks every client has finished with, for reuse
+     */
+    private final List<ByteBuffer> spareBuffers = new ArrayList<>();
+    /**
+     * The store position just past the last byte copied into the chunks
+     */
+    private long published = 0;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+
+    /**
+     * A run of received bytes shared by all the clients
+     */
+    private static class Chunk
+    {
+        /**
+         * The store position of the first byte
+         */
+        final long start;
+        /**
+         * Filled by the selector thread; only bytes below length are ever
+         * shown to a client, so filling the rest never changes what a client
+         * is sending
+         */
+        final ByteBuffer buffer;
+        /**
+         * The view each client's views are duplicated from
+         */
+        final ByteBuffer shared;
+        int length = 0;
+
+        Chunk(long start, ByteBuffer buffer)
+        {
+            this.start = start;
+            this.buffer = buffer;
+            shared = buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * A connected client and how far through the received bytes it has got
+     */
+    private static class Client
+    {
+        final SocketChannel channel;
+        final SelectionKey key;
+        /**
+         * The store position of the next byte to send
+         */
+        long position;
+        /**
+         * Set while the socket is full
+         */
+        boolean blocked = false;
+
+        Client(SocketChannel channel, SelectionKey key, long position)
+        {
+            this.channel = channel;
+            this.key = key;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Creates a new instance of FanOutServer
+     *
+     * @param cpi the comm port interface to share
+     * @param address the local address to listen on
+     */
+    public FanOutServer(CommPortInterface cpi, InetSocketAddress address)
+    {
+        this.cpi = cpi;
+        this.store = cpi.getRxStore();
+        this.address = address;
+        writerInput.flip();
+    }
+
+    /**
+     * Starts listening and registers the server as a receiver of the port data
+     *
+     * @throws IOException the server socket could not be opened
+     */
+    public void start() throws IOException
+    {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        selectorThread = new Thread(this, "FanOutServer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        cpi.addRxEvent(this);
+    }
+
+    /**
+     * Stops the server and disconnects all clients
+     */
+    public void stop()
+    {
+        cpi.removeRxEvent(this);
+        running = false;
+        if (selector != null)
+        {
+            selector.wakeup();
+        }
+        if (selectorThread != null)
+        {
+            try
+            {
+                selectorThread.join(2000);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Gets the port the server is listening on, which is chosen by the system
+     * if it was started on port 0
+     */
+    public int getLocalPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the number of connected clients
+     *
+     * @return the client count
+     */
+    public int getClientCount()
+    {
+        return clientCount;
+    }
+
+    @Override
+    public void bytesReceived(byte[] data, int offset, int length, long timestamp)
+    {
+        // the bytes are already in the store, the selector only needs to know
+        if (clientCount > 0 && wakeupRequested.compareAndSet(false, true))
+        {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                if (writerInput.hasRemaining())
+                {
+                    selector.select(RETRY_MILLIS);
+                }
+                else
+                {
+                    selector.select();
+                }
+                wakeupRequested.set(false);
+                forwardWriterInput();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                    }
+                    else
+                    {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable())
+                        {
+                            readFrom(client);
+                        }
+                        if (key.isValid() && key.isWritable())
+                        {
+                            client.blocked = false;
+                        }
+                    }
+                }
+                publish();
+                for (Client client : new ArrayList<>(clients))
+                {
+                    sendTo(client);
+                }
+                releaseChunks();
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(FanOutServer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            for (Client client : new ArrayList<>(clients))
+            {
+                disconnect(client);
+            }
+            try
+            {
+                serverChannel.close();
+                selector.close();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(FanOutServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+        {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        if (clients.isEmpty())
+        {
+            // nothing has been published while there was no one to send to
+            published = store.getWritePosition();
+        }
+        // a new client sees what arrives from now on
+        Client client = new Client(channel, key, store.getWritePosition());
+        key.attach(client);
+        clients.add(client);
+        clientCount = clients.size();
+    }
+
+    /**
+     * Copies the bytes received since the last time into the chunks, once
+     * for all the clients
+     */
+    private void publish()
+    {
+        long end = store.getWritePosition();
+        for (Client client : clients)
+        {
+            // no more than a client that is not yet dropped could still be sent
+            end = Math.min(end, client.position + MAX_QUEUED_BYTES);
+        }
+        while (!clients.isEmpty() && published < end)
+        {
+            Chunk tail = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (tail == null || tail.length == CHUNK_SIZE)
+            {
+                tail = new Chunk(published, spareBuffers.isEmpty() ? ByteBuffer.allocate(CHUNK_SIZE)
+                        : spareBuffers.remove(spareBuffers.size() - 1));
+                chunks.add(tail);
+            }
+            int count = store.read(published, tail.buffer.array(), tail.length, CHUNK_SIZE - tail.length);
+            if (count < 0)
+            {
+                // the port outran this thread and overwrote bytes no client has had
+                Logger.getLogger(FanOutServer.class.getName()).log(Level.WARNING,
+                        "Disconnecting all clients, received bytes were lost before they could be sent");
+                for (Client client : new ArrayList<>(clients))
+                {
+                    disconnect(client);
+                }
+                releaseChunks();
+                return;
+            }
+            tail.length += count;
+            published += count;
+        }
+    }
+
+    /**
+     * Finds the chunk holding a position
+     *
+     * @return the chunk, or null if the position has not been published
+     */
+    private Chunk findChunk(long position)
+    {
+        if (chunks.isEmpty() || position < chunks.get(0).start || position >= published)
+        {
+            return null;
+        }
+        return chunks.get((int) ((position - chunks.get(0).start) / CHUNK_SIZE));
+    }
+
+    /**
+     * Puts the buffers of the chunks every client has been sent aside for reuse
+     */
+    private void releaseChunks()
+    {
+        long oldest = published;
+        for (Client client : clients)
+        {
+            oldest = Math.min(oldest, client.position);
+        }
+        while (!chunks.isEmpty() && chunks.get(0).start + chunks.get(0).length <= oldest)
+        {
+            spareBuffers.add(chunks.remove(0).buffer);
+        }
+    }
+
+    /**
+     * Writes as much of what the client hasn't had yet as the socket will
+     * take without blocking, dropping the client if it has fallen too far behind
+     */
+    private void sendTo(Client client)
+    {
+        if (store.getWritePosition() - client.position > MAX_QUEUED_BYTES)
+        {
+            Logger.getLogger(FanOutServer.class.getName()).log(Level.WARNING,
+                    "Disconnecting {0}, it is more than {1} bytes behind",
+                    new Object[] {client.channel.socket().getRemoteSocketAddress(), MAX_QUEUED_BYTES});
+            disconnect(client);
+            return;
+        }
+        if (client.blocked)
+        {
+            return;
+        }
+        try
+        {
+            Chunk chunk;
+            while ((chunk = findChunk(client.position)) != null)
+            {
+                ByteBuffer view = chunk.shared.duplicate();
+                view.limit(chunk.length);
+                view.position((int) (client.position - chunk.start));
+                int count = view.remaining();
+                int written = client.channel.write(view);
+                client.position += written;
+                if (written < count)
+                {
+                    // the socket is full, carry on when it becomes writable
+                    client.blocked = true;
+                    break;
+                }
+            }
+            updateInterest(client);
+        }
+        catch (IOException ex)
+        {
+            disconnect(client);
+        }
+    }
+
+    /**
+     * Reads from a client, holding the input if it is the writer and
+     * discarding it otherwise
+     */
+    private void readFrom(Client client)
+    {
+        try
+        {
+            int count;
+            if (client == clients.get(0))
+            {
+                if (writerInput.hasRemaining())
+                {
+                    return;
+                }
+                writerInput.clear();
+                count = client.channel.read(writerInput);
+                writerInput.flip();
+                forwardWriterInput();
+            }
+            else
+            {
+                discardBuffer.clear();
+                count = client.channel.read(discardBuffer);
+            }
+            if (count < 0)
+            {
+                disconnect(client);
+            }
+        }
+        catch (IOException ex)
+        {
+            disconnect(client);
+        }
+    }
+
+    /**
+     * Offers the held writer input to the transmit queue, without waiting
+     */
+    private void forwardWriterInput()
+    {
+        if (!writerInput.hasRemaining())
+        {
+            return;
+        }
+        try
+        {
+            int queued = cpi.offerBytes(writerInput.array(), writerInput.position(), writerInput.remaining());
+            writerInput.position(writerInput.position() + queued);
+        }
+        catch (IOException ex)
+        {
+            // the port is closed or failing, the input has nowhere to go
+            writerInput.position(writerInput.limit());
+        }
+        if (!clients.isEmpty())
+        {
+            updateInterest(clients.get(0));
+        }
+    }
+
+    /**
+     * Reads from a client unless it is the writer with input still held, and
+     * waits for it to be writable while its socket is full
+     */
+    private void updateInterest(Client client)
+    {
+        if (!client.key.isValid())
+        {
+            return;
+        }
+        int ops = client.blocked ? SelectionKey.OP_WRITE : 0;
+        if (client != clients.get(0) || !writerInput.hasRemaining())
+        {
+            ops |= SelectionKey.OP_READ;
+        }
+        client.key.interestOps(ops);
+    }
+
+    private void disconnect(Client client)
+    {
+        if (!clients.isEmpty() && client == clients.get(0))
+        {
+            // the writer's input goes with it
+            writerInput.position(writerInput.limit());
+        }
+        clients.remove(client);
+        clientCount = clients.size();
+        client.key.cancel();
+        try
+        {
+            client.channel.close();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(FanOutServer.class.getName()).log(Level.FINE, null, ex);
+        }
+        // the next oldest client becomes the writer and may not have been reading
+        if (!clients.isEmpty())
+        {
+            updateInterest(clients.get(0));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serial backend that talks to a Linux tty device directly, with no native
+ * library of its own.
+ *
+ * The device is configured with stty (termios) and then read and written
+ * through a FileChannel. Reads go into a direct buffer on a dedicated reader
+ * thread. The tty is put in raw mode with VMIN=0 and VTIME=1, so a read
+ * returns as soon as any bytes arrive and otherwise times out after 100 ms,
+ * which lets the reader notice the port being closed.
+ *
+ * Baud rates are whatever stty accepts; older versions of coreutils only
+ * know the standard termios rates and reject anything else. Works with
+ * pseudo terminals as well as real ports, so a PTY pair (for example from
+ * socat) can stand in for hardware.
+ *
+ * @author Brian Powell
+ */
+class LinuxTtySerialBackend implements SerialBackend, Runnable
+{
+
+    /**
+     * The name prefixes of the devices offered as ports
+     */
+    private static final String[] DEVICE_PREFIXES = {"ttyS", "ttyUSB", "ttyACM", "ttyAMA", "rfcomm"};
+    /**
+     * How long a read waits for data before returning empty, VTIME=1
+     */
+    private static final long IDLE_READ_NANOS = 100000000L;
+    private FileChannel channel;
+    private CommPortInterface receiver;
+    private Thread readerThread;
+    private volatile boolean running = false;
+    /**
+     * Off heap buffer the reader thread reads into
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+    private final byte[] rxBuffer = new byte[4096];
+
+    @Override
+    public List<String> getPortNames()
+    {
+        List<String> names = new ArrayList<>();
+        String[] devices = new File("/dev").list();
+        if (devices == null)
+        {
+            return names;
+        }
+        Arrays.sort(devices);
+        for (String device : devices)
+        {
+            for (String prefix : DEVICE_PREFIXES)
+            {
+                if (device.startsWith(prefix))
+                {
+                    names.add("/dev/" + device);
+                    break;
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void open(CommPort cp, CommPortInterface receiver) throws IOException
+    {
+        this.receiver = receiver;
+        channel = FileChannel.open(Paths.get(cp.getCommPortName()), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // configure it while we hold it open so the settings are not reset by the driver
+        try
+        {
+            stty(cp);
+        }
+        catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+        running = true;
+        readerThread = new Thread(this, "LinuxTtyReader " + cp.getCommPortName());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Applies the port settings with stty
+     */
+    private void stty(CommPort cp) throws IOException
+    {
+        List<String> command = new ArrayList<>();
+        command.add("stty");
+        command.add("-F");
+        command.add(cp.getCommPortName());
+        command.add(Integer.toString(Integer.parseInt(cp.getBaudRate().trim())));
+        command.add("cs" + cp.getDataBits().trim());
+        // Linux gives 1.5 stop bits for cstopb with 5 data bits and 2 otherwise
+        command.add(cp.getStopBits().trim().equals("1") ? "-cstopb" : "cstopb");
+        switch (cp.getParity().toLowerCase(Locale.ENGLISH))
+        {
+            case "odd":
+                command.addAll(Arrays.asList("parenb", "parodd", "-cmspar"));
+                break;
+            case "even":
+                command.addAll(Arrays.asList("parenb", "-parodd", "-cmspar"));
+                break;
+            case "mark":
+                command.addAll(Arrays.asList("parenb", "parodd", "cmspar"));
+                break;
+            case "space":
+                command.addAll(Arrays.asList("parenb", "-parodd", "cmspar"));
+                break;
+            default:
+                command.add("-parenb");
+        }
+        switch (cp.getFlowControl().toLowerCase(Locale.ENGLISH))
+        {
+            case "rtscts in":
+            case "rtscts out":
+                command.addAll(Arrays.asList("crtscts", "-ixon", "-ixoff"));
+                break;
+            case "xonxoff in":
+                command.addAll(Arrays.asList("-crtscts", "-ixon", "ixoff"));
+                break;
+            case "xonxoff out":
+                command.addAll(Arrays.asList("-crtscts", "ixon", "-ixoff"));
+                break;
+            default:
+                command.addAll(Arrays.asList("-crtscts", "-ixon", "-ixoff"));
+        }
+        command.addAll(Arrays.asList("raw", "-echo", "clocal", "cread", "min", "0", "time", "1"));
+
+        Process stty = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = readAll(stty.getInputStream());
+        try
+        {
+            if (stty.waitFor() != 0)
+            {
+                throw new IOException("Could not configure " + cp.getCommPortName() + ": " + output.trim());
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted configuring " + cp.getCommPortName(), ex);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+        {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        running = false;
+        try
+        {
+            // the reader wakes up at least every 100 ms
+            readerThread.join(1000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                readBuffer.clear();
+                long started = System.nanoTime();
+                int count = channel.read(readBuffer);
+                long timestamp = System.nanoTime();
+                if (count > 0)
+                {
+                    readBuffer.flip();
+                    readBuffer.get(rxBuffer, 0, count);
+                    receiver.received(rxBuffer, 0, count, timestamp);
+                }
+                else if (timestamp - started < IDLE_READ_NANOS / 2)
+                {
+                    // a VTIME timeout reads nothing and FileChannel reports that as end of
+                    // stream, so only stop on close; but a hung up line returns nothing
+                    // straight away, so wait out the timeout rather than spin
+                    Thread.sleep(IDLE_READ_NANOS / 1000000);
+                }
+            }
+        }
+        catch (ClosedChannelException ex)
+        {
+            // closed while reading
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(LinuxTtySerialBackend.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory serial link inside this process, for attaching simulated
+ * devices and test harnesses without any hardware.
+ *
+ * The host end is opened like any other port by selecting the "Loopback"
+ * backend with the port's name. The device end is a pair of streams for
+ * whatever is playing the device.
+ *
+ * @author Brian Powell
+ */
+public class LoopbackPort
+{
+
+    private static final Map<String, LoopbackPort> PORTS = new HashMap<>();
+    private static final int PIPE_CAPACITY = 1 << 16;
+    private final String name;
+    /**
+     * Bytes travelling from the device to the host, and from the host to the
+     * device, replaced each time the link is hung up
+     */
+    volatile BytePipe toHost = new BytePipe(PIPE_CAPACITY);
+    volatile BytePipe toDevice = new BytePipe(PIPE_CAPACITY);
+
+    private LoopbackPort(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Gets the loopback port with the given name, creating it if need be
+     *
+     * @param name the port name
+     * @return the loopback port
+     */
+    public static synchronized LoopbackPort get(String name)
+    {
+        LoopbackPort port = PORTS.get(name);
+        if (port == null)
+        {
+            port = new LoopbackPort(name);
+            PORTS.put(name, port);
+        }
+        return port;
+    }
+
+    /**
+     * Lists the names of the loopback ports created so far
+     *
+     * @return the port names
+     */
+    public static synchronized List<String> getNames()
+    {
+        return new ArrayList<>(PORTS.keySet());
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Breaks the link, as if the cable had been pulled. Anything blocked
+     * reading or writing either end is released, and the device end streams
+     * taken so far are closed. The port starts afresh for whoever opens it next.
+     */
+    synchronized void hangUp()
+    {
+        BytePipe oldToHost = toHost;
+        BytePipe oldToDevice = toDevice;
+        toHost = new BytePipe(PIPE_CAPACITY);
+        toDevice = new BytePipe(PIPE_CAPACITY);
+        oldToHost.close();
+        oldToDevice.close();
+    }
+
+    /**
+     * Gets the stream of bytes the host has sent to the device
+     *
+     * @return the device's receive stream
+     */
+    public InputStream getDeviceInputStream()
+    {
+        return toDevice.inputStream();
+    }
+
+    /**
+     * Gets the stream the device sends to the host through
+     *
+     * @return the device's transmit stream
+     */
+    public OutputStream getDeviceOutputStream()
+    {
+        return toHost.outputStream();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serial backend for the host end of a LoopbackPort.
+ *
+ * @author Brian Powell
+ */
+class LoopbackSerialBackend implements SerialBackend, Runnable
+{
+
+    private LoopbackPort port;
+    /**
+     * The port's pipes while this backend has it open
+     */
+    private BytePipe toHost;
+    private BytePipe toDevice;
+    private CommPortInterface receiver;
+    private Thread readerThread;
+    private volatile boolean running = false;
+    private final byte[] rxBuffer = new byte[4096];
+
+    @Override
+    public List<String> getPortNames()
+    {
+        return LoopbackPort.getNames();
+    }
+
+    @Override
+    public void open(CommPort cp, CommPortInterface receiver) throws IOException
+    {
+        this.receiver = receiver;
+        port = LoopbackPort.get(cp.getCommPortName());
+        toHost = port.toHost;
+        toDevice = port.toDevice;
+        running = true;
+        readerThread = new Thread(this, "LoopbackReader " + cp.getCommPortName());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        toDevice.write(data, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        running = false;
+        // releases a writer waiting for the device to make room, and the reader
+        port.hangUp();
+        try
+        {
+            readerThread.join(1000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                int count = toHost.read(rxBuffer, 0, rxBuffer.length, 100);
+                long timestamp = System.nanoTime();
+                if (count < 0)
+                {
+                    break;
+                }
+                if (count > 0)
+                {
+                    receiver.received(rxBuffer, 0, count, timestamp);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(LoopbackSerialBackend.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Named connection profiles, one properties file each, and the background
+ * writer that saves them and any other settings file.
+ *
+ * Saving never touches the disk on the caller's thread. The settings are
+ * copied and handed to a writer thread, and if a file is saved again before
+ * the writer has got to it only the newest copy is written, so a setting
+ * being typed in costs one write rather than one per key.
+ *
+ * Each write goes to a temporary file in the same directory, is forced to
+ * the disk and is then renamed over the old file in one atomic step, so a
+ * crash part way through leaves either the old settings or the new ones and
+ * never a truncated file.
+ *
+ * Only the profile asked for is ever read, so the number of profiles makes
+ * no difference to how long startup or switching takes.
+ *
+ * @author Brian Powell
+ */
+public class ProfileStore
+{
+
+    private static final String EXTENSION = ".properties";
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9 ._-]*");
+    private final Path directory;
+    private final ExecutorService writer;
+    /**
+     * The newest copy of each file waiting to be written, guarded by this
+     */
+    private final Map<Path, Properties> pending = new HashMap<>();
+
+    /**
+     * Creates a new instance of ProfileStore
+     *
+     * @param directory where the profiles are kept
+     */
+    public ProfileStore(Path directory)
+    {
+        this.directory = directory;
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "ProfileWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Checks a profile name can be used as a file name
+     */
+    public static boolean isValidName(String name)
+    {
+        return name != null && VALID_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Gets the file a profile is kept in
+     *
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    public Path getProfilePath(String name)
+    {
+        if (!isValidName(name))
+        {
+            throw new IllegalArgumentException("Profile name '" + name + "' is not valid");
+        }
+        return directory.resolve(name + EXTENSION);
+    }
+
+    /**
+     * Lists the profiles saved so far. Reads the directory, so call it off
+     * the FX thread.
+     *
+     * @return the profile names, sorted
+     */
+    public List<String> getProfileNames() throws IOException
+    {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+        {
+            return names;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                names.add(name.substring(0, name.length() - EXTENSION.length()));
+            }
+        }
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        return names;
+    }
+
+    /**
+     * Reads a profile, or the copy waiting to be written if there is one
+     *
+     * @return the profile's settings, empty if it has never been saved
+     */
+    public Properties loadProfile(String name) throws IOException
+    {
+        Path file = getProfilePath(name);
+        Properties settings = new Properties();
+        synchronized (this)
+        {
+            if (pending.containsKey(file))
+            {
+                settings.putAll(pending.get(file));
+                return settings;
+            }
+        }
+        if (Files.exists(file))
+        {
+            try (InputStream in = Files.newInputStream(file))
+            {
+                settings.load(in);
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Saves a profile in the background
+     */
+    public void saveProfile(String name, Properties settings)
+    {
+        save(getProfilePath(name), settings, "---CommPort Settings---");
+    }
+
+    /**
+     * Saves a settings file in the background. Only the settings set on the
+     * Properties itself are saved, not its defaults.
+     *
+     * @param file where to save them
+     * @param settings the settings, copied before this returns
+     * @param comment the comment at the top of the file
+     */
+    public void save(final Path file, Properties settings, final String comment)
+    {
+        Properties copy = new Properties();
+        copy.putAll(settings);
+        synchronized (this)
+        {
+            // a write already queued or under way for the file will pick up this copy instead
+            if (pending.put(file, copy) != null)
+            {
+                return;
+            }
+        }
+        writer.execute(new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                Properties newest;
+                synchronized (ProfileStore.this)
+                {
+                    newest = pending.get(file);
+                }
+                try
+                {
+                    storeAtomically(file, newest, comment);
+                }
+                catch (IOException ex)
+                {
+                    Logger.getLogger(ProfileStore.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                synchronized (ProfileStore.this)
+                {
+                    // the copy stays pending until written so loading never sees the old file
+                    if (pending.get(file) == newest)
+                    {
+                        pending.remove(file);
+                    }
+                    else
+                    {
+                        writer.execute(this);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for everything saved so far to be written
+     *
+     * @param timeoutMillis the longest to wait
+     */
+    public void flush(long timeoutMillis)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try
+        {
+            // a file saved again while it was being written goes back on the queue
+            do
+            {
+                writer.submit(new Runnable()
+                {
+
+                    @Override
+                    public void run()
+                    {
+                        // everything queued before this has been written
+                    }
+                }).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            while (hasPending());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | TimeoutException ex)
+        {
+            Logger.getLogger(ProfileStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private synchronized boolean hasPending()
+    {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Writes a settings file so it is either wholly replaced or not changed at all
+     */
+    public static void storeAtomically(Path file, Properties settings, String comment) throws IOException
+    {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                    OutputStream out = Channels.newOutputStream(channel))
+            {
+                settings.store(out, comment);
+                out.flush();
+                // make sure the new contents are on the disk before they replace the old
+                channel.force(true);
+            }
+            try
+            {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+/**
+ * A fixed size ring holding the most recently received bytes along with the
+ * System.nanoTime of the read that delivered each block of them.
+ *
+ * Positions are absolute byte counts since the store was created, so a
+ * position stays valid until the bytes it refers to are overwritten. The block
+ * records are kept in two primitive rings parallel to the byte ring, one for
+ * the position of the block's first byte and one for its timestamp, so
+ * appending never allocates. Blocks are numbered from zero in the order
+ * they were appended, which makes the block count a sequence that readers
+ * can keep their own cursor into.
+ *
+ * There must only be one writer. Readers may run on any thread and detect
+ * when the range they read was overwritten while they were reading it. The
+ * writer publishes how far it is about to write before copying anything in,
+ * and publishes the new write position only once the bytes are there, so a
+ * reader checks the first to know its bytes are intact and the second to
+ * know they have arrived.
+ *
+ * @author Brian Powell
+ */
+public class RxByteStore
+{
+
+    /**
+     * The received bytes
+     */
+    private final byte[] data;
+    private final int dataMask;
+    /**
+     * The absolute position of the first byte of each block
+     */
+    private final long[] blockStart;
+    /**
+     * The System.nanoTime at which each block was read
+     */
+    private final long[] blockTime;
+    /**
+     * The number of bytes in each block
+     */
+    private final int[] blockLength;
+    private final int blockMask;
+    /**
+     * The total number of bytes ever appended
+     */
+    private volatile long writePosition = 0;
+    /**
+     * The position the writer is copying up to; bytes below this less the
+     * capacity may already have been overwritten
+     */
+    private volatile long writingTo = 0;
+    /**
+     * The total number of blocks ever appended
+     */
+    private volatile long blockCount = 0;
+
+    /**
+     * Creates a new instance of RxByteStore
+     *
+     * @param dataCapacityBits log2 of the number of bytes retained
+     * @param blockCapacityBits log2 of the number of block timestamps retained
+     */
+    public RxByteStore(int dataCapacityBits, int blockCapacityBits)
+    {
+        data = new byte[1 << dataCapacityBits];
+        dataMask = data.length - 1;
+        blockStart = new long[1 << blockCapacityBits];
+        blockTime = new long[blockStart.length];
+        blockLength = new int[blockStart.length];
+        blockMask = blockStart.length - 1;
+    }
+
+    /**
+     * Appends a received block. Must only be called from the one writer thread.
+     *
+     * @param src buffer holding the received bytes
+     * @param offset index of the first byte in src
+     * @param length number of bytes
+     * @param timestamp System.nanoTime of the read
+     */
+    public void append(byte[] src, int offset, int length, long timestamp)
+    {
+        long position = writePosition;
+        // a block longer than the ring only leaves its tail behind
+        if (length > data.length)
+        {
+            offset += length - data.length;
+            position += length - data.length;
+            length = data.length;
+        }
+        // claim the bytes about to be overwritten before touching them
+        writingTo = position + length;
+        int index = (int) (position & dataMask);
+        int firstPart = Math.min(length, data.length - index);
+        System.arraycopy(src, offset, data, index, firstPart);
+        System.arraycopy(src, offset + firstPart, data, 0, length - firstPart);
+
+        long block = blockCount;
+        blockStart[(int) (block & blockMask)] = position;
+        blockTime[(int) (block & blockMask)] = timestamp;
+        blockLength[(int) (block & blockMask)] = length;
+
+        writePosition = position + length;
+        blockCount = block + 1;
+    }
+
+    /**
+     * Gets the position just after the last received byte
+     *
+     * @return the total number of bytes received
+     */
+    public long getWritePosition()
+    {
+        return writePosition;
+    }
+
+    /**
+     * Gets the position of the oldest byte still held in the store and not
+     * being overwritten by an append under way
+     *
+     * @return the oldest readable position
+     */
+    public long getOldestPosition()
+    {
+        return Math.max(0, writingTo - data.length);
+    }
+
+    /**
+     * Copies bytes out of the store.
+     *
+     * @param position the absolute position of the first byte to read
+     * @param dst the array to copy into
+     * @param offset the index in dst to copy to
+     * @param length the most bytes to copy
+     * @return the number of bytes copied, or -1 if position has already been overwritten
+     */
+    public int read(long position, byte[] dst, int offset, int length)
+    {
+        long end = writePosition;
+        if (position < writingTo - data.length)
+        {
+            return -1;
+        }
+        int count = (int) Math.min(length, end - position);
+        if (count <= 0)
+        {
+            return 0;
+        }
+        int index = (int) (position & dataMask);
+        int firstPart = Math.min(count, data.length - index);
+        System.arraycopy(data, index, dst, offset, firstPart);
+        System.arraycopy(data, 0, dst, offset + firstPart, count - firstPart);
+        // the writer may have started overwriting what we copied
+        if (position < writingTo - data.length)
+        {
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the total number of blocks ever appended
+     *
+     * @return the block count
+     */
+    public long getBlockCount()
+    {
+        return blockCount;
+    }
+
+    /**
+     * Gets the number of blocks whose records are retained
+     */
+    public int getBlockCapacity()
+    {
+        return blockStart.length;
+    }
+
+    /**
+     * Gets the position of the first byte of a block. The caller must check
+     * the block was still retained afterwards, see isBlockRetained.
+     *
+     * @param block a block number less than the block count
+     */
+    public long getBlockStart(long block)
+    {
+        return blockStart[(int) (block & blockMask)];
+    }
+
+    /**
+     * Gets the number of bytes in a block, see getBlockStart
+     */
+    public int getBlockLength(long block)
+    {
+        return blockLength[(int) (block & blockMask)];
+    }
+
+    /**
+     * Gets the System.nanoTime at which a block was read, see getBlockStart
+     */
+    public long getBlockTime(long block)
+    {
+        return blockTime[(int) (block & blockMask)];
+    }
+
+    /**
+     * Checks that the record of a block has not been reused by a later one.
+     * The writer fills in the record of block blockCount before counting it,
+     * so that slot is treated as gone already; a block whose fields were read
+     * before this returns true cannot have been torn by the writer.
+     */
+    public boolean isBlockRetained(long block)
+    {
+        return block > blockCount - blockStart.length;
+    }
+
+    /**
+     * Gets the timestamp of the read that delivered the byte at the given
+     * position.
+     *
+     * @param position an absolute byte position
+     * @return the System.nanoTime of the read, or -1 if it is no longer known
+     */
+    public long getTimestamp(long position)
+    {
+        long count = blockCount;
+        // the oldest slot may already be being rewritten, see isBlockRetained
+        long low = Math.max(0, count - blockStart.length + 1);
+        long high = count - 1;
+        if (high < low || position < blockStart[(int) (low & blockMask)] || position >= writePosition)
+        {
+            return -1;
+        }
+        // find the last block that starts at or before the position
+        while (low < high)
+        {
+            long mid = (low + high + 1) >>> 1;
+            if (blockStart[(int) (mid & blockMask)] <= position)
+            {
+                low = mid;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        long timestamp = blockTime[(int) (low & blockMask)];
+        // the writer may have reused the slot while searching
+        if (!isBlockRetained(low))
+        {
+            return -1;
+        }
+        return timestamp;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One consumer of an RxEventBus: a thread that follows the published blocks
+ * with its own cursor and hands them to a CommRxEvent.
+ *
+ * The blocks are copied out of the store into the consumer's own buffer
+ * before being delivered, so the event can take as long as it likes over
+ * them. How far behind the reader the consumer is, and how much it has lost
+ * by falling so far behind that its blocks were overwritten, can be read
+ * from any thread.
+ *
+ * @author Brian Powell
+ */
+public class RxConsumer implements Runnable
+{
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = 100000;
+    private final RxEventBus bus;
+    private final RxByteStore store;
+    private final CommRxEvent event;
+    private final String name;
+    private final RxEventBus.WaitStrategy waitStrategy;
+    private final Thread thread;
+    private final byte[] buffer = new byte[16384];
+    private volatile boolean running = true;
+    /**
+     * The next block to deliver and the position of its first byte
+     */
+    private volatile long cursor;
+    private volatile long position;
+    // written only by the consumer thread
+    private volatile long maxLagBytes = 0;
+    private volatile long overruns = 0;
+    private volatile long lostBlocks = 0;
+    private volatile long lostBytes = 0;
+
+    RxConsumer(RxEventBus bus, CommRxEvent event, String name, RxEventBus.WaitStrategy waitStrategy)
+    {
+        this.bus = bus;
+        this.store = bus.getStore();
+        this.event = event;
+        this.name = name;
+        this.waitStrategy = waitStrategy;
+        cursor = store.getBlockCount();
+        position = store.getWritePosition();
+        thread = new Thread(this, "RxConsumer " + name);
+        thread.setDaemon(true);
+    }
+
+    void start()
+    {
+        thread.start();
+    }
+
+    void stop()
+    {
+        running = false;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() != thread)
+        {
+            try
+            {
+                thread.join(1000);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    CommRxEvent getEvent()
+    {
+        return event;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public RxEventBus.WaitStrategy getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    /**
+     * Gets the number of published blocks not yet delivered
+     */
+    public long getLagBlocks()
+    {
+        return Math.max(0, store.getBlockCount() - cursor);
+    }
+
+    /**
+     * Gets the number of published bytes not yet delivered
+     */
+    public long getLagBytes()
+    {
+        return Math.max(0, store.getWritePosition() - position);
+    }
+
+    /**
+     * Gets the most bytes the consumer has been behind when it went to deliver
+     */
+    public long getMaxLagBytes()
+    {
+        return maxLagBytes;
+    }
+
+    /**
+     * Gets the number of times the consumer fell so far behind that blocks were lost
+     */
+    public long getOverruns()
+    {
+        return overruns;
+    }
+
+    public long getLostBlocks()
+    {
+        return lostBlocks;
+    }
+
+    public long getLostBytes()
+    {
+        return lostBytes;
+    }
+
+    @Override
+    public void run()
+    {
+        long next = cursor;
+        int idle = 0;
+        while (running)
+        {
+            long available = store.getBlockCount();
+            if (next >= available)
+            {
+                idle = waitFor(next, idle);
+                continue;
+            }
+            idle = 0;
+            maxLagBytes = Math.max(maxLagBytes, store.getWritePosition() - position);
+            boolean losing = false;
+            while (next < available && running)
+            {
+                long start = store.getBlockStart(next);
+                int length = store.getBlockLength(next);
+                long timestamp = store.getBlockTime(next);
+                if (!store.isBlockRetained(next) || !deliver(start, length, timestamp))
+                {
+                    // lapped by the reader
+                    if (!losing)
+                    {
+                        overruns++;
+                        losing = true;
+                    }
+                    long resume = Math.max(next + 1, resumeBlock());
+                    long resumePosition = resume < store.getBlockCount() ? store.getBlockStart(resume) : store.getWritePosition();
+                    lostBlocks += resume - next;
+                    lostBytes += Math.max(0, resumePosition - position);
+                    next = resume;
+                    position = resumePosition;
+                    cursor = next;
+                    available = store.getBlockCount();
+                    continue;
+                }
+                losing = false;
+                next++;
+                position = start + length;
+                cursor = next;
+            }
+        }
+    }
+
+    /**
+     * Finds a block to carry on from after being lapped, far enough ahead of
+     * the oldest data held that the reader does not lap the consumer again
+     * straight away
+     */
+    private long resumeBlock()
+    {
+        long count = store.getBlockCount();
+        long oldest = store.getOldestPosition();
+        long target = oldest + (store.getWritePosition() - oldest) / 4;
+        long low = Math.max(0, count - store.getBlockCapacity() / 2);
+        long high = count;
+        while (low < high)
+        {
+            long middle = (low + high) >>> 1;
+            if (store.getBlockStart(middle) < target)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies a block out of the store and hands it on, in pieces if it is larger than the buffer
+     *
+     * @return false if the bytes were overwritten before they could be copied
+     */
+    private boolean deliver(long start, int length, long timestamp)
+    {
+        long done = 0;
+        while (done < length)
+        {
+            int count = store.read(start + done, buffer, 0, (int) Math.min(buffer.length, length - done));
+            if (count < 0)
+            {
+                return false;
+            }
+            try
+            {
+                event.bytesReceived(buffer, 0, count, timestamp);
+            }
+            catch (RuntimeException ex)
+            {
+                // one broken consumer must not take the rest of the stream down with it
+                Logger.getLogger(RxConsumer.class.getName()).log(Level.SEVERE, name, ex);
+            }
+            done += count;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a block according to the wait strategy
+     *
+     * @return how many times in a row the consumer has now waited
+     */
+    private int waitFor(long sequence, int idle)
+    {
+        switch (waitStrategy)
+        {
+            case BUSY_SPIN:
+                break;
+            case YIELDING:
+                if (idle >= SPIN_TRIES)
+                {
+                    Thread.yield();
+                }
+                break;
+            case SLEEPING:
+                if (idle >= SPIN_TRIES + YIELD_TRIES)
+                {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                }
+                else if (idle >= SPIN_TRIES)
+                {
+                    Thread.yield();
+                }
+                break;
+            default:
+                try
+                {
+                    bus.await(sequence);
+                }
+                catch (InterruptedException ex)
+                {
+                    running = false;
+                }
+        }
+        return idle + 1;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands every received block to any number of consumers without the port's
+ * reader thread ever waiting on one of them.
+ *
+ * The reader publishes each block once into an RxByteStore, which is
+ * allocated up front and numbers its blocks in order. Every consumer runs on
+ * its own thread with its own cursor into that sequence, so a slow decoder
+ * only falls behind itself: the reader carries on, and a consumer that falls
+ * so far behind that its blocks have been overwritten skips to the oldest
+ * block still held and counts the loss as an overrun.
+ *
+ * How a consumer waits for the next block is up to it, see WaitStrategy.
+ * The reader only takes a lock to wake consumers when a blocking one is
+ * actually waiting.
+ *
+ * @author Brian Powell
+ */
+public class RxEventBus
+{
+
+    /**
+     * How a consumer waits when it has caught up
+     */
+    public enum WaitStrategy
+    {
+
+        /**
+         * Spins on the sequence, the lowest latency at the cost of a whole core
+         */
+        BUSY_SPIN,
+        /**
+         * Spins a little and then yields the processor
+         */
+        YIELDING,
+        /**
+         * Spins, yields and then parks for short periods, for consumers that
+         * work in batches and are not in a hurry
+         */
+        SLEEPING,
+        /**
+         * Sleeps until the reader signals, the cheapest when idle
+         */
+        BLOCKING
+    }
+    private final RxByteStore store;
+    private final List<RxConsumer> consumers = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    /**
+     * The number of blocking consumers waiting on published
+     */
+    private volatile int waiters = 0;
+
+    /**
+     * Creates a new instance of RxEventBus
+     *
+     * @param store where blocks are published
+     */
+    RxEventBus(RxByteStore store)
+    {
+        this.store = store;
+    }
+
+    public RxByteStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Publishes a block to every consumer. Must only be called from the one reader thread.
+     */
+    void publish(byte[] data, int offset, int length, long timestamp)
+    {
+        store.append(data, offset, length, timestamp);
+        if (waiters > 0)
+        {
+            lock.lock();
+            try
+            {
+                published.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts a consumer that receives every block published from now on
+     *
+     * @param event what the blocks are given to, on the consumer's thread
+     * @param name identifies the consumer in its thread name and statistics
+     * @param waitStrategy how the consumer waits for blocks
+     * @return the consumer
+     */
+    public RxConsumer add(CommRxEvent event, String name, WaitStrategy waitStrategy)
+    {
+        RxConsumer consumer = new RxConsumer(this, event, name, waitStrategy);
+        consumers.add(consumer);
+        consumer.start();
+        return consumer;
+    }
+
+    /**
+     * Stops the consumer of an event. Blocks already being delivered may still
+     * arrive until this returns, unless it is called from the consumer itself.
+     *
+     * @return false if the event was not being given blocks
+     */
+    public boolean remove(CommRxEvent event)
+    {
+        for (RxConsumer consumer : consumers)
+        {
+            if (consumer.getEvent() == event)
+            {
+                consumers.remove(consumer);
+                consumer.stop();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the consumers, for their lag and overrun counts
+     */
+    public List<RxConsumer> getConsumers()
+    {
+        return consumers;
+    }
+
+    /**
+     * Waits for a block to be published, for blocking consumers
+     *
+     * @param sequence the block the consumer wants
+     */
+    void await(long sequence) throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            waiters++;
+            try
+            {
+                // checked after counting ourselves in, so the reader either sees us or we see the block
+                if (store.getBlockCount() <= sequence)
+                {
+                    // the timeout lets a stopped consumer notice
+                    published.await(100, TimeUnit.MILLISECONDS);
+                }
+            }
+            finally
+            {
+                waiters--;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
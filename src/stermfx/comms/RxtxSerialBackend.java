@@ -0,0 +1,180 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import gnu.io.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TooManyListenersException;
+
+/**
+ * Serial backend built on the RXTX library.
+ *
+ * @author Brian Powell
+ */
+class RxtxSerialBackend implements SerialBackend, SerialPortEventListener
+{
+
+    /**
+     * A data input stream that ties to the input of the serial port
+     */
+    private DataInputStream inputStream = null;
+    /**
+     * A data output stream that ties to the output of the serial port
+     */
+    private DataOutputStream outputStream = null;
+    /**
+     * A serial port object that will be used in this port interface
+     */
+    private SerialPort serialPort = null;
+    /**
+     * The buffer that received bytes are read into before being handed on
+     */
+    private final byte[] rxBuffer = new byte[4096];
+    /**
+     * Where received bytes are delivered
+     */
+    private CommPortInterface receiver;
+
+    @Override
+    public List<String> getPortNames()
+    {
+        List<String> names = new ArrayList<>();
+        Enumeration portList = CommPortIdentifier.getPortIdentifiers();
+        while (portList.hasMoreElements())
+        {
+            CommPortIdentifier portId = (CommPortIdentifier) portList.nextElement();
+            if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL)
+            {
+                names.add(portId.getName());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void open(CommPort cp, CommPortInterface receiver) throws IOException
+    {
+        CommPortIdentifier portId;
+        Enumeration portList;
+        boolean commPortNameFound = false;
+
+        this.receiver = receiver;
+        portList = CommPortIdentifier.getPortIdentifiers();
+        try
+        {
+            while (portList.hasMoreElements())
+            {
+                portId = (CommPortIdentifier) portList.nextElement();
+                if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL)
+                {
+                    if (portId.getName().equals(cp.getCommPortName()))
+                    {
+                        commPortNameFound = true;
+                        serialPort = (SerialPort) portId.open("TstatSimulator", 2000);
+
+                        inputStream = new DataInputStream(serialPort.getInputStream());
+                        outputStream = new DataOutputStream(serialPort.getOutputStream());
+
+                        serialPort.addEventListener(this);
+                        serialPort.notifyOnDataAvailable(true);
+                        // line errors are counted for the BERT and the metrics
+                        serialPort.notifyOnOverrunError(true);
+                        serialPort.notifyOnFramingError(true);
+                        serialPort.notifyOnParityError(true);
+                        serialPort.notifyOnBreakInterrupt(true);
+                        //serialPort.notifyOnOutputEmpty(true);
+                        serialPort.setSerialPortParams(Integer.parseInt(cp.getBaudRate()),
+                                cp.getDataBitsRaw(),
+                                cp.getStopBitsRaw(),
+                                cp.getParityRaw());
+                        serialPort.setFlowControlMode(cp.getFlowControlRaw());
+                    }
+                }
+            }
+        }
+        catch (PortInUseException | TooManyListenersException | UnsupportedCommOperationException ex)
+        {
+            throw new IOException(ex.getMessage(), ex);
+        }
+        if (!commPortNameFound)
+        {
+            throw new IOException("CommPort name '" + cp.getCommPortName() + "' not found!");
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        outputStream.write(data, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serialPort.close();
+        inputStream.close();
+        outputStream.close();
+    }
+
+    @Override
+    public void serialEvent(SerialPortEvent serialPortEvent)
+    {
+        switch(serialPortEvent.getEventType()) {
+            case SerialPortEvent.BI:
+                receiver.lineError(CommPortInterface.LINE_BREAK);
+                break;
+            case SerialPortEvent.OE:
+                receiver.lineError(CommPortInterface.LINE_OVERRUN);
+                break;
+            case SerialPortEvent.FE:
+                receiver.lineError(CommPortInterface.LINE_FRAMING);
+                break;
+            case SerialPortEvent.PE:
+                receiver.lineError(CommPortInterface.LINE_PARITY);
+                break;
+            case SerialPortEvent.CD:
+            case SerialPortEvent.CTS:
+            case SerialPortEvent.DSR:
+            case SerialPortEvent.RI:
+            case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
+                break;
+            case SerialPortEvent.DATA_AVAILABLE:
+                try {
+                    // Signal rx events for each block of received bytes
+                    int available;
+                    while ((available = inputStream.available()) > 0) {
+                        int count = inputStream.read(rxBuffer, 0, Math.min(available, rxBuffer.length));
+                        long timestamp = System.nanoTime();
+                        if (count <= 0) {
+                            break;
+                        }
+                        receiver.received(rxBuffer, 0, count, timestamp);
+                    }
+                } catch (Exception ex) { }
+
+                break;
+        }
+    }
+}
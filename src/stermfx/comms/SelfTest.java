@@ -0,0 +1,478 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Round trip latency and throughput test for a port with its transmit looped
+ * back to its receive, by a loopback plug, a PTY loopback or an echoing device.
+ *
+ * Probes are 16 bytes: STX, an 8 digit hex sequence number, 6 letters derived
+ * from the sequence number and ETX. They are all printable apart from the
+ * framing, so they pass through software flow control and show up readably in
+ * the terminal. The send time of each probe is kept by sequence number, and a
+ * probe's latency is the time stamp of the received block that completed it
+ * less its send time, which covers the write, the adapter, the driver and the
+ * backend's read but not the display.
+ *
+ * The test runs in two phases. The idle phase sends one probe at a time and
+ * waits for that probe to come back; one that misses its timeout is lost,
+ * and if it turns up later it is counted as late rather than returned. The
+ * loaded phase keeps a window of probes in
+ * flight for a fixed time, measuring sustained throughput against the line
+ * rate for the configured baud rate along with latency under load.
+ *
+ * @author Brian Powell
+ */
+public class SelfTest implements CommRxEvent
+{
+
+    private static final int PROBE_LENGTH = 16;
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    /**
+     * How long to wait for an idle probe, and for the loaded phase to drain
+     */
+    private static final long PROBE_TIMEOUT_MILLIS = 1000;
+    /**
+     * The most latency samples kept for the loaded phase
+     */
+    private static final int MAX_LOADED_SAMPLES = 1 << 20;
+    /**
+     * Send times by sequence number, modulo the length
+     */
+    private final long[] sentAt = new long[1 << 16];
+    private final CommPortInterface cpi;
+    private final CommPort cp;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final byte[] probe = new byte[PROBE_LENGTH];
+    /**
+     * The probe being reassembled by the receive thread
+     */
+    private final byte[] incoming = new byte[PROBE_LENGTH];
+    private int incomingLength = 0;
+    /**
+     * Where the receive thread records latencies, written with lock held
+     */
+    private long[] samples;
+    private int sampleCount;
+    private volatile long receivedProbes;
+    private long corruptProbes;
+    /**
+     * Probes numbered below this are late and not counted, guarded by lock
+     */
+    private long lateBelow;
+    private long lateProbes;
+    private volatile long lastSequence;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new instance of SelfTest
+     *
+     * @param cpi the open port to test
+     * @param cp its settings
+     */
+    SelfTest(CommPortInterface cpi, CommPort cp)
+    {
+        this.cpi = cpi;
+        this.cp = cp;
+    }
+
+    /**
+     * Stops the test as soon as possible. Safe to call from any thread.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        lock.lock();
+        try
+        {
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs both phases, blocking until they finish
+     *
+     * @param probes the number of idle probes
+     * @param loadedMillis how long to run the loaded phase
+     * @return the report
+     * @throws IOException if sending fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String run(int probes, long loadedMillis) throws IOException, InterruptedException
+    {
+        double lineRate = lineRate(cp);
+        StringBuilder report = new StringBuilder();
+        report.append("sTermFX loopback self test, ").append(new Date()).append('\n');
+        report.append(String.format(Locale.ENGLISH, "Port %s (%s backend), %s baud, %s data, %s parity, %s stop, %s flow control%n",
+                cp.getCommPortName(), cp.getBackend(), cp.getBaudRate(), cp.getDataBits(), cp.getParity(),
+                cp.getStopBits(), cp.getFlowControl()));
+        report.append(String.format(Locale.ENGLISH, "Line rate %.0f bytes/s%n", lineRate));
+        // probes are timed by the reader's timestamps, but a prompt consumer keeps the window moving
+        cpi.addRxEvent(this, "SelfTest", RxEventBus.WaitStrategy.YIELDING);
+        try
+        {
+            runIdle(probes, report);
+            if (!cancelled)
+            {
+                // keep about 50 ms of the line rate in flight
+                int window = Math.max(4, (int) (lineRate / 20) / PROBE_LENGTH);
+                runLoaded(loadedMillis, window, lineRate, report);
+            }
+        }
+        finally
+        {
+            cpi.removeRxEvent(this);
+        }
+        if (cancelled)
+        {
+            report.append("Cancelled\n");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Gets the bytes per second the configured framing allows
+     */
+    static double lineRate(CommPort cp)
+    {
+        double bitsPerByte = 1 + Integer.parseInt(cp.getDataBits().trim())
+                + (cp.getParity().equalsIgnoreCase("none") ? 0 : 1)
+                + Double.parseDouble(cp.getStopBits().trim());
+        return Integer.parseInt(cp.getBaudRate().trim()) / bitsPerByte;
+    }
+
+    private void runIdle(int probes, StringBuilder report) throws IOException, InterruptedException
+    {
+        reset(probes);
+        long lost = 0;
+        for (long sequence = 0; sequence < probes && !cancelled; sequence++)
+        {
+            lock.lock();
+            try
+            {
+                // one that timed out must not stand in for this one
+                lateBelow = sequence;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            send(sequence);
+            if (!awaitSequence(sequence, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS)))
+            {
+                lost++;
+            }
+        }
+        lock.lock();
+        try
+        {
+            report.append(String.format(Locale.ENGLISH, "%nIdle round trip: %d probes, %d returned, %d lost, %d late, %d corrupt%n",
+                    probes, sampleCount, lost, lateProbes, corruptProbes));
+            appendLatency(report);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void runLoaded(long millis, int window, double lineRate, StringBuilder report)
+            throws IOException, InterruptedException
+    {
+        reset(MAX_LOADED_SAMPLES);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(millis);
+        long sequence = 0;
+        while (!cancelled && System.nanoTime() < end)
+        {
+            // wait for the window to open, or for a probe to be overtaken and presumed lost
+            while (!cancelled && sequence - lastSequence > window)
+            {
+                if (!await(receivedProbes + 1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS)))
+                {
+                    break;
+                }
+            }
+            send(sequence++);
+        }
+        long sendEnd = System.nanoTime();
+        await(sequence, sendEnd + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS));
+        lock.lock();
+        try
+        {
+            double seconds = (sendEnd - start) / 1e9;
+            double throughput = receivedProbes * PROBE_LENGTH / seconds;
+            report.append(String.format(Locale.ENGLISH, "%nLoaded: %.1f s with up to %d probes in flight%n", seconds, window));
+            report.append(String.format(Locale.ENGLISH, "  sent %d bytes, received %d bytes, %d probes lost, %d corrupt%n",
+                    sequence * PROBE_LENGTH, receivedProbes * PROBE_LENGTH, sequence - receivedProbes, corruptProbes));
+            report.append(String.format(Locale.ENGLISH, "  throughput %.0f bytes/s, %.1f%% of the line rate%n",
+                    throughput, 100 * throughput / lineRate));
+            appendLatency(report);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void reset(int maxSamples)
+    {
+        lock.lock();
+        try
+        {
+            samples = new long[maxSamples];
+            sampleCount = 0;
+            receivedProbes = 0;
+            corruptProbes = 0;
+            lateBelow = 0;
+            lateProbes = 0;
+            lastSequence = -1;
+            incomingLength = 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the given number of probes have been received
+     *
+     * @return false on timeout or cancel
+     */
+    private boolean await(long count, long deadline) throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (!cancelled && receivedProbes < count)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                changed.awaitNanos(remaining);
+            }
+            return !cancelled;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a probe or any later one has been received
+     *
+     * @return false on timeout or cancel
+     */
+    private boolean awaitSequence(long sequence, long deadline) throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (!cancelled && lastSequence < sequence)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                changed.awaitNanos(remaining);
+            }
+            return !cancelled;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void send(long sequence) throws IOException
+    {
+        probe[0] = STX;
+        for (int i = 0; i < 8; i++)
+        {
+            probe[1 + i] = HEX[(int) (sequence >>> (28 - 4 * i)) & 0xF];
+        }
+        for (int i = 0; i < 6; i++)
+        {
+            probe[9 + i] = letter(sequence, i);
+        }
+        probe[15] = ETX;
+        sentAt[(int) (sequence & (sentAt.length - 1))] = System.nanoTime();
+        cpi.sendBytes(probe, 0, PROBE_LENGTH);
+    }
+
+    private static byte letter(long sequence, int i)
+    {
+        return (byte) ('A' + (sequence * 7 + i) % 26);
+    }
+
+    @Override
+    public void bytesReceived(byte[] data, int offset, int length, long timestamp)
+    {
+        lock.lock();
+        try
+        {
+            for (int i = offset; i < offset + length; i++)
+            {
+                byte b = data[i];
+                if (b == STX)
+                {
+                    // a new probe starts, whatever was being assembled is abandoned
+                    if (incomingLength > 0)
+                    {
+                        corruptProbes++;
+                    }
+                    incomingLength = 0;
+                }
+                else if (incomingLength == 0)
+                {
+                    // not part of a probe
+                    continue;
+                }
+                incoming[incomingLength++] = b;
+                if (incomingLength == PROBE_LENGTH)
+                {
+                    probeReceived(timestamp);
+                    incomingLength = 0;
+                }
+            }
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks a complete probe and records its latency, called with the lock held
+     */
+    private void probeReceived(long timestamp)
+    {
+        long sequence = 0;
+        for (int i = 1; i <= 8; i++)
+        {
+            int digit = Character.digit(incoming[i], 16);
+            if (digit < 0)
+            {
+                corruptProbes++;
+                return;
+            }
+            sequence = (sequence << 4) | digit;
+        }
+        for (int i = 0; i < 6; i++)
+        {
+            if (incoming[9 + i] != letter(sequence, i))
+            {
+                corruptProbes++;
+                return;
+            }
+        }
+        if (incoming[15] != ETX)
+        {
+            corruptProbes++;
+            return;
+        }
+        if (sequence < lateBelow)
+        {
+            // already given up on and counted as lost
+            lateProbes++;
+            return;
+        }
+        receivedProbes++;
+        lastSequence = Math.max(lastSequence, sequence);
+        if (sampleCount < samples.length)
+        {
+            samples[sampleCount++] = timestamp - sentAt[(int) (sequence & (sentAt.length - 1))];
+        }
+    }
+
+    /**
+     * Appends the latency percentiles and a log2 histogram, called with the lock held
+     */
+    private void appendLatency(StringBuilder report)
+    {
+        if (sampleCount == 0)
+        {
+            report.append("  no latency samples\n");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : sorted)
+        {
+            total += sample;
+        }
+        report.append(String.format(Locale.ENGLISH,
+                "  latency ms: min %.3f  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                sorted[0] / 1e6, total / (double) sorted.length / 1e6, percentile(sorted, 50) / 1e6,
+                percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6, percentile(sorted, 99.9) / 1e6,
+                sorted[sorted.length - 1] / 1e6));
+
+        // bucket k holds latencies from 2^(k-1) up to 2^k microseconds
+        int[] buckets = new int[64];
+        int first = 63;
+        int last = 0;
+        int largest = 0;
+        for (long sample : sorted)
+        {
+            long micros = Math.max(0, sample / 1000);
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            buckets[bucket]++;
+            first = Math.min(first, bucket);
+            last = Math.max(last, bucket);
+            largest = Math.max(largest, buckets[bucket]);
+        }
+        for (int bucket = first; bucket <= last; bucket++)
+        {
+            int bar = (int) Math.round(50.0 * buckets[bucket] / largest);
+            char[] hashes = new char[bar];
+            Arrays.fill(hashes, '#');
+            report.append(String.format(Locale.ENGLISH, "  < %10.3f ms %8d %6.2f%% %s%n",
+                    (1L << bucket) / 1e3, buckets[bucket], 100.0 * buckets[bucket] / sorted.length, new String(hashes)));
+        }
+    }
+
+    private static long percentile(long[] sorted, double percent)
+    {
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The native side of a CommPortInterface, one implementation per way of
+ * talking to the serial hardware.
+ *
+ * @author Brian Powell
+ */
+interface SerialBackend
+{
+    /**
+     * Lists the names of the serial ports this backend can open
+     *
+     * @return the port names
+     */
+    public List<String> getPortNames();
+
+    /**
+     * Opens and configures a port. Received bytes must be passed to
+     * receiver.received() from a single thread, stamped as soon as they are read.
+     *
+     * @param cp the port settings
+     * @param receiver the comm port interface to deliver received bytes to
+     * @throws IOException the port could not be opened or configured
+     */
+    public void open(CommPort cp, CommPortInterface receiver) throws IOException;
+
+    /**
+     * Writes bytes to the port, blocking until they have been accepted
+     *
+     * @throws IOException the write failed
+     */
+    public void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Closes the port
+     *
+     * @throws IOException the close failed
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,444 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.comms;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything sent to the port goes through here, to be written by a
+ * dedicated thread, so a write held up by flow control never blocks the
+ * sender.
+ *
+ * There are two lanes. Keystrokes go in a small ring that is always emptied
+ * first; a full ring rejects the key rather than blocking the UI. Bulk data
+ * from scripts, pastes and network clients is copied into a bounded ring
+ * and the sender waits while it is full. Bulk data is written a chunk of
+ * about 10 ms of line time at a time, so a keystroke never waits for more
+ * than one chunk to go out.
+ *
+ * The time from a key being queued to its write returning is recorded as
+ * the keystroke latency. A write that fails is reported to the next sender
+ * and everything queued is dropped.
+ *
+ * @author Brian Powell
+ */
+public class TxQueue implements Runnable
+{
+
+    private static final int KEY_CAPACITY = 1024;
+    private static final int BULK_CAPACITY = 65536;
+    private static final int LATENCY_BUCKETS = 40;
+    private final SerialBackend backend;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    /**
+     * Keystrokes and when each was queued, guarded by lock
+     */
+    private final byte[] keys = new byte[KEY_CAPACITY];
+    private final long[] keyTimes = new long[KEY_CAPACITY];
+    private long keysIn = 0;
+    private long keysOut = 0;
+    /**
+     * Bulk data, guarded by lock
+     */
+    private final byte[] bulk = new byte[BULK_CAPACITY];
+    private long bulkIn = 0;
+    private long bulkOut = 0;
+    private IOException failure = null;
+    private boolean closed = false;
+    /**
+     * Used only by the writer thread
+     */
+    private final byte[] chunk;
+    private final long[] chunkTimes = new long[KEY_CAPACITY];
+    private final Thread writer;
+
+    // keystroke latency, guarded by lock
+    private long keyCount = 0;
+    private long lastLatency = 0;
+    private long maxLatency = 0;
+    private long totalLatency = 0;
+    /**
+     * Counts of latencies by power of two nanoseconds
+     */
+    private final long[] latencyHistogram = new long[LATENCY_BUCKETS];
+
+    /**
+     * Creates a new instance of TxQueue and starts its writer thread
+     *
+     * @param backend where to write
+     * @param baudRate sets the size of the bulk chunks
+     */
+    TxQueue(SerialBackend backend, int baudRate, String portName)
+    {
+        this.backend = backend;
+        // about 10 ms worth at 10 bits a character
+        chunk = new byte[Math.max(16, Math.min(4096, baudRate / 1000))];
+        writer = new Thread(this, "TxQueue " + portName);
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MAX_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Queues a keystroke ahead of any bulk data. Never blocks.
+     *
+     * @throws IOException the key ring is full or an earlier write failed
+     */
+    public void sendKey(byte key) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            checkFailure();
+            if (keysIn - keysOut == KEY_CAPACITY)
+            {
+                throw new IOException("Transmit queue full");
+            }
+            int index = (int) (keysIn % KEY_CAPACITY);
+            keys[index] = key;
+            keyTimes[index] = System.nanoTime();
+            keysIn++;
+            notEmpty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues bulk data, waiting for room as needed
+     *
+     * @throws IOException an earlier write failed or the port was closed
+     */
+    public void send(byte[] data, int offset, int length) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (length > 0)
+            {
+                while (failure == null && !closed && bulkIn - bulkOut == BULK_CAPACITY)
+                {
+                    notFull.await();
+                }
+                checkFailure();
+                int index = (int) (bulkIn % BULK_CAPACITY);
+                int count = (int) Math.min(length, Math.min(BULK_CAPACITY - (bulkIn - bulkOut), BULK_CAPACITY - index));
+                System.arraycopy(data, offset, bulk, index, count);
+                bulkIn += count;
+                offset += count;
+                length -= count;
+                notEmpty.signal();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues as much bulk data as there is room for without waiting
+     *
+     * @return the number of bytes queued, 0 if the queue is full
+     * @throws IOException an earlier write failed or the port was closed
+     */
+    public int offer(byte[] data, int offset, int length) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            checkFailure();
+            int queued = 0;
+            while (queued < length && bulkIn - bulkOut < BULK_CAPACITY)
+            {
+                int index = (int) (bulkIn % BULK_CAPACITY);
+                int count = (int) Math.min(length - queued,
+                        Math.min(BULK_CAPACITY - (bulkIn - bulkOut), BULK_CAPACITY - index));
+                System.arraycopy(data, offset + queued, bulk, index, count);
+                bulkIn += count;
+                queued += count;
+            }
+            if (queued > 0)
+            {
+                notEmpty.signal();
+            }
+            return queued;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if (failure != null)
+        {
+            throw new IOException("Transmit failed: " + failure.getMessage(), failure);
+        }
+        if (closed)
+        {
+            throw new IOException("Port closed");
+        }
+    }
+
+    /**
+     * Gets the number of bytes waiting to be written
+     */
+    public long getQueued()
+    {
+        lock.lock();
+        try
+        {
+            return keysIn - keysOut + bulkIn - bulkOut;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getKeyCount()
+    {
+        lock.lock();
+        try
+        {
+            return keyCount;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the time the last keystroke took from being queued to being written
+     */
+    public long getLastKeyLatencyNanos()
+    {
+        lock.lock();
+        try
+        {
+            return lastLatency;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxKeyLatencyNanos()
+    {
+        lock.lock();
+        try
+        {
+            return maxLatency;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getMeanKeyLatencyNanos()
+    {
+        lock.lock();
+        try
+        {
+            return keyCount == 0 ? 0 : totalLatency / keyCount;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets an upper bound on a percentile of the keystroke latency, to within a factor of two
+     *
+     * @param percentile from 0 to 100
+     */
+    public long getKeyLatencyPercentileNanos(double percentile)
+    {
+        lock.lock();
+        try
+        {
+            long target = (long) Math.ceil(keyCount * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++)
+            {
+                seen += latencyHistogram[bucket];
+                if (seen >= target && seen > 0)
+                {
+                    return Math.min(maxLatency, 1L << bucket);
+                }
+            }
+            return maxLatency;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writer, dropping anything still queued. The backend should be
+     * closed straight after to release a write blocked by flow control.
+     */
+    void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the writer thread to finish after the backend is closed
+     */
+    void join()
+    {
+        try
+        {
+            writer.join(1000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            int count;
+            int keyBytes;
+            lock.lock();
+            try
+            {
+                while (!closed && keysIn == keysOut && bulkIn == bulkOut)
+                {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed)
+                {
+                    return;
+                }
+                if (keysIn != keysOut)
+                {
+                    // every keystroke waiting goes out in one write
+                    keyBytes = (int) Math.min(keysIn - keysOut, chunk.length);
+                    for (int i = 0; i < keyBytes; i++)
+                    {
+                        int index = (int) ((keysOut + i) % KEY_CAPACITY);
+                        chunk[i] = keys[index];
+                        chunkTimes[i] = keyTimes[index];
+                    }
+                    keysOut += keyBytes;
+                    count = keyBytes;
+                }
+                else
+                {
+                    keyBytes = 0;
+                    int index = (int) (bulkOut % BULK_CAPACITY);
+                    count = (int) Math.min(chunk.length, Math.min(bulkIn - bulkOut, BULK_CAPACITY - index));
+                    System.arraycopy(bulk, index, chunk, 0, count);
+                    bulkOut += count;
+                    notFull.signalAll();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                backend.write(chunk, 0, count);
+            }
+            catch (IOException ex)
+            {
+                lock.lock();
+                try
+                {
+                    if (!closed)
+                    {
+                        Logger.getLogger(TxQueue.class.getName()).log(Level.SEVERE, null, ex);
+                        failure = ex;
+                    }
+                    // drop whatever is queued and release any waiting senders
+                    keysOut = keysIn;
+                    bulkOut = bulkIn;
+                    notFull.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            if (keyBytes > 0)
+            {
+                long now = System.nanoTime();
+                lock.lock();
+                try
+                {
+                    for (int i = 0; i < keyBytes; i++)
+                    {
+                        long latency = now - chunkTimes[i];
+                        keyCount++;
+                        lastLatency = latency;
+                        maxLatency = Math.max(maxLatency, latency);
+                        totalLatency += latency;
+                        latencyHistogram[Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(1, latency) - 1))]++;
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
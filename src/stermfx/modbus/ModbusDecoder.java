@@ -0,0 +1,193 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.modbus;
+
+/**
+ * Turns Modbus frames into readable descriptions.
+ *
+ * A frame on its own does not say whether it is a request or a response, so
+ * the common functions are told apart by their length: a read request is
+ * always 8 bytes and its response carries a byte count, a write multiple
+ * request carries a byte count and its response is 8 bytes.
+ *
+ * @author Brian Powell
+ */
+public final class ModbusDecoder
+{
+
+    private static final String[] FUNCTION_NAMES = new String[128];
+    static
+    {
+        FUNCTION_NAMES[1] = "Read Coils";
+        FUNCTION_NAMES[2] = "Read Discrete Inputs";
+        FUNCTION_NAMES[3] = "Read Holding Registers";
+        FUNCTION_NAMES[4] = "Read Input Registers";
+        FUNCTION_NAMES[5] = "Write Single Coil";
+        FUNCTION_NAMES[6] = "Write Single Register";
+        FUNCTION_NAMES[7] = "Read Exception Status";
+        FUNCTION_NAMES[8] = "Diagnostics";
+        FUNCTION_NAMES[11] = "Get Comm Event Counter";
+        FUNCTION_NAMES[12] = "Get Comm Event Log";
+        FUNCTION_NAMES[15] = "Write Multiple Coils";
+        FUNCTION_NAMES[16] = "Write Multiple Registers";
+        FUNCTION_NAMES[17] = "Report Server ID";
+        FUNCTION_NAMES[20] = "Read File Record";
+        FUNCTION_NAMES[21] = "Write File Record";
+        FUNCTION_NAMES[22] = "Mask Write Register";
+        FUNCTION_NAMES[23] = "Read/Write Multiple Registers";
+        FUNCTION_NAMES[24] = "Read FIFO Queue";
+        FUNCTION_NAMES[43] = "Encapsulated Interface";
+    }
+    private static final String[] EXCEPTION_NAMES = {
+        null, "Illegal Function", "Illegal Data Address", "Illegal Data Value", "Server Device Failure",
+        "Acknowledge", "Server Device Busy", null, "Memory Parity Error", null,
+        "Gateway Path Unavailable", "Gateway Target Failed To Respond"
+    };
+    /**
+     * The most register values listed for a frame
+     */
+    private static final int MAX_VALUES = 8;
+
+    private ModbusDecoder()
+    {
+    }
+
+    /**
+     * Gets the name of a function code, ignoring the exception bit
+     */
+    public static String functionName(int function)
+    {
+        String name = FUNCTION_NAMES[function & 0x7F];
+        return name != null ? name : "Function " + (function & 0x7F);
+    }
+
+    /**
+     * Describes the data of a frame
+     *
+     * @param frame the frame from the address through the CRC
+     * @param length the length of the frame
+     * @param out where the description is appended
+     */
+    public static void describe(byte[] frame, int length, StringBuilder out)
+    {
+        if (length < 4)
+        {
+            appendHex(frame, 0, length, out);
+            return;
+        }
+        int function = frame[1] & 0xFF;
+        // the data between the function code and the CRC
+        int dataLength = length - 4;
+        if ((function & 0x80) != 0)
+        {
+            int code = frame[2] & 0xFF;
+            out.append("exception ").append(code);
+            if (code < EXCEPTION_NAMES.length && EXCEPTION_NAMES[code] != null)
+            {
+                out.append(' ').append(EXCEPTION_NAMES[code]);
+            }
+            return;
+        }
+        switch (function)
+        {
+            case 1:
+            case 2:
+            case 3:
+            case 4:
+                if (length == 8)
+                {
+                    out.append("start ").append(word(frame, 2)).append(" count ").append(word(frame, 4));
+                }
+                else
+                {
+                    out.append(frame[2] & 0xFF).append(" bytes");
+                    if (function >= 3)
+                    {
+                        appendWords(frame, 3, Math.min(frame[2] & 0xFF, dataLength - 1), out);
+                    }
+                    else
+                    {
+                        out.append(':');
+                        appendHex(frame, 3, Math.min(frame[2] & 0xFF, dataLength - 1), out);
+                    }
+                }
+                break;
+            case 5:
+            case 6:
+                if (dataLength >= 4)
+                {
+                    out.append("address ").append(word(frame, 2)).append(" value ").append(word(frame, 4));
+                }
+                break;
+            case 15:
+            case 16:
+                if (dataLength >= 4)
+                {
+                    out.append("start ").append(word(frame, 2)).append(" count ").append(word(frame, 4));
+                }
+                if (length > 8 && function == 16)
+                {
+                    appendWords(frame, 7, Math.min(frame[6] & 0xFF, dataLength - 5), out);
+                }
+                break;
+            case 22:
+                if (dataLength >= 6)
+                {
+                    out.append("address ").append(word(frame, 2)).append(" and ").append(word(frame, 4))
+                            .append(" or ").append(word(frame, 6));
+                }
+                break;
+            default:
+                appendHex(frame, 2, dataLength, out);
+        }
+    }
+
+    private static int word(byte[] frame, int offset)
+    {
+        return (frame[offset] & 0xFF) << 8 | (frame[offset + 1] & 0xFF);
+    }
+
+    private static void appendWords(byte[] frame, int offset, int byteCount, StringBuilder out)
+    {
+        int words = byteCount / 2;
+        out.append(':');
+        for (int i = 0; i < Math.min(words, MAX_VALUES); i++)
+        {
+            out.append(' ').append(word(frame, offset + i * 2));
+        }
+        if (words > MAX_VALUES)
+        {
+            out.append(" ...");
+        }
+    }
+
+    private static void appendHex(byte[] frame, int offset, int length, StringBuilder out)
+    {
+        for (int i = offset; i < offset + Math.min(length, MAX_VALUES * 2); i++)
+        {
+            out.append(' ').append(Character.forDigit((frame[i] >> 4) & 0xF, 16))
+                    .append(Character.forDigit(frame[i] & 0xF, 16));
+        }
+        if (length > MAX_VALUES * 2)
+        {
+            out.append(" ...");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.modbus;
+
+import java.util.Locale;
+import javafx.animation.AnimationTimer;
+import javafx.event.EventHandler;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+
+/**
+ * Shows the frames of a ModbusRtuAnalyzer as a table, with its counters
+ * above.
+ *
+ * Only the frames that fit are decoded, and nothing is redrawn until a
+ * frame completes or the table is scrolled. While scrolled to the end the
+ * table follows new frames.
+ *
+ * @author Brian Powell
+ */
+public class ModbusPanel extends Pane
+{
+
+    private static final Font FONT = Font.font("Monospaced", 12);
+    private static final double LINE_HEIGHT = 16;
+    private static final Color BAD = Color.web("#ff6666");
+    private static final Color EXCEPTION = Color.web("#ffcc00");
+    private static final Color GOOD = Color.web("#33ff66");
+    private final ModbusRtuAnalyzer analyzer;
+    private final Canvas canvas = new Canvas();
+    private final AnimationTimer timer;
+    private final byte[] frame = new byte[ModbusRtuAnalyzer.MAX_FRAME];
+    private final StringBuilder line = new StringBuilder();
+    private long drawnVersion = -1;
+    private double drawnWidth = -1;
+    private double drawnHeight = -1;
+    /**
+     * How many frames back from the newest the table is scrolled
+     */
+    private long scrollBack = 0;
+    private boolean scrolled = true;
+
+    /**
+     * Creates a new instance of ModbusPanel
+     *
+     * @param analyzer the analyzer whose frames are shown
+     */
+    public ModbusPanel(ModbusRtuAnalyzer analyzer)
+    {
+        this.analyzer = analyzer;
+        getChildren().add(canvas);
+        setOnScroll(new EventHandler<ScrollEvent>()
+        {
+
+            @Override
+            public void handle(ScrollEvent event)
+            {
+                scrollBack = Math.max(0, scrollBack + (event.getDeltaY() > 0 ? 3 : -3));
+                scrolled = true;
+            }
+        });
+        timer = new AnimationTimer()
+        {
+
+            @Override
+            public void handle(long now)
+            {
+                // close a frame the line has gone quiet after
+                ModbusPanel.this.analyzer.poll(System.nanoTime());
+                redrawIfNeeded();
+            }
+        };
+    }
+
+    /**
+     * Starts redrawing as frames arrive
+     */
+    public void start()
+    {
+        timer.start();
+    }
+
+    /**
+     * Stops redrawing
+     */
+    public void stop()
+    {
+        timer.stop();
+    }
+
+    @Override
+    protected void layoutChildren()
+    {
+        canvas.setWidth(getWidth());
+        canvas.setHeight(getHeight());
+    }
+
+    private void redrawIfNeeded()
+    {
+        long version = analyzer.getVersion();
+        if (version == drawnVersion && !scrolled && canvas.getWidth() == drawnWidth && canvas.getHeight() == drawnHeight)
+        {
+            return;
+        }
+        drawnVersion = version;
+        scrolled = false;
+        drawnWidth = canvas.getWidth();
+        drawnHeight = canvas.getHeight();
+        draw();
+    }
+
+    private void draw()
+    {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.setFill(Color.BLACK);
+        gc.fillRect(0, 0, drawnWidth, drawnHeight);
+        gc.setFont(FONT);
+
+        gc.setFill(Color.WHITE);
+        gc.fillText(String.format(Locale.ENGLISH,
+                "Frames %d good  %d CRC errors  %d short  %d long  %d exceptions  %d bytes  gap %.2f ms",
+                analyzer.getGoodFrames(), analyzer.getCrcErrors(), analyzer.getShortFrames(),
+                analyzer.getLongFrames(), analyzer.getExceptions(), analyzer.getByteCount(),
+                analyzer.getGapNanos() / 1e6), 4, LINE_HEIGHT - 4);
+        gc.setFill(Color.GRAY);
+        gc.fillText(String.format(Locale.ENGLISH, "%8s %9s %4s %-30s %4s %-6s %s",
+                "Frame", "Gap ms", "Addr", "Function", "Len", "Status", "Data"), 4, LINE_HEIGHT * 2 - 4);
+
+        int rows = (int) (drawnHeight / LINE_HEIGHT) - 2;
+        long count = analyzer.getFrameCount();
+        long first = analyzer.getFirstFrame();
+        scrollBack = Math.max(0, Math.min(scrollBack, count - first - rows));
+        long top = Math.max(first, count - scrollBack - rows);
+        for (int row = 0; row < rows && top + row < count - scrollBack; row++)
+        {
+            long index = top + row;
+            int length = analyzer.getFrame(index, frame);
+            int status = analyzer.getFrameStatus(index);
+            long gap = index > first ? analyzer.getFrameTime(index) - analyzer.getFrameTime(index - 1) : 0;
+            line.setLength(0);
+            line.append(String.format(Locale.ENGLISH, "%8d %9.3f %4d %-30s %4d %-6s ",
+                    index, gap / 1e6, length > 0 ? frame[0] & 0xFF : 0,
+                    length > 1 ? ModbusDecoder.functionName(frame[1] & 0xFF) : "", length, statusText(status)));
+            ModbusDecoder.describe(frame, length, line);
+            gc.setFill((status & ~ModbusRtuAnalyzer.STATUS_EXCEPTION) != 0 ? BAD
+                    : status != 0 ? EXCEPTION : GOOD);
+            gc.fillText(line.toString(), 4, (row + 3) * LINE_HEIGHT - 4);
+        }
+    }
+
+    private static String statusText(int status)
+    {
+        if ((status & ModbusRtuAnalyzer.STATUS_TOO_SHORT) != 0)
+        {
+            return "SHORT";
+        }
+        if ((status & ModbusRtuAnalyzer.STATUS_TOO_LONG) != 0)
+        {
+            return "LONG";
+        }
+        if ((status & ModbusRtuAnalyzer.STATUS_CRC_ERROR) != 0)
+        {
+            return "CRC";
+        }
+        return (status & ModbusRtuAnalyzer.STATUS_EXCEPTION) != 0 ? "EXCEPT" : "OK";
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.modbus;
+
+import gnu.io.SerialPort;
+import java.util.Arrays;
+import stermfx.comms.CommPort;
+import stermfx.comms.CommRxEvent;
+
+/**
+ * Splits received bytes into Modbus RTU frames and checks them.
+ *
+ * RTU frames have no delimiter; a frame ends when the line has been quiet
+ * for 3.5 character times (fixed at 1.75 ms above 19200 baud). Bytes come
+ * in blocks with the time each block was read, so the gap before a block
+ * is taken as the time since the previous block less the time the block
+ * itself took to arrive on the wire. Frames that the driver has already
+ * joined into one block cannot be told apart and show up as one bad frame.
+ * A frame still open when the line goes quiet is closed by poll().
+ *
+ * The CRC is kept up to date a byte at a time from a 256 entry table; run
+ * over a whole frame including its CRC it comes out as zero for a good
+ * frame. Frames are written straight into a ring of fixed size slots, so
+ * nothing is allocated as they arrive.
+ *
+ * The ring and counters are locked on this object.
+ *
+ * @author Brian Powell
+ */
+public class ModbusRtuAnalyzer implements CommRxEvent
+{
+
+    /**
+     * The largest RTU frame, address through CRC
+     */
+    public static final int MAX_FRAME = 256;
+    public static final int STATUS_CRC_ERROR = 1;
+    public static final int STATUS_TOO_SHORT = 2;
+    public static final int STATUS_TOO_LONG = 4;
+    public static final int STATUS_EXCEPTION = 8;
+    private static final int[] CRC_TABLE = new int[256];
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+            {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+    private final int mask;
+    /**
+     * The ring of frames, each with a MAX_FRAME byte slot
+     */
+    private final byte[] frameBytes;
+    private final int[] frameLengths;
+    private final int[] frameStatus;
+    private final long[] frameTimes;
+    /**
+     * The number of frames completed, the next one goes in slot frameCount & mask
+     */
+    private long frameCount = 0;
+    /**
+     * Incremented whenever a frame is completed, so a viewer can tell when to redraw
+     */
+    private volatile long version = 0;
+
+    // the frame being received
+    private int length = 0;
+    private int crc = 0xFFFF;
+    private long frameStart;
+    private long lastTimestamp;
+
+    private long characterNanos;
+    private long gapNanos;
+
+    // counters
+    private long byteCount = 0;
+    private long goodFrames = 0;
+    private long crcErrors = 0;
+    private long shortFrames = 0;
+    private long longFrames = 0;
+    private long exceptions = 0;
+    private final long[] functionCounts = new long[128];
+
+    /**
+     * Creates a new instance of ModbusRtuAnalyzer
+     *
+     * @param capacityBits log2 of the number of frames retained
+     */
+    public ModbusRtuAnalyzer(int capacityBits)
+    {
+        int capacity = 1 << capacityBits;
+        mask = capacity - 1;
+        frameBytes = new byte[capacity * MAX_FRAME];
+        frameLengths = new int[capacity];
+        frameStatus = new int[capacity];
+        frameTimes = new long[capacity];
+        setTiming(9600, 8, 0, 1);
+    }
+
+    /**
+     * Takes the character and frame gap times from the port settings
+     */
+    public void configure(CommPort cp)
+    {
+        double stopBits;
+        switch (cp.getStopBitsRaw())
+        {
+            case SerialPort.STOPBITS_2:
+                stopBits = 2;
+                break;
+            case SerialPort.STOPBITS_1_5:
+                stopBits = 1.5;
+                break;
+            default:
+                stopBits = 1;
+        }
+        setTiming(Integer.parseInt(cp.getBaudRate().trim()), cp.getDataBitsRaw(),
+                cp.getParityRaw() == SerialPort.PARITY_NONE ? 0 : 1, stopBits);
+    }
+
+    private synchronized void setTiming(int baudRate, int dataBits, int parityBits, double stopBits)
+    {
+        // start bit, data, parity and stop bits
+        double bits = 1 + dataBits + parityBits + stopBits;
+        characterNanos = (long) (bits * 1e9 / baudRate);
+        gapNanos = baudRate > 19200 ? 1750000 : characterNanos * 7 / 2;
+    }
+
+    /**
+     * Gets the silence that ends a frame
+     */
+    public synchronized long getGapNanos()
+    {
+        return gapNanos;
+    }
+
+    @Override
+    public synchronized void bytesReceived(byte[] data, int offset, int count, long timestamp)
+    {
+        // when the first byte of the block started to arrive
+        long blockStart = timestamp - count * characterNanos;
+        if (length > 0 && blockStart - lastTimestamp >= gapNanos)
+        {
+            endFrame();
+        }
+        int slot = (int) (frameCount & mask) * MAX_FRAME;
+        for (int i = offset; i < offset + count; i++)
+        {
+            if (length == 0)
+            {
+                frameStart = blockStart + (i - offset) * characterNanos;
+                slot = (int) (frameCount & mask) * MAX_FRAME;
+            }
+            int b = data[i] & 0xFF;
+            crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ b) & 0xFF];
+            if (length < MAX_FRAME)
+            {
+                frameBytes[slot + length] = (byte) b;
+            }
+            length++;
+        }
+        byteCount += count;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * Closes the frame being received if the line has been quiet long enough
+     *
+     * @param now the current System.nanoTime()
+     */
+    public synchronized void poll(long now)
+    {
+        if (length > 0 && now - lastTimestamp >= gapNanos)
+        {
+            endFrame();
+        }
+    }
+
+    private void endFrame()
+    {
+        int slot = (int) (frameCount & mask);
+        int status = 0;
+        if (length < 4)
+        {
+            status |= STATUS_TOO_SHORT;
+            shortFrames++;
+        }
+        else if (crc != 0)
+        {
+            status |= STATUS_CRC_ERROR;
+            crcErrors++;
+        }
+        if (length > MAX_FRAME)
+        {
+            status |= STATUS_TOO_LONG;
+            longFrames++;
+        }
+        if (status == 0)
+        {
+            goodFrames++;
+            int function = frameBytes[slot * MAX_FRAME + 1] & 0xFF;
+            functionCounts[function & 0x7F]++;
+            if ((function & 0x80) != 0)
+            {
+                status |= STATUS_EXCEPTION;
+                exceptions++;
+            }
+        }
+        frameLengths[slot] = Math.min(length, MAX_FRAME);
+        frameStatus[slot] = status;
+        frameTimes[slot] = frameStart;
+        frameCount++;
+        version++;
+        length = 0;
+        crc = 0xFFFF;
+    }
+
+    /**
+     * Computes the Modbus CRC of some bytes, for building frames
+     */
+    public static int crc(byte[] data, int offset, int length)
+    {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++)
+        {
+            crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Gets the number of frames completed so far
+     */
+    public synchronized long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Gets the oldest frame still retained
+     */
+    public synchronized long getFirstFrame()
+    {
+        return Math.max(0, frameCount - mask - 1);
+    }
+
+    /**
+     * Copies the bytes of a retained frame
+     *
+     * @param dest where to copy to, at least MAX_FRAME bytes
+     * @return the number of bytes copied
+     */
+    public synchronized int getFrame(long frame, byte[] dest)
+    {
+        int slot = (int) (frame & mask);
+        System.arraycopy(frameBytes, slot * MAX_FRAME, dest, 0, frameLengths[slot]);
+        return frameLengths[slot];
+    }
+
+    /**
+     * Gets the STATUS_ flags of a retained frame
+     */
+    public synchronized int getFrameStatus(long frame)
+    {
+        return frameStatus[(int) (frame & mask)];
+    }
+
+    /**
+     * Gets the System.nanoTime() at which a retained frame started
+     */
+    public synchronized long getFrameTime(long frame)
+    {
+        return frameTimes[(int) (frame & mask)];
+    }
+
+    public synchronized long getByteCount()
+    {
+        return byteCount;
+    }
+
+    public synchronized long getGoodFrames()
+    {
+        return goodFrames;
+    }
+
+    public synchronized long getCrcErrors()
+    {
+        return crcErrors;
+    }
+
+    public synchronized long getShortFrames()
+    {
+        return shortFrames;
+    }
+
+    public synchronized long getLongFrames()
+    {
+        return longFrames;
+    }
+
+    public synchronized long getExceptions()
+    {
+        return exceptions;
+    }
+
+    /**
+     * Gets the number of good frames seen with a function code, exceptions included
+     */
+    public synchronized long getFunctionCount(int function)
+    {
+        return functionCounts[function & 0x7F];
+    }
+
+    /**
+     * Zeroes the counters and forgets the retained frames
+     */
+    public synchronized void reset()
+    {
+        frameCount = 0;
+        byteCount = 0;
+        goodFrames = 0;
+        crcErrors = 0;
+        shortFrames = 0;
+        longFrames = 0;
+        exceptions = 0;
+        Arrays.fill(functionCounts, 0);
+        length = 0;
+        crc = 0xFFFF;
+        version++;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.plot;
+
+import stermfx.comms.CommRxEvent;
+
+/**
+ * Picks the numbers out of the received text and adds them to plot channels.
+ *
+ * The n-th number on a line goes to channel n, whatever separates the
+ * numbers, so "1.5,2,-3", "t=1.5 h=2 p=-3" and "1.5\t2e0\t-3" all feed
+ * channels 0, 1 and 2. The parser is a byte at a time state machine that
+ * carries over from one received block to the next and never allocates.
+ *
+ * Channels are locked on this object while a block is parsed.
+ *
+ * @author Brian Powell
+ */
+public class NumericFieldParser implements CommRxEvent
+{
+
+    /**
+     * The most channels that will be created
+     */
+    public static final int MAX_CHANNELS = 8;
+    private static final double[] POWERS_OF_TEN = new double[20];
+    static
+    {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    private final PlotChannel[] channels = new PlotChannel[MAX_CHANNELS];
+    private final int capacityBits;
+    private volatile int channelCount = 0;
+    /**
+     * Incremented after every block that added samples, so a viewer can tell when to redraw
+     */
+    private volatile long version = 0;
+
+    // the number being parsed
+    private boolean inNumber = false;
+    private boolean negative = false;
+    private boolean hasDigits = false;
+    private long mantissa = 0;
+    private int fractionDigits = 0;
+    private boolean inFraction = false;
+    private boolean inExponent = false;
+    private boolean exponentNegative = false;
+    private int exponent = 0;
+    /**
+     * The index of the next number on the current line
+     */
+    private int field = 0;
+
+    /**
+     * Creates a new instance of NumericFieldParser
+     *
+     * @param capacityBits log2 of the number of samples each channel retains
+     */
+    public NumericFieldParser(int capacityBits)
+    {
+        this.capacityBits = capacityBits;
+    }
+
+    @Override
+    public synchronized void bytesReceived(byte[] data, int offset, int length, long timestamp)
+    {
+        long before = totalSamples();
+        for (int i = offset; i < offset + length; i++)
+        {
+            parse(data[i]);
+        }
+        if (totalSamples() != before)
+        {
+            version++;
+        }
+    }
+
+    private long totalSamples()
+    {
+        long total = 0;
+        for (int i = 0; i < channelCount; i++)
+        {
+            total += channels[i].getCount();
+        }
+        return total;
+    }
+
+    private void parse(byte b)
+    {
+        if (b >= '0' && b <= '9')
+        {
+            if (!inNumber)
+            {
+                startNumber(false);
+            }
+            if (inExponent)
+            {
+                exponent = Math.min(exponent * 10 + (b - '0'), 400);
+            }
+            else
+            {
+                // digits past what a long holds only move the decimal point
+                if (mantissa < Long.MAX_VALUE / 10 - 9)
+                {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (inFraction)
+                    {
+                        fractionDigits++;
+                    }
+                }
+                else if (!inFraction)
+                {
+                    fractionDigits--;
+                }
+                hasDigits = true;
+            }
+            return;
+        }
+        if (inNumber)
+        {
+            if (b == '.' && !inFraction && !inExponent)
+            {
+                inFraction = true;
+                return;
+            }
+            if ((b == 'e' || b == 'E') && hasDigits && !inExponent)
+            {
+                inExponent = true;
+                return;
+            }
+            if ((b == '-' || b == '+') && inExponent && exponent == 0)
+            {
+                exponentNegative = b == '-';
+                return;
+            }
+            endNumber();
+        }
+        if (b == '-')
+        {
+            startNumber(true);
+        }
+        else if (b == '.')
+        {
+            startNumber(false);
+            inFraction = true;
+        }
+        else if (b == '\n')
+        {
+            field = 0;
+        }
+    }
+
+    private void startNumber(boolean isNegative)
+    {
+        inNumber = true;
+        negative = isNegative;
+        hasDigits = false;
+        mantissa = 0;
+        fractionDigits = 0;
+        inFraction = false;
+        inExponent = false;
+        exponentNegative = false;
+        exponent = 0;
+    }
+
+    private void endNumber()
+    {
+        inNumber = false;
+        if (!hasDigits || field >= MAX_CHANNELS)
+        {
+            return;
+        }
+        int scale = (exponentNegative ? -exponent : exponent) - fractionDigits;
+        double value = mantissa;
+        if (scale < 0)
+        {
+            value = -scale < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-scale] : value * Math.pow(10, scale);
+        }
+        else if (scale > 0)
+        {
+            value = scale < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[scale] : value * Math.pow(10, scale);
+        }
+        channel(field).add(negative ? -value : value);
+        field++;
+    }
+
+    private PlotChannel channel(int index)
+    {
+        while (channelCount <= index)
+        {
+            channels[channelCount] = new PlotChannel(capacityBits);
+            channelCount++;
+        }
+        return channels[index];
+    }
+
+    /**
+     * Gets the number of channels seen so far. Callers must hold the lock on this parser.
+     *
+     * @return the channel count
+     */
+    public int getChannelCount()
+    {
+        return channelCount;
+    }
+
+    /**
+     * Gets a channel. Callers must hold the lock on this parser while using it.
+     *
+     * @param index the channel index
+     * @return the channel
+     */
+    public PlotChannel getChannel(int index)
+    {
+        return channels[index];
+    }
+
+    /**
+     * Gets a counter that changes whenever samples are added
+     *
+     * @return the data version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.plot;
+
+/**
+ * A ring of samples for one plotted field along with a min/max pyramid over it.
+ *
+ * Level k of the pyramid holds the minimum and maximum of each block of
+ * 16^(k+1) consecutive samples and is updated as samples arrive, so finding
+ * the min/max of every pixel column never has to visit more than a few dozen
+ * entries per column, however many samples the ring holds.
+ *
+ * Sample indexes are absolute counts since the channel was created. Callers
+ * provide their own locking.
+ *
+ * @author Brian Powell
+ */
+public class PlotChannel
+{
+
+    /**
+     * log2 of the growth in block size from one pyramid level to the next
+     */
+    private static final int LEVEL_SHIFT = 4;
+    /**
+     * The number of pyramid levels
+     */
+    private static final int LEVELS = 4;
+    private final double[] samples;
+    private final int mask;
+    private final double[][] levelMin = new double[LEVELS][];
+    private final double[][] levelMax = new double[LEVELS][];
+    /**
+     * The total number of samples ever added
+     */
+    private long count = 0;
+
+    /**
+     * Creates a new instance of PlotChannel
+     *
+     * @param capacityBits log2 of the number of samples retained
+     */
+    public PlotChannel(int capacityBits)
+    {
+        samples = new double[1 << capacityBits];
+        mask = samples.length - 1;
+        for (int level = 0; level < LEVELS; level++)
+        {
+            int blocks = Math.max(1, samples.length >> blockShift(level));
+            levelMin[level] = new double[blocks];
+            levelMax[level] = new double[blocks];
+        }
+    }
+
+    private static int blockShift(int level)
+    {
+        return LEVEL_SHIFT * (level + 1);
+    }
+
+    /**
+     * Adds a sample to the end of the ring
+     *
+     * @param value the sample value
+     */
+    public void add(double value)
+    {
+        long index = count;
+        samples[(int) (index & mask)] = value;
+        for (int level = 0; level < LEVELS; level++)
+        {
+            int shift = blockShift(level);
+            double[] min = levelMin[level];
+            double[] max = levelMax[level];
+            int slot = (int) ((index >>> shift) % min.length);
+            if ((index & ((1L << shift) - 1)) == 0)
+            {
+                min[slot] = value;
+                max[slot] = value;
+            }
+            else
+            {
+                if (value < min[slot])
+                {
+                    min[slot] = value;
+                }
+                if (value > max[slot])
+                {
+                    max[slot] = value;
+                }
+            }
+        }
+        count = index + 1;
+    }
+
+    /**
+     * Gets the total number of samples ever added
+     *
+     * @return the sample count
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Gets the index of the oldest sample still held
+     *
+     * @return the oldest sample index
+     */
+    public long getFirstIndex()
+    {
+        return Math.max(0, count - samples.length);
+    }
+
+    /**
+     * Reduces a range of samples to a minimum and maximum per column.
+     *
+     * @param first the index of the first sample
+     * @param end the index just past the last sample
+     * @param columnMin receives the minimum for each column
+     * @param columnMax receives the maximum for each column
+     * @param columns the number of columns to fill
+     */
+    public void decimate(long first, long end, double[] columnMin, double[] columnMax, int columns)
+    {
+        first = Math.max(first, getFirstIndex());
+        end = Math.min(end, count);
+        double samplesPerColumn = (double) (end - first) / columns;
+        // pick the coarsest level whose blocks still fit inside one column
+        int level = -1;
+        while (level + 1 < LEVELS && (1L << blockShift(level + 1)) <= samplesPerColumn)
+        {
+            level++;
+        }
+        for (int column = 0; column < columns; column++)
+        {
+            long start = first + (long) (column * samplesPerColumn);
+            long stop = first + (long) ((column + 1) * samplesPerColumn);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            if (level < 0)
+            {
+                for (long i = start; i < Math.max(stop, start + 1) && i < end; i++)
+                {
+                    double value = samples[(int) (i & mask)];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            else
+            {
+                int shift = blockShift(level);
+                double[] blockMin = levelMin[level];
+                double[] blockMax = levelMax[level];
+                // the oldest block's slot may already hold the newest block
+                long oldestBlock = ((count - 1) >>> shift) - blockMin.length + 1;
+                for (long block = Math.max(start >>> shift, oldestBlock); block <= (stop - 1) >>> shift; block++)
+                {
+                    int slot = (int) (block % blockMin.length);
+                    min = Math.min(min, blockMin[slot]);
+                    max = Math.max(max, blockMax[slot]);
+                }
+            }
+            columnMin[column] = min;
+            columnMax[column] = max;
+        }
+    }
+}
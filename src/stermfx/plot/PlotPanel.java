@@ -0,0 +1,201 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.plot;
+
+import java.util.Locale;
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+
+/**
+ * Draws the channels of a NumericFieldParser as a strip chart.
+ *
+ * Every retained sample is shown. Each pixel column is drawn as a vertical
+ * line from the smallest to the largest sample that falls in it, which keeps
+ * spikes visible however heavily the data is decimated, and the min/max comes
+ * from the channel pyramid so the cost of a frame depends on the width of the
+ * panel rather than the number of samples.
+ *
+ * @author Brian Powell
+ */
+public class PlotPanel extends Pane
+{
+
+    private static final Color[] CHANNEL_COLORS = {
+        Color.web("#33ff66"), Color.web("#ffcc00"), Color.web("#33ccff"), Color.web("#ff6699"),
+        Color.web("#cc99ff"), Color.web("#ff9933"), Color.web("#99ffff"), Color.web("#ffffff")
+    };
+    private final NumericFieldParser parser;
+    private final Canvas canvas = new Canvas();
+    private final AnimationTimer timer;
+    private double[][] columnMin = new double[0][];
+    private double[][] columnMax = new double[0][];
+    private long drawnVersion = -1;
+    private double drawnWidth = -1;
+    private double drawnHeight = -1;
+    /**
+     * How long the last frame took to draw
+     */
+    private long lastFrameNanos = 0;
+
+    /**
+     * Creates a new instance of PlotPanel
+     *
+     * @param parser the parser whose channels are drawn
+     */
+    public PlotPanel(NumericFieldParser parser)
+    {
+        this.parser = parser;
+        getChildren().add(canvas);
+        timer = new AnimationTimer()
+        {
+
+            @Override
+            public void handle(long now)
+            {
+                redrawIfNeeded();
+            }
+        };
+    }
+
+    /**
+     * Starts redrawing as new samples arrive
+     */
+    public void start()
+    {
+        timer.start();
+    }
+
+    /**
+     * Stops redrawing
+     */
+    public void stop()
+    {
+        timer.stop();
+    }
+
+    @Override
+    protected void layoutChildren()
+    {
+        canvas.setWidth(getWidth());
+        canvas.setHeight(getHeight());
+    }
+
+    private void redrawIfNeeded()
+    {
+        long version = parser.getVersion();
+        if (version == drawnVersion && canvas.getWidth() == drawnWidth && canvas.getHeight() == drawnHeight)
+        {
+            return;
+        }
+        drawnVersion = version;
+        drawnWidth = canvas.getWidth();
+        drawnHeight = canvas.getHeight();
+        long startTime = System.nanoTime();
+        draw();
+        lastFrameNanos = System.nanoTime() - startTime;
+    }
+
+    private void draw()
+    {
+        int columns = (int) drawnWidth;
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.setFill(Color.BLACK);
+        gc.fillRect(0, 0, drawnWidth, drawnHeight);
+        if (columns <= 0)
+        {
+            return;
+        }
+
+        // take the min/max of each column while holding the parser lock, draw afterwards
+        int channelCount;
+        long sampleCount = 0;
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+        synchronized (parser)
+        {
+            channelCount = parser.getChannelCount();
+            if (columnMin.length != channelCount || (channelCount > 0 && columnMin[0].length != columns))
+            {
+                columnMin = new double[channelCount][columns];
+                columnMax = new double[channelCount][columns];
+            }
+            for (int c = 0; c < channelCount; c++)
+            {
+                PlotChannel channel = parser.getChannel(c);
+                channel.decimate(channel.getFirstIndex(), channel.getCount(), columnMin[c], columnMax[c], columns);
+                sampleCount = Math.max(sampleCount, channel.getCount() - channel.getFirstIndex());
+            }
+        }
+        for (int c = 0; c < channelCount; c++)
+        {
+            for (int x = 0; x < columns; x++)
+            {
+                if (columnMin[c][x] <= columnMax[c][x])
+                {
+                    low = Math.min(low, columnMin[c][x]);
+                    high = Math.max(high, columnMax[c][x]);
+                }
+            }
+        }
+        if (low > high)
+        {
+            return;
+        }
+        if (low == high)
+        {
+            low -= 1;
+            high += 1;
+        }
+        double scale = (drawnHeight - 20) / (high - low);
+
+        gc.setLineWidth(1);
+        for (int c = 0; c < channelCount; c++)
+        {
+            gc.setStroke(CHANNEL_COLORS[c % CHANNEL_COLORS.length]);
+            double lastY = Double.NaN;
+            for (int x = 0; x < columns; x++)
+            {
+                double min = columnMin[c][x];
+                double max = columnMax[c][x];
+                if (min > max)
+                {
+                    continue;
+                }
+                double yMin = drawnHeight - 10 - (min - low) * scale;
+                double yMax = drawnHeight - 10 - (max - low) * scale;
+                // join to the previous column so sparse data still reads as a line
+                if (!Double.isNaN(lastY))
+                {
+                    gc.strokeLine(x - 0.5, lastY, x + 0.5, (yMin + yMax) / 2);
+                }
+                gc.strokeLine(x + 0.5, yMin, x + 0.5, yMax);
+                lastY = (yMin + yMax) / 2;
+            }
+        }
+        gc.setFill(Color.GRAY);
+        gc.fillText(String.format(Locale.ENGLISH, "%.4g", high), 4, 12);
+        gc.fillText(String.format(Locale.ENGLISH, "%.4g", low), 4, drawnHeight - 2);
+        gc.fillText(String.format(Locale.ENGLISH, "%d samples  %.2f ms/frame", sampleCount, lastFrameNanos / 1e6),
+                drawnWidth - 200, 12);
+    }
+}
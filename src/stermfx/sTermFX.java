@@ -19,6 +19,10 @@
 
 package stermfx;
 
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.event.EventHandler;
 import javafx.fxml.FXMLLoader;
@@ -34,6 +38,11 @@ import javafx.stage.WindowEvent;
 public class sTermFX extends Application
 {
 
+    /**
+     * The time from JVM start to the first rendered frame we aim to stay under
+     */
+    private static final long FIRST_FRAME_TARGET_MS = 1000;
+
     public static void main(String[] args)
     {
         Application.launch(sTermFX.class, args);
@@ -50,6 +59,7 @@ public class sTermFX extends Application
         //primaryStage.setOpacity(0.85);
         primaryStage.setScene(new Scene(root));
         primaryStage.show();
+        reportFirstFrame();
 
         primaryStage.setOnCloseRequest(new EventHandler<WindowEvent>() {
 
@@ -63,4 +73,31 @@ public class sTermFX extends Application
             }
         });
     }
+
+    /**
+     * Logs how long it took from JVM start until the first frame was rendered.
+     * Setting the stermfx.exitAfterFirstFrame system property exits straight
+     * afterwards, which is how the class data sharing archive is trained.
+     */
+    private void reportFirstFrame()
+    {
+        new AnimationTimer()
+        {
+
+            @Override
+            public void handle(long now)
+            {
+                stop();
+                long elapsed = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+                Logger.getLogger(sTermFX.class.getName()).log(
+                        elapsed > FIRST_FRAME_TARGET_MS ? Level.WARNING : Level.INFO,
+                        "First frame {0} ms after JVM start (target {1} ms)",
+                        new Object[] {elapsed, FIRST_FRAME_TARGET_MS});
+                if (Boolean.getBoolean("stermfx.exitAfterFirstFrame"))
+                {
+                    System.exit(0);
+                }
+            }
+        }.start();
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.script;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A compiled send/expect script.
+ *
+ * One command per line, blank lines and lines starting with # are ignored:
+ *      send "text"             - sends the text
+ *      expect "text" [ms]      - waits for the text to be received, failing after
+ *                                ms or the current timeout
+ *      wait ms                 - pauses
+ *      timeout ms              - sets the timeout for the following expects
+ *
+ * Strings may use the escapes \r, \n, \t, \\, \" and \xHH.
+ *
+ * Compiling turns each expect pattern into its KMP failure table up front so
+ * running the script never has to look at the source again.
+ *
+ * @author Brian Powell
+ */
+public final class Script
+{
+
+    static final int SEND = 0;
+    static final int EXPECT = 1;
+    static final int WAIT = 2;
+    private static final long DEFAULT_TIMEOUT = 10000;
+    /**
+     * The op code of each step
+     */
+    final int[] ops;
+    /**
+     * The time in milliseconds for each wait or expect step
+     */
+    final long[] millis;
+    /**
+     * The bytes to send or expect for each step
+     */
+    final byte[][] bytes;
+    /**
+     * The KMP failure table for each expect step
+     */
+    final int[][] failure;
+    /**
+     * The source line number of each step
+     */
+    final int[] lines;
+
+    private Script(int[] ops, long[] millis, byte[][] bytes, int[][] failure, int[] lines)
+    {
+        this.ops = ops;
+        this.millis = millis;
+        this.bytes = bytes;
+        this.failure = failure;
+        this.lines = lines;
+    }
+
+    /**
+     * Gets the number of steps in the script
+     *
+     * @return the step count
+     */
+    public int size()
+    {
+        return ops.length;
+    }
+
+    /**
+     * Compiles script source text
+     *
+     * @param source the script text
+     * @return the compiled script
+     * @throws ParseException if a line is not understood, the error offset is the line number
+     */
+    public static Script compile(String source) throws ParseException
+    {
+        List<Integer> ops = new ArrayList<>();
+        List<Long> millis = new ArrayList<>();
+        List<byte[]> bytes = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        long timeout = DEFAULT_TIMEOUT;
+
+        String[] sourceLines = source.split("\r?\n");
+        for (int lineNumber = 1; lineNumber <= sourceLines.length; lineNumber++)
+        {
+            String line = sourceLines[lineNumber - 1].trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toLowerCase(Locale.ENGLISH);
+            String rest = space < 0 ? "" : line.substring(space + 1).trim();
+            switch (command)
+            {
+                case "send":
+                    ops.add(SEND);
+                    millis.add(0L);
+                    bytes.add(parseString(rest, lineNumber));
+                    break;
+                case "expect":
+                    int end = closingQuote(rest, lineNumber);
+                    byte[] pattern = parseString(rest.substring(0, end + 1), lineNumber);
+                    if (pattern.length == 0)
+                    {
+                        throw new ParseException("Line " + lineNumber + ": empty expect pattern", lineNumber);
+                    }
+                    String after = rest.substring(end + 1).trim();
+                    ops.add(EXPECT);
+                    millis.add(after.isEmpty() ? timeout : parseMillis(after, lineNumber));
+                    bytes.add(pattern);
+                    break;
+                case "wait":
+                    ops.add(WAIT);
+                    millis.add(parseMillis(rest, lineNumber));
+                    bytes.add(null);
+                    break;
+                case "timeout":
+                    timeout = parseMillis(rest, lineNumber);
+                    continue;
+                default:
+                    throw new ParseException("Line " + lineNumber + ": unknown command '" + command + "'", lineNumber);
+            }
+            lines.add(lineNumber);
+        }
+
+        int size = ops.size();
+        int[] opArray = new int[size];
+        long[] millisArray = new long[size];
+        byte[][] bytesArray = bytes.toArray(new byte[size][]);
+        int[][] failureArray = new int[size][];
+        int[] lineArray = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            opArray[i] = ops.get(i);
+            millisArray[i] = millis.get(i);
+            lineArray[i] = lines.get(i);
+            if (opArray[i] == EXPECT)
+            {
+                failureArray[i] = failureTable(bytesArray[i]);
+            }
+        }
+        return new Script(opArray, millisArray, bytesArray, failureArray, lineArray);
+    }
+
+    /**
+     * Builds the KMP failure table, the length of the longest proper prefix of
+     * the pattern that is also a suffix of each of its prefixes.
+     */
+    private static int[] failureTable(byte[] pattern)
+    {
+        int[] table = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++)
+        {
+            while (k > 0 && pattern[i] != pattern[k])
+            {
+                k = table[k - 1];
+            }
+            if (pattern[i] == pattern[k])
+            {
+                k++;
+            }
+            table[i] = k;
+        }
+        return table;
+    }
+
+    private static long parseMillis(String text, int lineNumber) throws ParseException
+    {
+        try
+        {
+            long value = Long.parseLong(text.trim());
+            if (value >= 0)
+            {
+                return value;
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // reported below
+        }
+        throw new ParseException("Line " + lineNumber + ": '" + text + "' is not a time in milliseconds", lineNumber);
+    }
+
+    private static int closingQuote(String text, int lineNumber) throws ParseException
+    {
+        if (!text.startsWith("\""))
+        {
+            throw new ParseException("Line " + lineNumber + ": expected a quoted string", lineNumber);
+        }
+        for (int i = 1; i < text.length(); i++)
+        {
+            if (text.charAt(i) == '\\')
+            {
+                i++;
+            }
+            else if (text.charAt(i) == '"')
+            {
+                return i;
+            }
+        }
+        throw new ParseException("Line " + lineNumber + ": unterminated string", lineNumber);
+    }
+
+    private static byte[] parseString(String text, int lineNumber) throws ParseException
+    {
+        int end = closingQuote(text, lineNumber);
+        if (end != text.length() - 1)
+        {
+            throw new ParseException("Line " + lineNumber + ": unexpected text after string", lineNumber);
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = 1; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (c != '\\')
+            {
+                value.append(c);
+                continue;
+            }
+            char escape = text.charAt(++i);
+            switch (escape)
+            {
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'x':
+                    if (i + 2 >= end)
+                    {
+                        throw new ParseException("Line " + lineNumber + ": bad \\x escape", lineNumber);
+                    }
+                    try
+                    {
+                        value.append((char) Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        throw new ParseException("Line " + lineNumber + ": bad \\x escape", lineNumber);
+                    }
+                    i += 2;
+                    break;
+                default:
+                    value.append(escape);
+            }
+        }
+        return value.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.script;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import stermfx.comms.CommPortInterface;
+import stermfx.comms.CommRxEvent;
+
+/**
+ * Runs a compiled Script against a comm port on its own worker thread.
+ *
+ * Received blocks are copied into a fixed ring by the serial event thread and
+ * the worker matches expect patterns against them a byte at a time, carrying
+ * the match state across blocks, so nothing ever has to search the terminal
+ * text. The ring holds everything received since the previous match; if the
+ * script does not keep up, the oldest unread bytes are dropped.
+ *
+ * @author Brian Powell
+ */
+public class ScriptRunner implements CommRxEvent, Runnable
+{
+
+    /**
+     * Receives progress from the worker thread
+     */
+    public interface Listener
+    {
+        /**
+         * Called as each step starts
+         */
+        public void stepStarted(int iteration, int line);
+
+        /**
+         * Called once when the run ends, for whatever reason
+         *
+         * @param passes the number of iterations that completed
+         * @param failures the number of iterations that failed
+         * @param message why the run ended
+         */
+        public void finished(int passes, int failures, String message);
+    }
+
+    private final Script script;
+    private final CommPortInterface cpi;
+    private final int iterations;
+    private final boolean stopOnFailure;
+    private final Listener listener;
+    private final byte[] ring = new byte[1 << 16];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    /**
+     * Total bytes written to and read from the ring, guarded by lock
+     */
+    private long written = 0;
+    private long read = 0;
+    private volatile boolean cancelled = false;
+    private Thread worker;
+
+    /**
+     * Creates a new instance of ScriptRunner
+     *
+     * @param script the script to run
+     * @param cpi the port to run it against
+     * @param iterations how many times to run the script
+     * @param stopOnFailure true to stop at the first failed iteration
+     * @param listener receives progress, called on the worker thread
+     */
+    public ScriptRunner(Script script, CommPortInterface cpi, int iterations, boolean stopOnFailure, Listener listener)
+    {
+        this.script = script;
+        this.cpi = cpi;
+        this.iterations = iterations;
+        this.stopOnFailure = stopOnFailure;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the run on a new worker thread
+     */
+    public void start()
+    {
+        cpi.addRxEvent(this);
+        worker = new Thread(this, "ScriptRunner");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the run as soon as possible. Safe to call from any thread.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        lock.lock();
+        try
+        {
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bytesReceived(byte[] data, int offset, int length, long timestamp)
+    {
+        lock.lock();
+        try
+        {
+            for (int i = 0; i < length; i++)
+            {
+                ring[(int) (written++ & (ring.length - 1))] = data[offset + i];
+            }
+            // drop whatever the writer has lapped
+            read = Math.max(read, written - ring.length);
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        int passes = 0;
+        int failures = 0;
+        String message = "Completed";
+        try
+        {
+            for (int iteration = 1; iteration <= iterations && !cancelled; iteration++)
+            {
+                String failure = runOnce(iteration);
+                if (cancelled)
+                {
+                    // an interrupted iteration neither passed nor failed
+                    break;
+                }
+                if (failure == null)
+                {
+                    passes++;
+                }
+                else
+                {
+                    failures++;
+                    message = "Iteration " + iteration + ": " + failure;
+                    if (stopOnFailure)
+                    {
+                        break;
+                    }
+                }
+            }
+            if (cancelled)
+            {
+                message = "Cancelled";
+            }
+        }
+        catch (IOException ex)
+        {
+            message = "Send failed: " + ex.getMessage();
+        }
+        catch (InterruptedException ex)
+        {
+            message = "Cancelled";
+        }
+        finally
+        {
+            cpi.removeRxEvent(this);
+            listener.finished(passes, failures, message);
+        }
+    }
+
+    /**
+     * Runs every step of the script once
+     *
+     * @return null on success, otherwise why the iteration failed; the result
+     * is meaningless once the runner has been cancelled
+     */
+    private String runOnce(int iteration) throws IOException, InterruptedException
+    {
+        for (int step = 0; step < script.size() && !cancelled; step++)
+        {
+            listener.stepStarted(iteration, script.lines[step]);
+            switch (script.ops[step])
+            {
+                case Script.SEND:
+                    cpi.sendBytes(script.bytes[step], 0, script.bytes[step].length);
+                    break;
+                case Script.WAIT:
+                    pause(script.millis[step]);
+                    break;
+                case Script.EXPECT:
+                    if (!expect(script.bytes[step], script.failure[step], script.millis[step]))
+                    {
+                        return "line " + script.lines[step] + " timed out after "
+                                + script.millis[step] + " ms";
+                    }
+                    break;
+            }
+        }
+        return null;
+    }
+
+    private void pause(long millis) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.lock();
+        try
+        {
+            long remaining;
+            while (!cancelled && (remaining = deadline - System.nanoTime()) > 0)
+            {
+                changed.awaitNanos(remaining);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Consumes received bytes until the pattern has been seen
+     *
+     * @return true if the pattern was seen before the timeout
+     */
+    private boolean expect(byte[] pattern, int[] failure, long millis) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        int matched = 0;
+        lock.lock();
+        try
+        {
+            while (!cancelled)
+            {
+                while (read < written)
+                {
+                    byte b = ring[(int) (read++ & (ring.length - 1))];
+                    while (matched > 0 && b != pattern[matched])
+                    {
+                        matched = failure[matched - 1];
+                    }
+                    if (b == pattern[matched])
+                    {
+                        matched++;
+                    }
+                    if (matched == pattern.length)
+                    {
+                        return true;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                changed.awaitNanos(remaining);
+            }
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
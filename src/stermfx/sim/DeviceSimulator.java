@@ -0,0 +1,532 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.sim;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A simulated serial device for load testing the terminal without hardware.
+ *
+ * The device talks over a pair of streams, either the device end of a
+ * LoopbackPort inside the application or one side of a PTY pair, and does two
+ * things at once:
+ *      Traffic - generates one of the following at a fixed rate per second
+ *          none    - nothing
+ *          log     - timestamped log lines
+ *          frames  - binary frames: 0x7E, length, payload, CRC-16/CCITT
+ *          burst   - rate log lines back to back once a second, then silence
+ *          ansi    - full 80x24 screens of cursor moves and colour changes
+ *          replay  - the bytes of a capture file, rate bytes per second
+ *                    (0 for as fast as possible), looping at the end
+ *      Responses - reads what the host sends, optionally echoes it, and
+ *          answers each complete line that matches a scripted command
+ *
+ * Generation is paced against System.nanoTime and everything due is
+ * written in one batch, so a high rate costs a handful of writes per
+ * millisecond rather than one per line.
+ *
+ * The responses file has one command per line, a tab, then the response.
+ * Both may use the escapes \r, \n, \t, \\ and \xHH.
+ *
+ * Run standalone against one end of a PTY pair, e.g. made with
+ *      socat -d -d pty,raw,echo=0 pty,raw,echo=0
+ * with
+ *      java -cp sTermFX.jar stermfx.sim.DeviceSimulator --pty /dev/pts/3
+ *          --traffic log --rate 5000 [--responses file] [--echo]
+ *          [--replay capture] [--duration seconds]
+ * and point the terminal's Linux backend at the other end.
+ *
+ * @author Brian Powell
+ */
+public class DeviceSimulator
+{
+
+    private static final String ANSI_COLOURS = "1234567";
+    private final InputStream in;
+    private final OutputStream out;
+    private String traffic = "none";
+    private int rate = 100;
+    private boolean echo = false;
+    private byte[] replay = new byte[0];
+    private final Map<String, byte[]> responses = new HashMap<>();
+    private volatile boolean running = false;
+    private Thread generatorThread;
+    private Thread responderThread;
+    /**
+     * The batch being generated, grown as needed and reused
+     */
+    private byte[] batch = new byte[8192];
+    private int batchLength;
+    private long sequence = 0;
+    private int replayPosition = 0;
+
+    /**
+     * Creates a new instance of DeviceSimulator
+     *
+     * @param in what the host sends to the device
+     * @param out where the device sends to the host
+     */
+    public DeviceSimulator(InputStream in, OutputStream out)
+    {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Sets the kind of traffic generated
+     *
+     * @param traffic none, log, frames, burst, ansi or replay
+     */
+    public void setTraffic(String traffic)
+    {
+        this.traffic = traffic.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Sets the number of lines, frames, screens or replayed bytes per second
+     */
+    public void setRate(int rate)
+    {
+        this.rate = rate;
+    }
+
+    public void setEcho(boolean echo)
+    {
+        this.echo = echo;
+    }
+
+    /**
+     * Loads the capture replayed by the replay traffic
+     */
+    public void loadReplay(Path capture) throws IOException
+    {
+        replay = Files.readAllBytes(capture);
+    }
+
+    /**
+     * Loads scripted responses, command TAB response on each line
+     */
+    public void loadResponses(Path file) throws IOException
+    {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.ISO_8859_1);
+        for (String line : lines)
+        {
+            int tab = line.indexOf('\t');
+            if (tab > 0)
+            {
+                responses.put(new String(unescape(line.substring(0, tab)), StandardCharsets.ISO_8859_1),
+                        unescape(line.substring(tab + 1)));
+            }
+        }
+    }
+
+    /**
+     * Adds a scripted response
+     *
+     * @param command the line, without its terminator, that triggers the response
+     * @param response the bytes sent back
+     */
+    public void addResponse(String command, byte[] response)
+    {
+        responses.put(command, response);
+    }
+
+    /**
+     * Starts generating traffic and answering commands
+     */
+    public void start()
+    {
+        running = true;
+        generatorThread = new Thread(new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                generate();
+            }
+        }, "DeviceSimulator traffic");
+        generatorThread.setDaemon(true);
+        generatorThread.start();
+        responderThread = new Thread(new Runnable()
+        {
+
+            @Override
+            public void run()
+            {
+                respond();
+            }
+        }, "DeviceSimulator responder");
+        responderThread.setDaemon(true);
+        responderThread.start();
+    }
+
+    /**
+     * Stops the simulator. The streams are left open.
+     */
+    public void stop()
+    {
+        running = false;
+        generatorThread.interrupt();
+        responderThread.interrupt();
+    }
+
+    private void send(byte[] data, int offset, int length) throws IOException
+    {
+        synchronized (out)
+        {
+            out.write(data, offset, length);
+            out.flush();
+        }
+    }
+
+    private void generate()
+    {
+        if (traffic.equals("none") || (traffic.equals("replay") && replay.length == 0))
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        long sent = 0;
+        try
+        {
+            while (running)
+            {
+                long elapsed = System.nanoTime() - start;
+                long due;
+                if (traffic.equals("burst"))
+                {
+                    // the whole second's worth at the top of each second
+                    due = (TimeUnit.NANOSECONDS.toSeconds(elapsed) + 1) * rate;
+                }
+                else if (rate <= 0)
+                {
+                    due = sent + 1;
+                }
+                else
+                {
+                    due = elapsed * rate / TimeUnit.SECONDS.toNanos(1);
+                }
+                if (due > sent)
+                {
+                    batchLength = 0;
+                    // bound the batch so a stall doesn't turn into one huge write
+                    long count = Math.min(due - sent, traffic.equals("replay") ? 65536 : 1024);
+                    generate(count);
+                    send(batch, 0, batchLength);
+                    sent += count;
+                }
+                else
+                {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // stopped
+        }
+        catch (IOException ex)
+        {
+            if (running)
+            {
+                Logger.getLogger(DeviceSimulator.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Appends count units of traffic to the batch
+     */
+    private void generate(long count)
+    {
+        switch (traffic)
+        {
+            case "frames":
+                for (long i = 0; i < count; i++)
+                {
+                    appendFrame();
+                }
+                break;
+            case "ansi":
+                for (long i = 0; i < count; i++)
+                {
+                    appendScreen();
+                }
+                break;
+            case "replay":
+                for (long i = 0; i < count; i++)
+                {
+                    append(replay[replayPosition]);
+                    replayPosition = (replayPosition + 1) % replay.length;
+                }
+                break;
+            default:
+                for (long i = 0; i < count; i++)
+                {
+                    appendLogLine();
+                }
+        }
+    }
+
+    private void appendLogLine()
+    {
+        long now = System.nanoTime();
+        append(String.format(Locale.ENGLISH, "%d.%06d INFO seq=%d temp=%.2f level=%d status=OK\r\n",
+                TimeUnit.NANOSECONDS.toSeconds(now), TimeUnit.NANOSECONDS.toMicros(now) % 1000000,
+                sequence, 20 + 5 * Math.sin(sequence / 50.0), sequence % 1024));
+        sequence++;
+    }
+
+    private void appendFrame()
+    {
+        int length = 16;
+        append((byte) 0x7E);
+        append((byte) length);
+        int crc = 0xFFFF;
+        for (int i = 0; i < length; i++)
+        {
+            byte b = (byte) (i < 8 ? sequence >>> (8 * i) : i);
+            append(b);
+            crc = crc16(crc, b);
+        }
+        append((byte) (crc >>> 8));
+        append((byte) crc);
+        sequence++;
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE, one byte at a time
+     */
+    private static int crc16(int crc, byte b)
+    {
+        crc ^= (b & 0xFF) << 8;
+        for (int bit = 0; bit < 8; bit++)
+        {
+            crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+
+    private void appendScreen()
+    {
+        StringBuilder screen = new StringBuilder(8192);
+        screen.append("\u001b[2J\u001b[H");
+        for (int row = 1; row <= 24; row++)
+        {
+            screen.append("\u001b[").append(row).append(";1H");
+            for (int column = 0; column < 80; column += 8)
+            {
+                char colour = ANSI_COLOURS.charAt((int) ((sequence + row + column) % ANSI_COLOURS.length()));
+                screen.append("\u001b[3").append(colour).append('m');
+                screen.append(String.format(Locale.ENGLISH, "%08X", (sequence * 31 + row * 80 + column) & 0xFFFFFFFFL));
+            }
+        }
+        screen.append("\u001b[0m");
+        append(screen.toString());
+        sequence++;
+    }
+
+    private void append(String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            append((byte) text.charAt(i));
+        }
+    }
+
+    private void append(byte b)
+    {
+        if (batchLength == batch.length)
+        {
+            byte[] bigger = new byte[batch.length * 2];
+            System.arraycopy(batch, 0, bigger, 0, batchLength);
+            batch = bigger;
+        }
+        batch[batchLength++] = b;
+    }
+
+    private void respond()
+    {
+        byte[] buffer = new byte[4096];
+        StringBuilder line = new StringBuilder();
+        try
+        {
+            int count;
+            while (running && (count = in.read(buffer)) >= 0)
+            {
+                if (echo)
+                {
+                    send(buffer, 0, count);
+                }
+                for (int i = 0; i < count; i++)
+                {
+                    char c = (char) (buffer[i] & 0xFF);
+                    if (c != '\r' && c != '\n')
+                    {
+                        line.append(c);
+                        continue;
+                    }
+                    byte[] response = responses.get(line.toString());
+                    if (response != null)
+                    {
+                        send(response, 0, response.length);
+                    }
+                    line.setLength(0);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            if (running)
+            {
+                Logger.getLogger(DeviceSimulator.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static byte[] unescape(String text)
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == text.length())
+            {
+                value.append(c);
+                continue;
+            }
+            char escape = text.charAt(++i);
+            switch (escape)
+            {
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'x':
+                    if (i + 2 < text.length())
+                    {
+                        value.append((char) Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                        i += 2;
+                    }
+                    break;
+                default:
+                    value.append(escape);
+            }
+        }
+        return value.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Runs a simulator against a PTY or other device file
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String device = null;
+        String traffic = "log";
+        int rate = 100;
+        boolean echo = false;
+        String responses = null;
+        String replay = null;
+        long duration = 0;
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--pty":
+                    device = args[++i];
+                    break;
+                case "--traffic":
+                    traffic = args[++i];
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(args[++i]);
+                    break;
+                case "--echo":
+                    echo = true;
+                    break;
+                case "--responses":
+                    responses = args[++i];
+                    break;
+                case "--replay":
+                    replay = args[++i];
+                    traffic = "replay";
+                    break;
+                case "--duration":
+                    duration = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown argument " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (device == null)
+        {
+            System.err.println("Usage: DeviceSimulator --pty device [--traffic none|log|frames|burst|ansi|replay]"
+                    + " [--rate n] [--echo] [--responses file] [--replay capture] [--duration seconds]");
+            System.exit(1);
+        }
+        DeviceSimulator simulator = new DeviceSimulator(new FileInputStream(device), new FileOutputStream(device));
+        simulator.setTraffic(traffic);
+        simulator.setRate(rate);
+        simulator.setEcho(echo);
+        if (responses != null)
+        {
+            simulator.loadResponses(Paths.get(responses));
+        }
+        if (replay != null)
+        {
+            simulator.loadReplay(Paths.get(replay));
+        }
+        simulator.start();
+        if (duration > 0)
+        {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        }
+        else
+        {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+        simulator.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package stermfx.sim;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Notification;
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import stermfx.text.Scrollback;
+
+/**
+ * Watches the heap, the garbage collector and the terminal's display flushes
+ * while the application soaks under simulated traffic for hours.
+ *
+ * Every collection is picked up from the collector's notifications:
+ *      Heap after GC - the heap pools in use once the collection finished
+ *      Allocation    - the heap in use before a collection less what the
+ *                      previous one left behind
+ *      Pauses        - the duration of every stop the world collection;
+ *                      concurrent cycles are not pauses and are skipped
+ * The terminal reports each display flush with the time from the first byte
+ * queued for the display until it was in the text area.
+ *
+ * Once a sample interval a row goes to the report, a CSV file. Young
+ * collections leave old garbage behind until the next full one, so the heap
+ * after GC that counts is the lowest seen over a trailing window. The first
+ * such floor after the warmup is the baseline; the scrollback is allowed to
+ * grow up to its own limit, so its stored size is taken off both sides. If
+ * the floor ever grows more than the threshold over the baseline the soak
+ * fails straight away, otherwise it passes once the duration is up, and
+ * either way the listener is told the outcome.
+ *
+ * @author Brian Powell
+ */
+public class SoakMonitor implements NotificationListener, Runnable
+{
+
+    /**
+     * Receives the outcome, called once on the monitor's thread
+     */
+    public interface Listener
+    {
+        public void finished(boolean passed, String summary);
+    }
+
+    /**
+     * Log-linear histogram buckets, 8 to each power of two of microseconds
+     */
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 42 * SUB_BUCKETS;
+    private final long durationNanos;
+    private final long sampleNanos;
+    private final long warmupNanos;
+    private final long maxGrowthBytes;
+    private final Path report;
+    private final Scrollback scrollback;
+    private final Listener listener;
+    private final Set<String> heapPools = new HashSet<>();
+    /**
+     * Lowest heap after GC, less the scrollback, in each of the last few
+     * intervals, a ring covering the trailing window
+     */
+    private final long[] floors;
+    private int floorCount = 0;
+    private long baseline = -1;
+    private Thread samplerThread;
+    private volatile boolean running = false;
+    // the rest is guarded by this
+    private long lastHeapAfterGc = 0;
+    private long intervalFloor = Long.MAX_VALUE;
+    private long allocatedBytes = 0;
+    private long gcCount = 0;
+    private long gcPauseNanos = 0;
+    private final long[] gcPauses = new long[BUCKETS];
+    private final long[] intervalGcPauses = new long[BUCKETS];
+    private long maxGcPauseMicros = 0;
+    private long intervalMaxGcPauseMicros = 0;
+    private final long[] flushes = new long[BUCKETS];
+    private final long[] intervalFlushes = new long[BUCKETS];
+    private long maxFlushMicros = 0;
+    private long intervalMaxFlushMicros = 0;
+
+    /**
+     * Creates a new instance of SoakMonitor
+     *
+     * @param durationHours how long to soak for
+     * @param sampleSeconds the seconds between report rows
+     * @param warmupMinutes how long to run before the baseline is taken
+     * @param windowMinutes how far back the lowest heap after GC is looked for
+     * @param maxGrowthMB the most the heap after GC may grow over the baseline
+     * @param report where the report goes
+     * @param scrollback the terminal's scrollback, whose growth is expected
+     * @param listener told whether the soak passed once it is over
+     */
+    public SoakMonitor(double durationHours, int sampleSeconds, double warmupMinutes, double windowMinutes,
+            double maxGrowthMB, Path report, Scrollback scrollback, Listener listener)
+    {
+        this.durationNanos = (long) (durationHours * 3600e9);
+        this.sampleNanos = TimeUnit.SECONDS.toNanos(Math.max(1, sampleSeconds));
+        this.warmupNanos = (long) (warmupMinutes * 60e9);
+        this.maxGrowthBytes = (long) (maxGrowthMB * 1048576);
+        this.report = report;
+        this.scrollback = scrollback;
+        this.listener = listener;
+        floors = new long[(int) Math.max(1, Math.ceil(windowMinutes * 60e9 / sampleNanos))];
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                heapPools.add(pool.getName());
+            }
+        }
+    }
+
+    /**
+     * Starts listening to the collectors and writing the report
+     */
+    public void start()
+    {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (collector instanceof NotificationEmitter)
+            {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+        running = true;
+        samplerThread = new Thread(this, "SoakMonitor");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+    }
+
+    /**
+     * Records a display flush
+     *
+     * @param latencyNanos the time from the first byte queued until it was shown
+     */
+    public synchronized void flushed(long latencyNanos)
+    {
+        long micros = latencyNanos / 1000;
+        flushes[bucket(micros)]++;
+        intervalFlushes[bucket(micros)]++;
+        maxFlushMicros = Math.max(maxFlushMicros, micros);
+        intervalMaxFlushMicros = Math.max(intervalMaxFlushMicros, micros);
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback)
+    {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+        {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                (CompositeData) notification.getUserData());
+        GcInfo gc = info.getGcInfo();
+        long before = heapUsed(gc.getMemoryUsageBeforeGc());
+        long after = heapUsed(gc.getMemoryUsageAfterGc());
+        allocatedBytes += Math.max(0, before - lastHeapAfterGc);
+        lastHeapAfterGc = after;
+        intervalFloor = Math.min(intervalFloor, after);
+        gcCount++;
+        String name = info.getGcName().toLowerCase(Locale.ENGLISH);
+        if (!name.contains("concurrent") && !name.contains("cycles"))
+        {
+            long micros = gc.getDuration() * 1000;
+            gcPauseNanos += micros * 1000;
+            gcPauses[bucket(micros)]++;
+            intervalGcPauses[bucket(micros)]++;
+            maxGcPauseMicros = Math.max(maxGcPauseMicros, micros);
+            intervalMaxGcPauseMicros = Math.max(intervalMaxGcPauseMicros, micros);
+        }
+    }
+
+    private long heapUsed(Map<String, MemoryUsage> pools)
+    {
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : pools.entrySet())
+        {
+            if (heapPools.contains(pool.getKey()))
+            {
+                used += pool.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    @Override
+    public void run()
+    {
+        long start = System.nanoTime();
+        try (BufferedWriter out = Files.newBufferedWriter(report, StandardCharsets.UTF_8))
+        {
+            out.write("elapsed_s,received_mb,heap_used_mb,heap_after_gc_mb,scrollback_mb,growth_mb,"
+                    + "alloc_mb_s,gc_count,gc_pause_p50_ms,gc_pause_p99_ms,gc_pause_max_ms,gc_time_pct,"
+                    + "flush_count,flush_p50_ms,flush_p99_ms,flush_max_ms");
+            out.newLine();
+            long lastAllocated = 0;
+            long lastGcCount = 0;
+            long lastGcPauseNanos = 0;
+            long next = start;
+            while (running)
+            {
+                next += sampleNanos;
+                long wait;
+                while ((wait = next - System.nanoTime()) > 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                long elapsed = System.nanoTime() - start;
+                long retained = scrollback.getStoredBytes();
+                long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                String row;
+                long growth;
+                synchronized (this)
+                {
+                    // an interval without a collection keeps the last heap after GC,
+                    // there is nothing to go on until the first one
+                    if (gcCount > 0)
+                    {
+                        long floor = (intervalFloor == Long.MAX_VALUE ? lastHeapAfterGc : intervalFloor) - retained;
+                        floors[floorCount++ % floors.length] = floor;
+                    }
+                    long windowFloor = floorCount == 0 ? -retained : Long.MAX_VALUE;
+                    for (int i = 0; i < Math.min(floorCount, floors.length); i++)
+                    {
+                        windowFloor = Math.min(windowFloor, floors[i]);
+                    }
+                    if (baseline < 0 && elapsed >= warmupNanos && floorCount >= floors.length)
+                    {
+                        baseline = windowFloor;
+                    }
+                    growth = baseline < 0 ? 0 : windowFloor - baseline;
+                    long intervalGcCount = sum(intervalGcPauses);
+                    row = String.format(Locale.ENGLISH,
+                            "%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.2f,%d,%.1f,%.1f,%.1f,%.2f,%d,%.1f,%.1f,%.1f",
+                            TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                            scrollback.getLength() / 1048576.0,
+                            heapUsed / 1048576.0,
+                            (windowFloor + retained) / 1048576.0,
+                            retained / 1048576.0,
+                            growth / 1048576.0,
+                            (allocatedBytes - lastAllocated) / 1048576.0 / (sampleNanos / 1e9),
+                            gcCount - lastGcCount,
+                            percentile(intervalGcPauses, intervalGcCount, 50, intervalMaxGcPauseMicros) / 1000.0,
+                            percentile(intervalGcPauses, intervalGcCount, 99, intervalMaxGcPauseMicros) / 1000.0,
+                            intervalMaxGcPauseMicros / 1000.0,
+                            (gcPauseNanos - lastGcPauseNanos) * 100.0 / sampleNanos,
+                            sum(intervalFlushes),
+                            percentile(intervalFlushes, sum(intervalFlushes), 50, intervalMaxFlushMicros) / 1000.0,
+                            percentile(intervalFlushes, sum(intervalFlushes), 99, intervalMaxFlushMicros) / 1000.0,
+                            intervalMaxFlushMicros / 1000.0);
+                    lastAllocated = allocatedBytes;
+                    lastGcCount = gcCount;
+                    lastGcPauseNanos = gcPauseNanos;
+                    intervalFloor = Long.MAX_VALUE;
+                    intervalMaxGcPauseMicros = 0;
+                    intervalMaxFlushMicros = 0;
+                    for (int i = 0; i < BUCKETS; i++)
+                    {
+                        intervalGcPauses[i] = 0;
+                        intervalFlushes[i] = 0;
+                    }
+                }
+                out.write(row);
+                out.newLine();
+                out.flush();
+                if (growth > maxGrowthBytes)
+                {
+                    finish(false, String.format(Locale.ENGLISH,
+                            "heap after GC grew %.1f MB over the baseline, more than %.1f MB",
+                            growth / 1048576.0, maxGrowthBytes / 1048576.0));
+                }
+                else if (elapsed >= durationNanos)
+                {
+                    finish(true, String.format(Locale.ENGLISH,
+                            "heap after GC grew %.1f MB over the baseline", growth / 1048576.0));
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(SoakMonitor.class.getName()).log(Level.SEVERE, null, ex);
+            finish(false, "the report could not be written: " + ex.getMessage());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops listening to the collectors, then logs the outcome and the totals
+     * for the whole run and passes them on
+     */
+    private void finish(boolean passed, String reason)
+    {
+        running = false;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (collector instanceof NotificationEmitter)
+            {
+                try
+                {
+                    ((NotificationEmitter) collector).removeNotificationListener(this);
+                }
+                catch (ListenerNotFoundException ex)
+                {
+                    // the collector was not there when the soak started
+                }
+            }
+        }
+        String summary;
+        synchronized (this)
+        {
+            long gcPauseCount = sum(gcPauses);
+            long flushCount = sum(flushes);
+            summary = String.format(Locale.ENGLISH,
+                    "Soak %s: %s. %d collections, pauses p50 %.1f ms p99 %.1f ms max %.1f ms;"
+                    + " %d flushes, p50 %.1f ms p99 %.1f ms max %.1f ms. Report in %s",
+                    passed ? "passed" : "failed", reason, gcCount,
+                    percentile(gcPauses, gcPauseCount, 50, maxGcPauseMicros) / 1000.0,
+                    percentile(gcPauses, gcPauseCount, 99, maxGcPauseMicros) / 1000.0,
+                    maxGcPauseMicros / 1000.0, flushCount,
+                    percentile(flushes, flushCount, 50, maxFlushMicros) / 1000.0,
+                    percentile(flushes, flushCount, 99, maxFlushMicros) / 1000.0,
+                    maxFlushMicros / 1000.0, report);
+        }
+        Logger.getLogger(SoakMonitor.class.getName()).log(passed ? Level.INFO : Level.SEVERE, summary);
+        listener.finished(passed, summary);
+    }
+
+    /**
+     * Gets the histogram bucket for a number of microseconds. Below 8 each
+     * value has its own bucket, above it each power of two is split in 8.
+     */
+    private static int bucket(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - 2) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * Gets the largest value that falls in a bucket
+     */
+    private static long bucketLimit(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 2;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+
+    /**
+     * Gets a percentile as the top of the bucket it falls in, but no more than
+     * the largest value seen
+     */
+    private static long percentile(long[] histogram, long count, double percentile, long max)
+    {
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++)
+        {
+            seen += histogram[i];
+            if (seen >= target && seen > 0)
+            {
+                return Math.min(max, bucketLimit(i));
+            }
+        }
+        return 0;
+    }
+
+    private static long sum(long[] histogram)
+    {
+        long total = 0;
+        for (long count : histogram)
+        {
+            total += count;
+        }
+        return total;
+    }
+}
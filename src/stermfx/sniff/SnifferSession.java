@@ -0,0 +1,376 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.sniff;
+
+import java.util.concurrent.locks.LockSupport;
+import javafx.scene.paint.Color;
+import stermfx.comms.CommPortInterface;
+import stermfx.comms.RxByteStore;
+import stermfx.text.LineColorizer;
+import stermfx.text.Scrollback;
+
+/**
+ * Merges what several ports receive into one time ordered stream, for
+ * watching both directions of a link through a pair of taps.
+ *
+ * Each port's reader already timestamps every block as it is read and
+ * publishes it into the port's RxByteStore, so the session reads the stores
+ * directly with a cursor of its own into each, the way an rx bus consumer
+ * does, and nothing is copied on the way in. The merge repeatedly takes the
+ * oldest block at the head of any store. A block can only be taken once
+ * nothing older can still turn up: either every port has a block waiting,
+ * and each port's blocks are in order, or the block is older than the
+ * reorder window, which covers the gap between a read being timestamped
+ * and its block being published. With a handful of ports a scan of the
+ * heads is cheaper than a heap.
+ *
+ * The merged stream is written to a Scrollback as lines that start with the
+ * time since the session started and the letter of the port, A for the
+ * first, and a new line starts whenever the direction changes. The session
+ * is also the LineColorizer that colours the lines by port.
+ *
+ * @author Brian Powell
+ */
+public class SnifferSession implements Runnable, LineColorizer
+{
+
+    private static final Color[] PORT_COLORS = {
+        Color.rgb(0, 60, 170), Color.rgb(170, 30, 0), Color.rgb(0, 120, 40), Color.rgb(120, 0, 140)
+    };
+    /**
+     * Where the port letter is in each line, after the time
+     */
+    private static final int LABEL_COLUMN = 14;
+    /**
+     * Lines are broken after this many bytes even without a newline
+     */
+    private static final int MAX_LINE = 200;
+    private final CommPortInterface[] ports;
+    private final RxByteStore[] stores;
+    private final Scrollback out;
+    private final long reorderNanos;
+    private final long[] cursors;
+    private final long[] positions;
+    private final Thread merger;
+    private volatile boolean running = false;
+    private long startNanos;
+
+    // used only by the merger thread
+    private final byte[] chunk = new byte[16384];
+    private final byte[] lines = new byte[65536];
+    private int linesLength = 0;
+    private int currentPort = -1;
+    private int lineLength = 0;
+    private boolean atLineStart = true;
+    private long lastEmitted = Long.MIN_VALUE;
+
+    // statistics
+    private final long[] byteCounts;
+    private final long[] lostBytes;
+    private volatile long lateBlocks = 0;
+    private volatile long maxDelayNanos = 0;
+
+    /**
+     * Creates a new instance of SnifferSession
+     *
+     * @param ports the ports to merge, open and at most four of them
+     * @param out where the merged stream is written
+     * @param reorderMillis how long a block waits for older blocks from other ports
+     */
+    public SnifferSession(CommPortInterface[] ports, Scrollback out, long reorderMillis)
+    {
+        this.ports = ports.clone();
+        this.out = out;
+        reorderNanos = reorderMillis * 1000000;
+        stores = new RxByteStore[ports.length];
+        for (int i = 0; i < ports.length; i++)
+        {
+            stores[i] = ports[i].getRxStore();
+        }
+        cursors = new long[ports.length];
+        positions = new long[ports.length];
+        byteCounts = new long[ports.length];
+        lostBytes = new long[ports.length];
+        merger = new Thread(this, "SnifferMerger");
+        merger.setDaemon(true);
+    }
+
+    /**
+     * Starts merging whatever the ports receive from now on
+     */
+    public void start()
+    {
+        for (int i = 0; i < stores.length; i++)
+        {
+            cursors[i] = stores[i].getBlockCount();
+            positions[i] = stores[i].getWritePosition();
+        }
+        startNanos = System.nanoTime();
+        running = true;
+        merger.start();
+    }
+
+    /**
+     * Stops merging, after writing out what has already arrived
+     */
+    public void stop()
+    {
+        running = false;
+        LockSupport.unpark(merger);
+        try
+        {
+            merger.join(1000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    public int getPortCount()
+    {
+        return ports.length;
+    }
+
+    /**
+     * Gets the number of bytes merged from a port
+     */
+    public long getByteCount(int port)
+    {
+        return byteCounts[port];
+    }
+
+    /**
+     * Gets the number of bytes from a port that were overwritten in its
+     * store before they could be merged
+     */
+    public long getLostBytes(int port)
+    {
+        return lostBytes[port];
+    }
+
+    /**
+     * Gets the number of blocks that arrived too late to go in order, which
+     * means the reorder window is too small
+     */
+    public long getLateBlocks()
+    {
+        return lateBlocks;
+    }
+
+    /**
+     * Gets the longest a block waited between being read and being merged
+     */
+    public long getMaxDelayNanos()
+    {
+        return maxDelayNanos;
+    }
+
+    @Override
+    public Color colorOf(long line, byte[] text, int length)
+    {
+        if (length <= LABEL_COLUMN)
+        {
+            return Color.BLACK;
+        }
+        int port = text[LABEL_COLUMN] - 'A';
+        return port >= 0 && port < PORT_COLORS.length ? PORT_COLORS[port] : Color.BLACK;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            long now = System.nanoTime();
+            int oldest = -1;
+            long oldestTime = Long.MAX_VALUE;
+            boolean allWaiting = true;
+            for (int i = 0; i < stores.length; i++)
+            {
+                if (cursors[i] < stores[i].getBlockCount())
+                {
+                    long time = stores[i].getBlockTime(cursors[i]);
+                    if (!stores[i].isBlockRetained(cursors[i]))
+                    {
+                        // lapped, the time may be a later block's, so have merge catch up now
+                        time = Math.min(time, now - reorderNanos);
+                    }
+                    if (time < oldestTime)
+                    {
+                        oldest = i;
+                        oldestTime = time;
+                    }
+                }
+                else
+                {
+                    allWaiting = false;
+                }
+            }
+            if (oldest >= 0 && (allWaiting || now - oldestTime >= reorderNanos || !running))
+            {
+                merge(oldest, oldestTime, now);
+                continue;
+            }
+            flush();
+            if (!running)
+            {
+                return;
+            }
+            LockSupport.parkNanos(oldest < 0 ? 1000000 : Math.min(1000000, oldestTime + reorderNanos - now));
+        }
+    }
+
+    /**
+     * Takes the block at the head of a port's store
+     */
+    private void merge(int port, long time, long now)
+    {
+        RxByteStore store = stores[port];
+        long block = cursors[port];
+        long start = store.getBlockStart(block);
+        int length = store.getBlockLength(block);
+        // checked after reading the record, in case the writer was reusing it
+        if (!store.isBlockRetained(block) || start < store.getOldestPosition())
+        {
+            // lapped, carry on from half way back in what is held
+            long resume = Math.max(block + 1, store.getBlockCount() - store.getBlockCapacity() / 2);
+            while (resume < store.getBlockCount() && store.getBlockStart(resume) < store.getOldestPosition())
+            {
+                resume++;
+            }
+            long resumePosition = resume < store.getBlockCount() ? store.getBlockStart(resume) : store.getWritePosition();
+            lostBytes[port] += Math.max(0, resumePosition - positions[port]);
+            positions[port] = resumePosition;
+            cursors[port] = resume;
+            return;
+        }
+        if (time < lastEmitted)
+        {
+            lateBlocks++;
+        }
+        lastEmitted = Math.max(lastEmitted, time);
+        maxDelayNanos = Math.max(maxDelayNanos, now - time);
+        for (long done = 0; done < length;)
+        {
+            int count = store.read(start + done, chunk, 0, (int) Math.min(chunk.length, length - done));
+            if (count < 0)
+            {
+                lostBytes[port] += length - done;
+                break;
+            }
+            append(port, time, count);
+            done += count;
+        }
+        byteCounts[port] += length;
+        positions[port] = start + length;
+        cursors[port] = block + 1;
+    }
+
+    /**
+     * Writes bytes from a port to the merged lines
+     */
+    private void append(int port, long time, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (port != currentPort || atLineStart || lineLength >= MAX_LINE)
+            {
+                header(port, time);
+            }
+            byte b = chunk[i];
+            if (b == '\n')
+            {
+                atLineStart = true;
+            }
+            else
+            {
+                put(b);
+                lineLength++;
+            }
+        }
+    }
+
+    /**
+     * Starts a line with the time and the port letter, for example
+     * "    12.345678 A> "
+     */
+    private void header(int port, long time)
+    {
+        if (linesLength > 0 || currentPort >= 0)
+        {
+            put((byte) '\n');
+        }
+        long micros = Math.max(0, time - startNanos) / 1000;
+        long seconds = micros / 1000000;
+        for (long limit = 100000; limit > 1 && seconds < limit; limit /= 10)
+        {
+            put((byte) ' ');
+        }
+        putNumber(seconds, 1);
+        put((byte) '.');
+        putNumber(micros % 1000000, 6);
+        put((byte) ' ');
+        put((byte) ('A' + port));
+        put((byte) '>');
+        put((byte) ' ');
+        currentPort = port;
+        atLineStart = false;
+        lineLength = 0;
+    }
+
+    private void putNumber(long value, int minDigits)
+    {
+        long scale = 1;
+        int digits = 1;
+        while (value / scale >= 10 || digits < minDigits)
+        {
+            scale *= 10;
+            digits++;
+        }
+        for (; scale > 0; scale /= 10)
+        {
+            put((byte) ('0' + value / scale % 10));
+        }
+    }
+
+    private void put(byte b)
+    {
+        if (linesLength == lines.length)
+        {
+            flush();
+        }
+        lines[linesLength++] = b;
+    }
+
+    private void flush()
+    {
+        if (linesLength > 0)
+        {
+            out.append(lines, 0, linesLength);
+            linesLength = 0;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import stermfx.comms.RxByteStore;
+
+/**
+ * Writes a range of a TextSource, or of the received bytes in an RxByteStore,
+ * to a file a chunk at a time, so the memory used is the same whatever the
+ * size of the range. Only the RxByteStore holds the bytes as they came off
+ * the wire; a TextSource such as the scrollback holds the displayed text.
+ *
+ * The formats are:
+ *      RAW     - the bytes exactly as held
+ *      TEXT    - each byte as a character in UTF-8, with CR LF and lone CR
+ *                line ends written as LF and other control characters dropped
+ *      HEX     - a hex dump, 16 bytes to a line with the offset and the
+ *                printable characters
+ *
+ * @author Brian Powell
+ */
+public class Exporter
+{
+
+    public enum Format
+    {
+        RAW, TEXT, HEX
+    }
+
+    /**
+     * Receives progress, called on the exporting thread
+     */
+    public interface Listener
+    {
+        public void progress(long done, long total);
+    }
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private final TextSource source;
+    private final RxByteStore store;
+    private final long from;
+    private final long to;
+    private final Format format;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    /**
+     * Big enough for a chunk in the largest format, a hex dump line for every 16 bytes
+     */
+    private final ByteBuffer output = ByteBuffer.allocateDirect(CHUNK_SIZE / 16 * 80);
+    private boolean lastWasCr = false;
+    private volatile boolean cancelled = false;
+    /**
+     * Bytes in the range that were dropped or overwritten before they could be written
+     */
+    private volatile long skipped = 0;
+
+    /**
+     * Creates a new instance of Exporter
+     *
+     * @param source where the bytes come from
+     * @param from the position of the first byte to export
+     * @param to the position just past the last byte to export
+     * @param format how the bytes are written
+     */
+    public Exporter(TextSource source, long from, long to, Format format)
+    {
+        this.source = source;
+        this.store = null;
+        this.from = from;
+        this.to = to;
+        this.format = format;
+    }
+
+    /**
+     * Creates an Exporter of received bytes
+     *
+     * @param store where the bytes come from
+     * @param from the position of the first byte to export
+     * @param to the position just past the last byte to export
+     * @param format how the bytes are written
+     */
+    public Exporter(RxByteStore store, long from, long to, Format format)
+    {
+        this.source = null;
+        this.store = store;
+        this.from = from;
+        this.to = to;
+        this.format = format;
+    }
+
+    /**
+     * Stops the export as soon as possible. Safe to call from any thread.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Gets the number of bytes in the range that were dropped or overwritten
+     * before they could be written, and so are missing from the file
+     */
+    public long getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * Writes the range to a file, replacing anything already there. Received
+     * bytes are overwritten from the oldest as more arrive, so the export
+     * starts a little clear of the oldest and, if the receiver catches it up
+     * anyway, carries on from a quarter of the way into what is still held.
+     *
+     * @param file the file to write
+     * @param listener receives progress after each chunk, may be null
+     * @return the number of source bytes written, less than the range if
+     *         cancelled or if bytes were skipped, see getSkipped
+     * @throws IOException if the file cannot be written
+     */
+    public long export(Path file, Listener listener) throws IOException
+    {
+        long position = skipTo(from, from);
+        if (store != null && store.getOldestPosition() > 0)
+        {
+            // the oldest received bytes are the next to be overwritten
+            position = skipTo(position, store.getOldestPosition() + Math.min(CHUNK_SIZE, getHeld() / 16));
+        }
+        long written = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            while (position < to && !cancelled)
+            {
+                int length = (int) Math.min(CHUNK_SIZE, to - position);
+                int count = store == null ? source.read(position, chunk, 0, length)
+                        : store.read(position, chunk, 0, length);
+                if (count < 0)
+                {
+                    // caught up by the receiver, so get well clear of it
+                    position = skipTo(position, store == null ? position : store.getOldestPosition() + getHeld() / 4);
+                    continue;
+                }
+                if (count == 0)
+                {
+                    break;
+                }
+                output.clear();
+                switch (format)
+                {
+                    case TEXT:
+                        encodeText(count);
+                        break;
+                    case HEX:
+                        encodeHex(position - from, count);
+                        break;
+                    default:
+                        output.put(chunk, 0, count);
+                }
+                output.flip();
+                while (output.hasRemaining())
+                {
+                    channel.write(output);
+                }
+                position += count;
+                written += count;
+                if (listener != null)
+                {
+                    listener.progress(position - from, to - from);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Gets the number of received bytes the store holds
+     */
+    private long getHeld()
+    {
+        return store.getWritePosition() - store.getOldestPosition();
+    }
+
+    /**
+     * Moves the export forward to a position that is still held, counting
+     * the bytes passed over as skipped
+     *
+     * @param position where the export has got to
+     * @param target where it should carry on from, if that is still held
+     * @return where to carry on from
+     */
+    private long skipTo(long position, long target)
+    {
+        long oldest = store == null ? source.getStart() : store.getOldestPosition();
+        long next = Math.min(to, Math.max(position, Math.max(target, oldest)));
+        skipped += next - position;
+        return next;
+    }
+
+    private void encodeText(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int c = chunk[i] & 0xFF;
+            boolean cr = c == '\r';
+            if (cr || (c == '\n' && !lastWasCr))
+            {
+                output.put((byte) '\n');
+            }
+            else if (c == '\t' || (c >= ' ' && c < 0x7F))
+            {
+                output.put((byte) c);
+            }
+            else if (c >= 0xA0)
+            {
+                // Latin-1 above ASCII is two bytes in UTF-8
+                output.put((byte) (0xC0 | (c >>> 6)));
+                output.put((byte) (0x80 | (c & 0x3F)));
+            }
+            lastWasCr = cr;
+        }
+    }
+
+    private void encodeHex(long offset, int count)
+    {
+        for (int line = 0; line < count; line += 16)
+        {
+            long address = offset + line;
+            for (int shift = 28; shift >= 0; shift -= 4)
+            {
+                output.put(HEX_DIGITS[(int) (address >>> shift) & 0xF]);
+            }
+            output.put((byte) ' ');
+            int n = Math.min(16, count - line);
+            for (int i = 0; i < 16; i++)
+            {
+                output.put((byte) ' ');
+                if (i == 8)
+                {
+                    output.put((byte) ' ');
+                }
+                if (i < n)
+                {
+                    output.put(HEX_DIGITS[(chunk[line + i] >>> 4) & 0xF]);
+                    output.put(HEX_DIGITS[chunk[line + i] & 0xF]);
+                }
+                else
+                {
+                    output.put((byte) ' ');
+                    output.put((byte) ' ');
+                }
+            }
+            output.put((byte) ' ');
+            output.put((byte) ' ');
+            output.put((byte) '|');
+            for (int i = 0; i < n; i++)
+            {
+                int c = chunk[line + i] & 0xFF;
+                output.put((byte) (c >= ' ' && c < 0x7F ? c : '.'));
+            }
+            output.put((byte) '|');
+            output.put((byte) '\n');
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the lines of a TextSource that match a filter, kept up to date
+ * as lines arrive.
+ *
+ * A worker thread scans the source a batch of lines at a time and appends
+ * the numbers of the matching lines to a long[]. Once it has caught up it
+ * only looks at lines added since, so a live filter costs about as much as
+ * the text arriving. Only complete lines are matched.
+ *
+ * Every query used is kept on a stack along with how far it had got. A
+ * substring query that contains the one before it can only match a subset
+ * of its lines, so it starts by checking just those lines rather than the
+ * whole history; deleting characters goes back down the stack to a query
+ * that has already been indexed, which then only needs to catch up. A
+ * query that is unrelated to the stack, or a regular expression, has to be
+ * scanned from the start, which happens in the background with the
+ * matches showing as they are found.
+ *
+ * Matches are numbered from the first one found, like the lines of the
+ * source. When the source drops its oldest lines the matches for them are
+ * dropped too, so the index only holds as much as the source does.
+ *
+ * @author Brian Powell
+ */
+public class FilterIndex implements Runnable
+{
+
+    private static final int BATCH_LINES = 4096;
+    private static final int MAX_LINE_BYTES = 4096;
+    private static final int MAX_STACK_DEPTH = 32;
+
+    /**
+     * The matches for one query
+     */
+    private static final class Query
+    {
+
+        final String text;
+        final boolean regex;
+        final byte[] needle;
+        final Matcher matcher;
+        /**
+         * The line numbers that match, in order, guarded by the index. Match
+         * number dropped is held at lines[head] and count is the number of
+         * matches ever found, so there are count - dropped of them held.
+         */
+        long[] lines = new long[1024];
+        int head = 0;
+        int dropped = 0;
+        int count = 0;
+        /**
+         * Every line before this one has been checked
+         */
+        long scanned;
+        /**
+         * The query this one refines and how much of it to refine
+         */
+        Query parent;
+        int parentCount;
+        int refined = 0;
+
+        Query(String text, boolean regex)
+        {
+            this.text = text;
+            this.regex = regex;
+            needle = regex ? null : text.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+            matcher = regex ? Pattern.compile(text).matcher("") : null;
+        }
+    }
+
+    /**
+     * A view of a line's bytes as characters, for the regular expression matcher
+     */
+    private static final class LineChars implements CharSequence
+    {
+
+        byte[] bytes;
+        int start;
+        int length;
+
+        @Override
+        public int length()
+        {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            return (char) (bytes[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to)
+        {
+            return new String(bytes, start + from, to - from, java.nio.charset.StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return subSequence(0, length).toString();
+        }
+    }
+    private final TextSource source;
+    private final Deque<Query> stack = new ArrayDeque<>();
+    private volatile Query active;
+    private volatile boolean running = true;
+    private final Thread worker;
+    private final byte[] lineBytes = new byte[MAX_LINE_BYTES];
+    private final LineChars lineChars = new LineChars();
+
+    /**
+     * Creates a new instance of FilterIndex, with no filter
+     *
+     * @param source the text to filter
+     */
+    public FilterIndex(TextSource source)
+    {
+        this.source = source;
+        lineChars.bytes = lineBytes;
+        worker = new Thread(this, "FilterIndex");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.NORM_PRIORITY - 1);
+        worker.start();
+    }
+
+    public TextSource getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Changes the filter. Called on the UI thread, it never scans anything itself.
+     *
+     * @param text the substring or regular expression to match, empty for no filter
+     * @param regex true if text is a regular expression
+     * @throws java.util.regex.PatternSyntaxException if the expression is not valid
+     */
+    public synchronized void setQuery(String text, boolean regex)
+    {
+        if (text.isEmpty())
+        {
+            active = null;
+            return;
+        }
+        // go back to the newest query this one is the same as or narrows
+        while (!stack.isEmpty() && !narrows(text, regex, stack.peek()))
+        {
+            stack.pop();
+        }
+        Query top = stack.peek();
+        if (top != null && top.text.equals(text) && top.regex == regex)
+        {
+            active = top;
+        }
+        else
+        {
+            Query query = new Query(text, regex);
+            if (top != null)
+            {
+                // a query still refining has not checked all the lines below
+                // where it was scanned to, so start from the one it refines
+                Query base = top;
+                while (base.parent != null)
+                {
+                    base = base.parent;
+                }
+                // only the lines the broader query matched can match this one;
+                // matches from a batch still being scanned are past scanned
+                query.parent = base;
+                query.scanned = base.scanned;
+                query.parentCount = findMatch(base, base.scanned);
+            }
+            stack.push(query);
+            if (stack.size() > MAX_STACK_DEPTH)
+            {
+                stack.removeLast();
+            }
+            active = query;
+        }
+        notifyAll();
+    }
+
+    private static boolean narrows(String text, boolean regex, Query query)
+    {
+        if (regex || query.regex)
+        {
+            return regex == query.regex && text.equals(query.text);
+        }
+        return text.contains(query.text);
+    }
+
+    /**
+     * Checks if a filter is set
+     */
+    public boolean isActive()
+    {
+        return active != null;
+    }
+
+    /**
+     * Gets the number of matching lines found so far, including any since
+     * dropped, which is one past the number of the newest match
+     */
+    public synchronized int getMatchCount()
+    {
+        return active == null ? 0 : active.count;
+    }
+
+    /**
+     * Gets the line number of a match
+     *
+     * @param index from findMatch(getSource().getFirstLine()) up to the match count,
+     * a match that has since been dropped gives the oldest one held
+     */
+    public synchronized long getMatch(int index)
+    {
+        return active.lines[active.head + Math.max(0, index - active.dropped)];
+    }
+
+    /**
+     * Finds the first match at or after a line, for skipping lines the source has dropped
+     *
+     * @return the index of the match, or the match count if there is none
+     */
+    public synchronized int findMatch(long line)
+    {
+        return active == null ? 0 : findMatch(active, line);
+    }
+
+    private static int findMatch(Query query, long line)
+    {
+        int low = query.dropped;
+        int high = query.count;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (query.lines[query.head + middle - query.dropped] < line)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets how far through the source the filter has got
+     *
+     * @return from 0 to 1
+     */
+    public double getProgress()
+    {
+        Query query = active;
+        long lines = source.getLineCount() - 1;
+        if (query == null || lines <= 0)
+        {
+            return 1;
+        }
+        return Math.min(1, (double) query.scanned / lines);
+    }
+
+    /**
+     * Stops the worker thread
+     */
+    public synchronized void close()
+    {
+        running = false;
+        notifyAll();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                Query query = active;
+                if (query == null || !step(query))
+                {
+                    synchronized (this)
+                    {
+                        // woken early when the query changes
+                        wait(50);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // stopped
+        }
+    }
+
+    /**
+     * Does one batch of work on a query
+     *
+     * @return false if there was nothing to do
+     */
+    private boolean step(Query query)
+    {
+        dropOldMatches(query);
+        if (query.parent != null)
+        {
+            refine(query);
+            return true;
+        }
+        // only complete lines, the last one may still be growing
+        long end = source.getLineCount() - 1;
+        long from = Math.max(query.scanned, source.getFirstLine());
+        if (from >= end)
+        {
+            return false;
+        }
+        long to = Math.min(end, from + BATCH_LINES);
+        for (long line = from; line < to; line++)
+        {
+            if (matches(query, line))
+            {
+                addMatch(query, line);
+            }
+        }
+        synchronized (this)
+        {
+            query.scanned = to;
+        }
+        return true;
+    }
+
+    /**
+     * Checks a batch of the parent's matches against the narrower query
+     */
+    private void refine(Query query)
+    {
+        Query parent = query.parent;
+        int to = Math.min(query.parentCount, query.refined + BATCH_LINES);
+        for (int i = query.refined; i < to; i++)
+        {
+            long line;
+            synchronized (this)
+            {
+                if (i < parent.dropped)
+                {
+                    // the source has dropped the line as well
+                    continue;
+                }
+                line = parent.lines[parent.head + i - parent.dropped];
+            }
+            if (line >= source.getFirstLine() && matches(query, line))
+            {
+                addMatch(query, line);
+            }
+        }
+        synchronized (this)
+        {
+            query.refined = to;
+            if (to == query.parentCount)
+            {
+                query.parent = null;
+            }
+        }
+    }
+
+    private boolean matches(Query query, long line)
+    {
+        long start = source.getLineStart(line);
+        long end = source.getLineStart(line + 1);
+        int length = source.read(start, lineBytes, 0, (int) Math.min(MAX_LINE_BYTES, end - start));
+        // leave out the line ending
+        while (length > 0 && (lineBytes[length - 1] == '\n' || lineBytes[length - 1] == '\r'))
+        {
+            length--;
+        }
+        if (length <= 0)
+        {
+            return false;
+        }
+        if (query.regex)
+        {
+            lineChars.start = 0;
+            lineChars.length = length;
+            return query.matcher.reset(lineChars).find();
+        }
+        return indexOf(lineBytes, length, query.needle) >= 0;
+    }
+
+    private static int indexOf(byte[] haystack, int length, byte[] needle)
+    {
+        byte first = needle[0];
+        int last = length - needle.length;
+        for (int i = 0; i <= last; i++)
+        {
+            if (haystack[i] != first)
+            {
+                continue;
+            }
+            int j = 1;
+            while (j < needle.length && haystack[i + j] == needle[j])
+            {
+                j++;
+            }
+            if (j == needle.length)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void addMatch(Query query, long line)
+    {
+        int held = query.count - query.dropped;
+        if (query.head + held == query.lines.length)
+        {
+            // reuse the room left by dropped matches if it is worth the copy
+            long[] lines = query.head >= query.lines.length / 2 ? query.lines : new long[query.lines.length * 2];
+            System.arraycopy(query.lines, query.head, lines, 0, held);
+            query.lines = lines;
+            query.head = 0;
+        }
+        query.lines[query.head + held] = line;
+        query.count++;
+    }
+
+    /**
+     * Forgets the matches for lines the source no longer holds. The space is
+     * reclaimed when the array next fills.
+     */
+    private synchronized void dropOldMatches(Query query)
+    {
+        long firstLine = source.getFirstLine();
+        int end = query.head + query.count - query.dropped;
+        int head = query.head;
+        while (head < end && query.lines[head] < firstLine)
+        {
+            head++;
+        }
+        query.dropped += head - query.head;
+        query.head = head;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+import javafx.scene.paint.Color;
+
+/**
+ * Picks the colour a TextSourceView draws a line in.
+ *
+ * Called on the FX thread for each line drawn, so it must be quick and
+ * should not allocate.
+ *
+ * @author Brian Powell
+ */
+public interface LineColorizer
+{
+
+    /**
+     * Gets the colour of a line
+     *
+     * @param line the line number in the source
+     * @param text the start of the line as read from the source
+     * @param length the number of bytes of text
+     * @return the colour to draw the line in
+     */
+    Color colorOf(long line, byte[] text, int length);
+}
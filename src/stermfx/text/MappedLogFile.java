@@ -0,0 +1,329 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A log file of any size, memory mapped and indexed by line so it can be
+ * shown in a TextSourceView.
+ *
+ * The file is mapped in 1 GB regions and never read into the heap; the
+ * operating system pages in whatever is being looked at. The line index is
+ * built with fork/join over 16 MB segments in two passes, the first
+ * counting the newlines in each segment and the second writing each
+ * newline's position straight into its place in the index, so there are no
+ * intermediate lists to merge. The index is packed into an int per line: the
+ * low 32 bits of each newline position, with the high bits recovered from a
+ * small table of the first newline in each 4 GB page.
+ *
+ * Java has no way to unmap a file, so the mapping goes when the object is
+ * garbage collected.
+ *
+ * @author Brian Powell
+ */
+public class MappedLogFile implements TextSource
+{
+
+    /**
+     * Receives progress, called on the indexing threads
+     */
+    public interface Listener
+    {
+        public void progress(long done, long total);
+    }
+    private static final int REGION_SHIFT = 30;
+    private static final int SEGMENT_SHIFT = 24;
+    private static final int PAGE_SHIFT = 32;
+    private static final int SCAN_CHUNK = 1 << 16;
+    private final Path path;
+    private final long size;
+    private final MappedByteBuffer[] regions;
+    /**
+     * The low 32 bits of the position of every newline
+     */
+    private final int[] newlines;
+    /**
+     * The index of the first newline in each 4 GB page
+     */
+    private final int[] pageFirstNewline;
+
+    private MappedLogFile(Path path, long size, MappedByteBuffer[] regions, int[] newlines, int[] pageFirstNewline)
+    {
+        this.path = path;
+        this.size = size;
+        this.regions = regions;
+        this.newlines = newlines;
+        this.pageFirstNewline = pageFirstNewline;
+    }
+
+    /**
+     * Maps and indexes a file
+     *
+     * @param path the file to open
+     * @param listener receives progress, may be null
+     * @return the indexed file
+     * @throws IOException if the file cannot be mapped or has too many lines to index
+     */
+    public static MappedLogFile open(Path path, final Listener listener) throws IOException
+    {
+        final long size;
+        final MappedByteBuffer[] regions;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            size = channel.size();
+            regions = new MappedByteBuffer[(int) ((size + (1L << REGION_SHIFT) - 1) >>> REGION_SHIFT)];
+            for (int r = 0; r < regions.length; r++)
+            {
+                long start = (long) r << REGION_SHIFT;
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << REGION_SHIFT, size - start));
+            }
+        }
+
+        final int segments = (int) ((size + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT);
+        final int[] counts = new int[segments];
+        final AtomicLong scanned = new AtomicLong();
+        final long total = 2 * size;
+        ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            // first pass, count the newlines in each segment
+            pool.invoke(new SegmentTask(new Pass()
+            {
+
+                @Override
+                public void scanSegment(int segment)
+                {
+                    counts[segment] = scan(regions, size, segment, null, 0);
+                    report(listener, scanned, segmentLength(size, segment), total);
+                }
+            }, 0, segments));
+
+            // where each segment's newlines go in the index
+            final int[] firstNewline = new int[segments + 1];
+            long count = 0;
+            for (int segment = 0; segment < segments; segment++)
+            {
+                firstNewline[segment] = (int) count;
+                count += counts[segment];
+                if (count > Integer.MAX_VALUE - 1)
+                {
+                    throw new IOException(path + " has too many lines to index");
+                }
+            }
+            firstNewline[segments] = (int) count;
+            final int[] newlines = new int[(int) count];
+
+            // second pass, write the newline positions into place
+            pool.invoke(new SegmentTask(new Pass()
+            {
+
+                @Override
+                public void scanSegment(int segment)
+                {
+                    scan(regions, size, segment, newlines, firstNewline[segment]);
+                    report(listener, scanned, segmentLength(size, segment), total);
+                }
+            }, 0, segments));
+
+            // segments never straddle a page, so each page starts with a segment
+            int[] pageFirstNewline = new int[(int) (size >>> PAGE_SHIFT) + 1];
+            for (int page = 0; page < pageFirstNewline.length; page++)
+            {
+                pageFirstNewline[page] = firstNewline[page << (PAGE_SHIFT - SEGMENT_SHIFT)];
+            }
+            return new MappedLogFile(path, size, regions, newlines, pageFirstNewline);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static void report(Listener listener, AtomicLong scanned, long length, long total)
+    {
+        long done = scanned.addAndGet(length);
+        if (listener != null)
+        {
+            listener.progress(done, total);
+        }
+    }
+
+    private static long segmentLength(long size, int segment)
+    {
+        long start = (long) segment << SEGMENT_SHIFT;
+        return Math.min(1L << SEGMENT_SHIFT, size - start);
+    }
+
+    /**
+     * Finds the newlines in one segment
+     *
+     * @param newlines where to write the low bits of their positions, or null just to count them
+     * @param index where in newlines to write the first one
+     * @return the number found
+     */
+    private static int scan(MappedByteBuffer[] regions, long size, int segment, int[] newlines, int index)
+    {
+        long start = (long) segment << SEGMENT_SHIFT;
+        long length = segmentLength(size, segment);
+        // segments never straddle a region
+        ByteBuffer region = regions[(int) (start >>> REGION_SHIFT)].duplicate();
+        region.position((int) (start & ((1L << REGION_SHIFT) - 1)));
+        byte[] chunk = new byte[SCAN_CHUNK];
+        int found = 0;
+        for (long offset = 0; offset < length; offset += SCAN_CHUNK)
+        {
+            int n = (int) Math.min(SCAN_CHUNK, length - offset);
+            region.get(chunk, 0, n);
+            for (int i = 0; i < n; i++)
+            {
+                if (chunk[i] == '\n')
+                {
+                    if (newlines != null)
+                    {
+                        newlines[index + found] = (int) (start + offset + i);
+                    }
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * One pass over the segments
+     */
+    private interface Pass
+    {
+        public void scanSegment(int segment);
+    }
+
+    /**
+     * Splits a range of segments in half until there is one left to scan
+     */
+    private static final class SegmentTask extends RecursiveAction
+    {
+
+        private static final long serialVersionUID = 1L;
+        private final Pass pass;
+        private final int from;
+        private final int to;
+
+        SegmentTask(Pass pass, int from, int to)
+        {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= 1)
+            {
+                if (from < to)
+                {
+                    pass.scanSegment(from);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SegmentTask(pass, from, middle), new SegmentTask(pass, middle, to));
+        }
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    @Override
+    public long getStart()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return size;
+    }
+
+    @Override
+    public int read(long position, byte[] data, int offset, int length)
+    {
+        int copied = 0;
+        while (copied < length && position < size)
+        {
+            ByteBuffer region = regions[(int) (position >>> REGION_SHIFT)].duplicate();
+            int index = (int) (position & ((1L << REGION_SHIFT) - 1));
+            int n = Math.min(length - copied, region.limit() - index);
+            region.position(index);
+            region.get(data, offset + copied, n);
+            copied += n;
+            position += n;
+        }
+        return copied;
+    }
+
+    @Override
+    public long getFirstLine()
+    {
+        return 0;
+    }
+
+    @Override
+    public long getLineCount()
+    {
+        return newlines.length + 1L;
+    }
+
+    @Override
+    public long getLineStart(long line)
+    {
+        if (line <= 0)
+        {
+            return 0;
+        }
+        if (line > newlines.length)
+        {
+            return size;
+        }
+        return newlinePosition((int) (line - 1)) + 1;
+    }
+
+    private long newlinePosition(int index)
+    {
+        int page = pageFirstNewline.length - 1;
+        while (pageFirstNewline[page] > index)
+        {
+            page--;
+        }
+        return ((long) page << PAGE_SHIFT) | (newlines[index] & 0xFFFFFFFFL);
+    }
+}
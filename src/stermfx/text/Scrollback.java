@@ -0,0 +1,404 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The terminal's scrollback, kept in fixed size blocks that are compressed
+ * once they go cold.
+ *
+ * The newest few blocks stay raw so appending and showing the tail cost
+ * nothing extra. As each block fills, the block that has just dropped out of
+ * that hot tail is handed to a background thread that deflates it; repetitive
+ * log output typically shrinks ten to fifty times. Cold blocks are inflated
+ * again on demand when something reads them, with the most recently inflated
+ * block cached, so scrolling through history or searching it sequentially
+ * inflates each block once.
+ *
+ * The start position of every line is kept in a long[] so any line can be
+ * found without scanning. Once the stored size, blocks and line index
+ * together, goes over the limit the oldest blocks, and their lines, are
+ * dropped.
+ *
+ * Appends may come from any one thread at a time, reads from any thread.
+ *
+ * @author Brian Powell
+ */
+public class Scrollback implements TextSource
+{
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int MIN_LINE_STARTS = 4096;
+    /**
+     * A block of scrollback, either raw or compressed
+     */
+    private static final class Block
+    {
+
+        byte[] raw = new byte[BLOCK_SIZE];
+        byte[] compressed;
+        int length;
+
+        int storedSize()
+        {
+            return raw != null ? raw.length : compressed.length;
+        }
+    }
+    private final int hotBlocks;
+    private final long maxStoredBytes;
+    /**
+     * The blocks still held, oldest first, guarded by this
+     */
+    private final List<Block> blocks = new ArrayList<>();
+    private long droppedBlocks = 0;
+    private long length = 0;
+    private long storedBytes = 0;
+    /**
+     * The start of each line still held, from lineStarts[lineOffset], guarded by this
+     */
+    private long[] lineStarts = new long[MIN_LINE_STARTS];
+    private int lineOffset = 0;
+    private int lineSize = 1;
+    private long firstLine = 0;
+    private final Inflater inflater = new Inflater();
+    private Block inflatedBlock;
+    private final byte[] inflated = new byte[BLOCK_SIZE];
+    private final ExecutorService compressor;
+    /**
+     * Used only on the compressor thread
+     */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] deflated = new byte[BLOCK_SIZE];
+
+    /**
+     * Creates a new instance of Scrollback
+     *
+     * @param hotBlocks how many of the newest 64 KB blocks are kept raw
+     * @param maxStoredBytes the most memory to use before dropping the oldest text
+     */
+    public Scrollback(int hotBlocks, long maxStoredBytes)
+    {
+        this.hotBlocks = Math.max(1, hotBlocks);
+        this.maxStoredBytes = maxStoredBytes;
+        compressor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "ScrollbackCompressor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        addBlock();
+    }
+
+    /**
+     * Appends bytes to the scrollback
+     */
+    public synchronized void append(byte[] data, int offset, int count)
+    {
+        while (count > 0)
+        {
+            Block tail = blocks.get(blocks.size() - 1);
+            if (tail.length == BLOCK_SIZE)
+            {
+                tail = addBlock();
+            }
+            int n = Math.min(count, BLOCK_SIZE - tail.length);
+            System.arraycopy(data, offset, tail.raw, tail.length, n);
+            for (int i = 0; i < n; i++)
+            {
+                if (data[offset + i] == '\n')
+                {
+                    addLineStart(length + i + 1);
+                }
+            }
+            tail.length += n;
+            length += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Appends a single byte to the scrollback
+     */
+    public synchronized void append(byte b)
+    {
+        Block tail = blocks.get(blocks.size() - 1);
+        if (tail.length == BLOCK_SIZE)
+        {
+            tail = addBlock();
+        }
+        tail.raw[tail.length++] = b;
+        length++;
+        if (b == '\n')
+        {
+            addLineStart(length);
+        }
+    }
+
+    /**
+     * Adds a new tail block, sending the one leaving the hot tail to be
+     * compressed and dropping the oldest if over the limit. Called with the
+     * lock held.
+     */
+    private Block addBlock()
+    {
+        Block block = new Block();
+        blocks.add(block);
+        storedBytes += block.storedSize();
+        if (blocks.size() > hotBlocks)
+        {
+            final Block cold = blocks.get(blocks.size() - 1 - hotBlocks);
+            compressor.execute(new Runnable()
+            {
+
+                @Override
+                public void run()
+                {
+                    compress(cold);
+                }
+            });
+        }
+        dropOverLimit();
+        return block;
+    }
+
+    /**
+     * Drops the oldest blocks until the blocks and the line index fit in the
+     * limit, or only the hot tail is left. Called with the lock held.
+     */
+    private void dropOverLimit()
+    {
+        while (storedBytes + 8L * lineStarts.length > maxStoredBytes && blocks.size() > hotBlocks + 1)
+        {
+            dropOldestBlock();
+        }
+    }
+
+    private void dropOldestBlock()
+    {
+        Block oldest = blocks.remove(0);
+        storedBytes -= oldest.storedSize();
+        droppedBlocks++;
+        if (oldest == inflatedBlock)
+        {
+            inflatedBlock = null;
+        }
+        long start = getStart();
+        while (lineSize > 1 && lineStarts[lineOffset] < start)
+        {
+            lineOffset++;
+            lineSize--;
+            firstLine++;
+        }
+        if (lineStarts.length > MIN_LINE_STARTS && lineSize <= lineStarts.length / 4)
+        {
+            // give back the room the dropped lines took, it counts against the limit
+            long[] smaller = new long[lineStarts.length / 2];
+            System.arraycopy(lineStarts, lineOffset, smaller, 0, lineSize);
+            lineStarts = smaller;
+            lineOffset = 0;
+        }
+    }
+
+    private void addLineStart(long position)
+    {
+        if (lineOffset + lineSize == lineStarts.length)
+        {
+            if (lineOffset > lineStarts.length / 2)
+            {
+                // enough has been dropped from the front to make room by sliding down
+                System.arraycopy(lineStarts, lineOffset, lineStarts, 0, lineSize);
+            }
+            else
+            {
+                long[] bigger = new long[lineStarts.length * 2];
+                System.arraycopy(lineStarts, lineOffset, bigger, 0, lineSize);
+                lineStarts = bigger;
+                lineOffset = 0;
+                lineStarts[lineSize++] = position;
+                // the bigger index may take the total over the limit
+                dropOverLimit();
+                return;
+            }
+            lineOffset = 0;
+        }
+        lineStarts[lineOffset + lineSize++] = position;
+    }
+
+    /**
+     * Deflates a full block on the compressor thread, keeping it raw if that
+     * doesn't save anything
+     */
+    private void compress(Block block)
+    {
+        byte[] raw;
+        synchronized (this)
+        {
+            raw = block.raw;
+        }
+        if (raw == null)
+        {
+            return;
+        }
+        // the block is full and no longer written to, so it can be read without the lock
+        deflater.reset();
+        deflater.setInput(raw, 0, BLOCK_SIZE);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < deflated.length)
+        {
+            size += deflater.deflate(deflated, size, deflated.length - size);
+        }
+        if (!deflater.finished())
+        {
+            return;
+        }
+        byte[] compressed = new byte[size];
+        System.arraycopy(deflated, 0, compressed, 0, size);
+        synchronized (this)
+        {
+            int before = block.storedSize();
+            block.compressed = compressed;
+            block.raw = null;
+            if (blocks.contains(block))
+            {
+                storedBytes += block.storedSize() - before;
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getStart()
+    {
+        return droppedBlocks * BLOCK_SIZE;
+    }
+
+    @Override
+    public synchronized long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Gets the memory used by the blocks held, raw and compressed, and the line index
+     */
+    public synchronized long getStoredBytes()
+    {
+        return storedBytes + 8L * lineStarts.length;
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] data, int offset, int count)
+    {
+        if (position < getStart())
+        {
+            return -1;
+        }
+        int copied = 0;
+        while (copied < count && position < length)
+        {
+            Block block = blocks.get((int) (position / BLOCK_SIZE - droppedBlocks));
+            byte[] bytes = block.raw != null ? block.raw : inflate(block);
+            int index = (int) (position % BLOCK_SIZE);
+            int n = Math.min(count - copied, block.length - index);
+            System.arraycopy(bytes, index, data, offset + copied, n);
+            copied += n;
+            position += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Inflates a compressed block into the cache. Called with the lock held.
+     */
+    private byte[] inflate(Block block)
+    {
+        if (block != inflatedBlock)
+        {
+            inflater.reset();
+            inflater.setInput(block.compressed);
+            try
+            {
+                int size = 0;
+                while (!inflater.finished() && size < BLOCK_SIZE)
+                {
+                    size += inflater.inflate(inflated, size, BLOCK_SIZE - size);
+                }
+            }
+            catch (DataFormatException ex)
+            {
+                Logger.getLogger(Scrollback.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            inflatedBlock = block;
+        }
+        return inflated;
+    }
+
+    @Override
+    public synchronized long getFirstLine()
+    {
+        return firstLine;
+    }
+
+    @Override
+    public synchronized long getLineCount()
+    {
+        return firstLine + lineSize;
+    }
+
+    /**
+     * Gets the position where a line starts. A line dropped since the caller
+     * looked at getFirstLine gives the start of the oldest line still held,
+     * as index workers race with the dropping.
+     */
+    @Override
+    public synchronized long getLineStart(long line)
+    {
+        if (line >= firstLine + lineSize)
+        {
+            return length;
+        }
+        return lineStarts[lineOffset + (int) (Math.max(line, firstLine) - firstLine)];
+    }
+
+    /**
+     * Stops the background compression
+     */
+    public void close()
+    {
+        compressor.shutdownNow();
+    }
+}
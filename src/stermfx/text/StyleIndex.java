@@ -0,0 +1,471 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package stermfx.text;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javafx.scene.paint.Color;
+
+/**
+ * The colours of the lines of a TextSource, worked out once as each line
+ * is completed and kept as packed style runs.
+ *
+ * A worker thread runs the rules over each new complete line, the way a
+ * FilterIndex matches them, so drawing and scrolling only ever look the
+ * runs up and lines that are never shown cost nothing on the FX thread.
+ * A rule either colours the whole line, the first line rule that matches
+ * giving the line its colour, or just the text it matches, which is drawn
+ * over the line's colour.
+ *
+ * Each run is an int, the column it starts at in the top 24 bits and the
+ * style in the bottom 8, and lasts until the next run or the end of the
+ * line. Style 0 is the view's own colour, so a plain line has no runs at
+ * all. The runs are kept in one int[] and the index of each line's first
+ * run in a long[], both dropping their oldest entries as the source drops
+ * its oldest lines, which keeps the cost at 8 bytes a line plus 4 a run.
+ *
+ * @author Brian Powell
+ */
+public class StyleIndex implements Runnable
+{
+
+    private static final int BATCH_LINES = 4096;
+    private static final int MAX_LINE_BYTES = 4096;
+    private static final int MAX_STYLES = 256;
+
+    /**
+     * A colouring rule
+     */
+    public static final class Rule
+    {
+
+        final Pattern pattern;
+        final Color color;
+        final boolean wholeLine;
+
+        /**
+         * Creates a new instance of Rule
+         *
+         * @param regex what to look for
+         * @param color the colour to draw it in
+         * @param wholeLine true to colour the whole line, false for just the matched text
+         */
+        public Rule(String regex, Color color, boolean wholeLine)
+        {
+            this.pattern = Pattern.compile(regex);
+            this.color = color;
+            this.wholeLine = wholeLine;
+        }
+
+        /**
+         * Makes a rule from a setting of the form line|match,colour,regular expression
+         *
+         * @throws IllegalArgumentException if the setting is not valid
+         */
+        public static Rule parse(String setting)
+        {
+            String[] parts = setting.split(",", 3);
+            if (parts.length < 3 || !(parts[0].trim().equals("line") || parts[0].trim().equals("match")))
+            {
+                throw new IllegalArgumentException("Colour rule '" + setting + "' is not line|match,colour,regex");
+            }
+            return new Rule(parts[2], Color.web(parts[1].trim()), parts[0].trim().equals("line"));
+        }
+    }
+
+    /**
+     * A view of a line's bytes as characters, for the matchers
+     */
+    private static final class LineChars implements CharSequence
+    {
+
+        byte[] bytes;
+        int length;
+
+        @Override
+        public int length()
+        {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            return (char) (bytes[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to)
+        {
+            return new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return subSequence(0, length).toString();
+        }
+    }
+    private final TextSource source;
+    private final Rule[] rules;
+    private final Matcher[] matchers;
+    /**
+     * The colour of each style, style 0 being the view's own
+     */
+    private final Color[] colors;
+    private final byte[] ruleStyles;
+    private volatile boolean running = true;
+    private final Thread worker;
+    private final byte[] lineBytes = new byte[MAX_LINE_BYTES];
+    private final LineChars lineChars = new LineChars();
+    /**
+     * The style of each column of the line being styled, used when only
+     * part of a line is coloured
+     */
+    private final byte[] columnStyles = new byte[MAX_LINE_BYTES];
+    private int[] lineRunsOut = new int[64];
+    /**
+     * The index of the first run of each line styled, from
+     * lineRuns[lineOffset] for firstLine, with one more entry than there are
+     * lines for where the next line's runs will go. Guarded by this.
+     */
+    private long[] lineRuns = new long[4096];
+    private int lineOffset = 0;
+    private int lineSize = 1;
+    private long firstLine = 0;
+    /**
+     * The runs, runs[runOffset] being run number runBase, up to runEnd. Guarded by this.
+     */
+    private int[] runs = new int[4096];
+    private int runOffset = 0;
+    private long runBase = 0;
+    private long runEnd = 0;
+
+    /**
+     * Creates a new instance of StyleIndex and starts styling
+     *
+     * @param source the text to style
+     * @param rules the rules, in order of precedence
+     */
+    public StyleIndex(TextSource source, List<Rule> rules)
+    {
+        this.source = source;
+        this.rules = rules.toArray(new Rule[Math.min(rules.size(), MAX_STYLES - 1)]);
+        matchers = new Matcher[this.rules.length];
+        colors = new Color[this.rules.length + 1];
+        ruleStyles = new byte[this.rules.length];
+        for (int i = 0; i < this.rules.length; i++)
+        {
+            matchers[i] = this.rules[i].pattern.matcher("");
+            colors[i + 1] = this.rules[i].color;
+            ruleStyles[i] = (byte) (i + 1);
+        }
+        lineChars.bytes = lineBytes;
+        worker = new Thread(this, "StyleIndex");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.NORM_PRIORITY - 1);
+        worker.start();
+    }
+
+    public TextSource getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Gets the colour of a style
+     *
+     * @return the colour, or null for style 0
+     */
+    public Color getColor(int style)
+    {
+        return colors[style];
+    }
+
+    /**
+     * Gets the column a packed run starts at
+     */
+    public static int runColumn(int run)
+    {
+        return run >>> 8;
+    }
+
+    /**
+     * Gets the style of a packed run
+     */
+    public static int runStyle(int run)
+    {
+        return run & 0xFF;
+    }
+
+    /**
+     * Gets the line after the last one styled
+     */
+    public synchronized long getStyledLineCount()
+    {
+        return firstLine + lineSize - 1;
+    }
+
+    /**
+     * Copies out the runs of a line. Called on the FX thread, it never styles anything itself.
+     *
+     * @param line the line number in the source
+     * @param out where to put the runs
+     * @return the number of runs copied, 0 for a plain line or one not styled yet
+     */
+    public synchronized int getRuns(long line, int[] out)
+    {
+        if (line < firstLine || line >= firstLine + lineSize - 1)
+        {
+            return 0;
+        }
+        int index = lineOffset + (int) (line - firstLine);
+        long from = lineRuns[index];
+        int count = (int) Math.min(out.length, lineRuns[index + 1] - from);
+        System.arraycopy(runs, runOffset + (int) (from - runBase), out, 0, count);
+        return count;
+    }
+
+    /**
+     * Stops the worker thread
+     */
+    public synchronized void close()
+    {
+        running = false;
+        notifyAll();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                if (!step())
+                {
+                    synchronized (this)
+                    {
+                        wait(50);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // stopped
+        }
+    }
+
+    /**
+     * Styles a batch of lines
+     *
+     * @return false if there was nothing to do
+     */
+    private boolean step()
+    {
+        long sourceFirst = source.getFirstLine();
+        long from;
+        synchronized (this)
+        {
+            dropBefore(sourceFirst);
+            from = firstLine + lineSize - 1;
+        }
+        // only complete lines, the last one may still be growing
+        long end = source.getLineCount() - 1;
+        if (from >= end)
+        {
+            return false;
+        }
+        long to = Math.min(end, from + BATCH_LINES);
+        for (long line = from; line < to; line++)
+        {
+            int count = style(line);
+            synchronized (this)
+            {
+                addLine(count);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Works out the runs of a line into lineRunsOut
+     *
+     * @return the number of runs
+     */
+    private int style(long line)
+    {
+        long start = source.getLineStart(line);
+        long end = source.getLineStart(line + 1);
+        int length = source.read(start, lineBytes, 0, (int) Math.min(MAX_LINE_BYTES, end - start));
+        // leave out the line ending
+        while (length > 0 && (lineBytes[length - 1] == '\n' || lineBytes[length - 1] == '\r'))
+        {
+            length--;
+        }
+        if (length <= 0)
+        {
+            return 0;
+        }
+        lineChars.length = length;
+        byte lineStyle = 0;
+        boolean partial = false;
+        for (int i = 0; i < rules.length; i++)
+        {
+            // once the line has its colour only the match rules are left to try
+            if (rules[i].wholeLine && lineStyle != 0 || !rules[i].wholeLine && partial)
+            {
+                continue;
+            }
+            if (matchers[i].reset(lineChars).find())
+            {
+                if (rules[i].wholeLine)
+                {
+                    lineStyle = ruleStyles[i];
+                }
+                else
+                {
+                    partial = true;
+                }
+            }
+        }
+        if (!partial)
+        {
+            if (lineStyle == 0)
+            {
+                return 0;
+            }
+            lineRunsOut[0] = lineStyle & 0xFF;
+            return 1;
+        }
+        // colour column by column, going through the match rules last first so earlier ones win
+        for (int i = 0; i < length; i++)
+        {
+            columnStyles[i] = lineStyle;
+        }
+        for (int i = rules.length - 1; i >= 0; i--)
+        {
+            if (!rules[i].wholeLine)
+            {
+                Matcher matcher = matchers[i].reset(lineChars);
+                while (matcher.find())
+                {
+                    for (int column = matcher.start(); column < matcher.end(); column++)
+                    {
+                        columnStyles[column] = ruleStyles[i];
+                    }
+                }
+            }
+        }
+        int count = 0;
+        int previous = 0;
+        for (int column = 0; column < length; column++)
+        {
+            int style = columnStyles[column] & 0xFF;
+            if (style != previous)
+            {
+                if (count == lineRunsOut.length)
+                {
+                    int[] bigger = new int[count * 2];
+                    System.arraycopy(lineRunsOut, 0, bigger, 0, count);
+                    lineRunsOut = bigger;
+                }
+                lineRunsOut[count++] = (column << 8) | style;
+                previous = style;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the lines the source has dropped, starting again from its
+     * first line if styling has fallen behind it. Called with the lock held.
+     */
+    private void dropBefore(long line)
+    {
+        if (line >= firstLine + lineSize - 1)
+        {
+            firstLine = line;
+            lineOffset = 0;
+            lineSize = 1;
+            lineRuns[0] = runEnd;
+            runOffset = 0;
+            runBase = runEnd;
+            return;
+        }
+        if (line > firstLine)
+        {
+            int dropped = (int) (line - firstLine);
+            lineOffset += dropped;
+            lineSize -= dropped;
+            firstLine = line;
+            long base = lineRuns[lineOffset];
+            runOffset += (int) (base - runBase);
+            runBase = base;
+        }
+    }
+
+    /**
+     * Appends the runs of the next line. Called with the lock held.
+     */
+    private void addLine(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int size = (int) (runEnd - runBase);
+            if (runOffset + size == runs.length)
+            {
+                if (runOffset > runs.length / 2)
+                {
+                    // enough has been dropped from the front to make room by sliding down
+                    System.arraycopy(runs, runOffset, runs, 0, size);
+                }
+                else
+                {
+                    int[] bigger = new int[runs.length * 2];
+                    System.arraycopy(runs, runOffset, bigger, 0, size);
+                    runs = bigger;
+                }
+                runOffset = 0;
+            }
+            runs[runOffset + size] = lineRunsOut[i];
+            runEnd++;
+        }
+        if (lineOffset + lineSize == lineRuns.length)
+        {
+            if (lineOffset > lineRuns.length / 2)
+            {
+                System.arraycopy(lineRuns, lineOffset, lineRuns, 0, lineSize);
+            }
+            else
+            {
+                long[] bigger = new long[lineRuns.length * 2];
+                System.arraycopy(lineRuns, lineOffset, bigger, 0, lineSize);
+                lineRuns = bigger;
+            }
+            lineOffset = 0;
+        }
+        lineRuns[lineOffset + lineSize++] = runEnd;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+/**
+ * A body of text, addressed by byte position and by line, that a
+ * TextSourceView can show without it ever being held as one string.
+ *
+ * Lines are numbered from 0 at the start of the source. A source may drop
+ * its oldest text, in which case getStart and getFirstLine move forward.
+ * Each line runs from its start up to the start of the next line, or to the
+ * end of the source for the last line, and includes its terminator.
+ *
+ * @author Brian Powell
+ */
+public interface TextSource
+{
+
+    /**
+     * Gets the position of the oldest byte still held
+     */
+    public long getStart();
+
+    /**
+     * Gets the position just past the newest byte
+     */
+    public long getLength();
+
+    /**
+     * Copies bytes out of the source
+     *
+     * @return the number of bytes copied, or -1 if the position is no longer held
+     */
+    public int read(long position, byte[] data, int offset, int length);
+
+    /**
+     * Gets the number of the oldest line still held
+     */
+    public long getFirstLine();
+
+    /**
+     * Gets the number of lines, counting a final unterminated line
+     */
+    public long getLineCount();
+
+    /**
+     * Gets the position where a line starts
+     *
+     * @param line from getFirstLine up to getLineCount, where getLineCount gives getLength
+     */
+    public long getLineStart(long line);
+}
@@ -0,0 +1,433 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package stermfx.text;
+
+import javafx.animation.AnimationTimer;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.EventHandler;
+import javafx.geometry.Orientation;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+/**
+ * Shows a TextSource of any size a screenful at a time.
+ *
+ * Only the lines that fit in the view are read from the source and drawn on
+ * a canvas, so the cost of a frame depends on the size of the window and not
+ * on the size of the source, and nothing is redrawn unless the source grows
+ * or the view is scrolled or resized. While scrolled to the end the view
+ * follows new text as it arrives.
+ *
+ * Whole lines are selected by dragging, or by clicking and shift clicking.
+ *
+ * With a FilterIndex set only the lines it has matched are shown, and
+ * selection is turned off since the lines shown are not contiguous.
+ *
+ * A line is drawn in the colour a LineColorizer picks for it, or with a
+ * StyleIndex set, in the style runs already worked out for it.
+ *
+ * @author Brian Powell
+ */
+public class TextSourceView extends Pane
+{
+
+    /**
+     * The most characters of a line that are drawn
+     */
+    private static final int MAX_COLUMNS = 1024;
+    private static final Font FONT = Font.font("Monospaced", 13);
+    private static final Color BACKGROUND = Color.rgb(218, 226, 224);
+    private static final Color SELECTION = Color.rgb(150, 180, 220);
+    private final Canvas canvas = new Canvas();
+    private final ScrollBar scrollBar = new ScrollBar();
+    private final AnimationTimer timer;
+    private final double lineHeight;
+    private final double baseline;
+    private final double charWidth;
+    private TextSource source;
+    private FilterIndex filter;
+    private LineColorizer colorizer;
+    private StyleIndex styles;
+    private long topLine = 0;
+    private boolean follow = true;
+    private boolean dirty = true;
+    private boolean adjusting = false;
+    private long drawnLength = -1;
+    private int drawnMatches = -1;
+    private long drawnStyled = -1;
+    /**
+     * The line selection started from and the line it extends to, -1 for none
+     */
+    private long anchorLine = -1;
+    private long focusLine = -1;
+    private final byte[] lineBytes = new byte[MAX_COLUMNS];
+    private final char[] lineChars = new char[MAX_COLUMNS];
+    private final int[] lineRuns = new int[MAX_COLUMNS];
+
+    /**
+     * Creates a new instance of TextSourceView
+     */
+    public TextSourceView()
+    {
+        Text sample = new Text("Xg");
+        sample.setFont(FONT);
+        lineHeight = Math.ceil(sample.getLayoutBounds().getHeight());
+        baseline = Math.ceil(-sample.getLayoutBounds().getMinY());
+        sample.setText("XXXXXXXXXX");
+        charWidth = sample.getLayoutBounds().getWidth() / 10;
+
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        getChildren().addAll(canvas, scrollBar);
+        scrollBar.valueProperty().addListener(new ChangeListener<Number>()
+        {
+
+            @Override
+            public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue)
+            {
+                if (!adjusting)
+                {
+                    topLine = newValue.longValue();
+                    follow = newValue.doubleValue() >= scrollBar.getMax();
+                    dirty = true;
+                }
+            }
+        });
+        setOnScroll(new EventHandler<ScrollEvent>()
+        {
+
+            @Override
+            public void handle(ScrollEvent event)
+            {
+                scrollBy(event.getDeltaY() > 0 ? -3 : 3);
+            }
+        });
+        setOnMousePressed(new EventHandler<MouseEvent>()
+        {
+
+            @Override
+            public void handle(MouseEvent event)
+            {
+                if (isFiltered())
+                {
+                    return;
+                }
+                long line = lineAt(event.getY());
+                if (!event.isShiftDown() || anchorLine < 0)
+                {
+                    anchorLine = line;
+                }
+                focusLine = line;
+                dirty = true;
+            }
+        });
+        setOnMouseDragged(new EventHandler<MouseEvent>()
+        {
+
+            @Override
+            public void handle(MouseEvent event)
+            {
+                if (isFiltered())
+                {
+                    return;
+                }
+                // dragging past the top or bottom scrolls
+                if (event.getY() < 0)
+                {
+                    scrollBy(-1);
+                }
+                else if (event.getY() > canvas.getHeight())
+                {
+                    scrollBy(1);
+                }
+                focusLine = lineAt(event.getY());
+                dirty = true;
+            }
+        });
+        timer = new AnimationTimer()
+        {
+
+            @Override
+            public void handle(long now)
+            {
+                redrawIfNeeded();
+            }
+        };
+    }
+
+    /**
+     * Sets the text shown, starting at the end of it
+     */
+    public void setSource(TextSource source)
+    {
+        this.source = source;
+        anchorLine = -1;
+        focusLine = -1;
+        follow = true;
+        dirty = true;
+    }
+
+    public TextSource getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Shows only the lines matched by a filter over the source
+     *
+     * @param filter the filter, or null to show every line
+     */
+    public void setFilter(FilterIndex filter)
+    {
+        this.filter = filter;
+        anchorLine = -1;
+        focusLine = -1;
+        follow = true;
+        dirty = true;
+    }
+
+    public FilterIndex getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * Sets what picks the colour of each line
+     *
+     * @param colorizer the colorizer, or null to draw every line in black
+     */
+    public void setColorizer(LineColorizer colorizer)
+    {
+        this.colorizer = colorizer;
+        dirty = true;
+    }
+
+    /**
+     * Sets the style runs to draw lines with, taking over from the colorizer
+     * for the lines they cover
+     *
+     * @param styles the styles of the source's lines, or null for none
+     */
+    public void setStyles(StyleIndex styles)
+    {
+        this.styles = styles;
+        dirty = true;
+    }
+
+    private boolean isFiltered()
+    {
+        return filter != null && filter.isActive();
+    }
+
+    /**
+     * Gets the position where the selection starts
+     *
+     * @return the position, or -1 if nothing is selected
+     */
+    public long getSelectionStart()
+    {
+        if (anchorLine < 0 || source == null)
+        {
+            return -1;
+        }
+        return source.getLineStart(Math.min(anchorLine, focusLine));
+    }
+
+    /**
+     * Gets the position just past the end of the selection
+     *
+     * @return the position, or -1 if nothing is selected
+     */
+    public long getSelectionEnd()
+    {
+        if (anchorLine < 0 || source == null)
+        {
+            return -1;
+        }
+        return source.getLineStart(Math.max(anchorLine, focusLine) + 1);
+    }
+
+    public void clearSelection()
+    {
+        anchorLine = -1;
+        focusLine = -1;
+        dirty = true;
+    }
+
+    private long lineAt(double y)
+    {
+        long line = topLine + (long) Math.floor(Math.max(0, Math.min(y, canvas.getHeight() - 1)) / lineHeight);
+        return source == null ? line : Math.max(source.getFirstLine(), Math.min(line, source.getLineCount() - 1));
+    }
+
+    /**
+     * Scrolls so the line is at the top of the view
+     */
+    public void scrollToLine(long line)
+    {
+        topLine = line;
+        follow = false;
+        dirty = true;
+    }
+
+    /**
+     * Scrolls up, for negative lines, or down
+     */
+    public void scrollBy(long lines)
+    {
+        topLine += lines;
+        follow = lines > 0 && topLine >= scrollBar.getMax();
+        dirty = true;
+    }
+
+    /**
+     * Starts drawing
+     */
+    public void start()
+    {
+        dirty = true;
+        timer.start();
+    }
+
+    /**
+     * Stops drawing
+     */
+    public void stop()
+    {
+        timer.stop();
+    }
+
+    @Override
+    protected void layoutChildren()
+    {
+        double barWidth = scrollBar.prefWidth(-1);
+        scrollBar.resizeRelocate(getWidth() - barWidth, 0, barWidth, getHeight());
+        canvas.setWidth(Math.max(0, getWidth() - barWidth));
+        canvas.setHeight(getHeight());
+        dirty = true;
+    }
+
+    private void redrawIfNeeded()
+    {
+        if (source == null)
+        {
+            return;
+        }
+        long length = source.getLength();
+        boolean filtered = isFiltered();
+        int matches = filtered ? filter.getMatchCount() : -1;
+        // lines are styled a little after they arrive
+        long styled = styles == null ? -1 : styles.getStyledLineCount();
+        if (!dirty && length == drawnLength && matches == drawnMatches && styled == drawnStyled)
+        {
+            return;
+        }
+        dirty = false;
+        drawnLength = length;
+        drawnMatches = matches;
+        drawnStyled = styled;
+
+        int rows = (int) (canvas.getHeight() / lineHeight);
+        // when filtered, lines here count matches rather than lines of the source
+        long firstLine = filtered ? filter.findMatch(source.getFirstLine()) : source.getFirstLine();
+        long lineCount = filtered ? matches : source.getLineCount();
+        long lastTop = Math.max(firstLine, lineCount - rows);
+        if (follow)
+        {
+            topLine = lastTop;
+        }
+        topLine = Math.max(firstLine, Math.min(topLine, lastTop));
+        adjusting = true;
+        scrollBar.setMin(firstLine);
+        scrollBar.setMax(lastTop);
+        scrollBar.setVisibleAmount(rows);
+        scrollBar.setBlockIncrement(Math.max(1, rows - 1));
+        scrollBar.setValue(topLine);
+        adjusting = false;
+        draw(rows, lineCount, filtered);
+    }
+
+    private void draw(int rows, long lineCount, boolean filtered)
+    {
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.setFill(BACKGROUND);
+        gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        gc.setFont(FONT);
+        long start = source.getStart();
+        long selectedFrom = Math.min(anchorLine, focusLine);
+        long selectedTo = Math.max(anchorLine, focusLine);
+        for (int row = 0; row < rows && topLine + row < lineCount; row++)
+        {
+            long line = filtered ? filter.getMatch((int) (topLine + row)) : topLine + row;
+            if (anchorLine >= 0 && line >= selectedFrom && line <= selectedTo)
+            {
+                gc.setFill(SELECTION);
+                gc.fillRect(0, row * lineHeight, canvas.getWidth(), lineHeight);
+            }
+            long from = Math.max(start, source.getLineStart(line));
+            long to = source.getLineStart(line + 1);
+            int count = source.read(from, lineBytes, 0, (int) Math.min(MAX_COLUMNS, Math.max(0, to - from)));
+            Color plain = colorizer == null ? Color.BLACK : colorizer.colorOf(line, lineBytes, Math.max(0, count));
+            Color color = plain;
+            int runCount = styles == null ? 0 : styles.getRuns(line, lineRuns);
+            int run = 0;
+            int length = 0;
+            for (int i = 0; i < count; i++)
+            {
+                // runs are by byte, turn them into the column of the character drawn
+                while (run < runCount && StyleIndex.runColumn(lineRuns[run]) <= i)
+                {
+                    lineRuns[run] = (length << 8) | StyleIndex.runStyle(lineRuns[run]);
+                    run++;
+                }
+                char c = (char) (lineBytes[i] & 0xFF);
+                if (c == '\r' || c == '\n')
+                {
+                    continue;
+                }
+                lineChars[length++] = c < ' ' ? ' ' : c;
+            }
+            double y = row * lineHeight + baseline;
+            int drawn = 0;
+            for (int i = 0; i <= run; i++)
+            {
+                int end = i < run ? StyleIndex.runColumn(lineRuns[i]) : length;
+                if (end > drawn)
+                {
+                    gc.setFill(color);
+                    gc.fillText(new String(lineChars, drawn, end - drawn), 4 + drawn * charWidth, y);
+                    drawn = end;
+                }
+                if (i < run)
+                {
+                    Color runColor = styles.getColor(StyleIndex.runStyle(lineRuns[i]));
+                    color = runColor != null ? runColor : plain;
+                }
+            }
+        }
+    }
+}
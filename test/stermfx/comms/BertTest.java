@@ -0,0 +1,126 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the bit error rate checker on generated sequences, without a port
+ *
+ * @author Brian Powell
+ */
+public class BertTest
+{
+
+    private static Bert checker(Bert.Pattern pattern, String dataBits) throws IOException
+    {
+        CommPort commPort = new CommPort(null, new File(System.getProperty("java.io.tmpdir"), "BertTest.properties").getPath());
+        commPort.setDataBits(dataBits);
+        return new Bert(commPort.commPortInterface(), commPort, pattern);
+    }
+
+    /**
+     * Generates a sequence as a UART sends it, each bit the XOR of the bits
+     * degree and tap places back, first bit of each character in bit 0
+     */
+    private static byte[] sequence(int degree, int tap, int bitsPerChar, int chars)
+    {
+        int bits = chars * bitsPerChar;
+        int[] history = new int[degree + bits];
+        for (int i = 0; i < degree; i++)
+        {
+            history[i] = 1;
+        }
+        byte[] data = new byte[chars];
+        for (int i = 0; i < bits; i++)
+        {
+            int n = degree + i;
+            history[n] = history[n - degree] ^ history[n - tap];
+            data[i / bitsPerChar] |= history[n] << (i % bitsPerChar);
+        }
+        return data;
+    }
+
+    @Test
+    public void locksOnEachPatternAndFindsNoErrors() throws IOException
+    {
+        for (Bert.Pattern pattern : Bert.Pattern.values())
+        {
+            for (String dataBits : new String[] {"8", "7"})
+            {
+                Bert bert = checker(pattern, dataBits);
+                int bitsPerChar = Integer.parseInt(dataBits);
+                byte[] data = sequence(pattern.degree, pattern.tap, bitsPerChar, 4000);
+                bert.bytesReceived(data, 0, data.length, 0);
+                assertTrue(pattern + " " + dataBits, bert.isLocked());
+                assertEquals(0, bert.getBitErrors());
+                // locking takes the degree plus 64 bits, everything after is checked
+                long searched = (pattern.degree + 64 + bitsPerChar - 1) / bitsPerChar;
+                assertTrue(bert.getBitsChecked() >= (4000 - searched - 1) * bitsPerChar);
+                assertEquals(4000, bert.getRxBytes());
+            }
+        }
+    }
+
+    @Test
+    public void countsASingleBitError() throws IOException
+    {
+        Bert bert = checker(Bert.Pattern.PRBS15, "8");
+        byte[] data = sequence(15, 14, 8, 4000);
+        data[2000] ^= 0x10;
+        // split across blocks as it would arrive
+        bert.bytesReceived(data, 0, 1500, 0);
+        bert.bytesReceived(data, 1500, 2500, 0);
+        assertTrue(bert.isLocked());
+        assertEquals(1, bert.getBitErrors());
+        assertEquals(1, bert.getCharErrors());
+        assertEquals(0, bert.getResyncs());
+    }
+
+    @Test
+    public void resynchronizesAfterADroppedCharacter() throws IOException
+    {
+        Bert bert = checker(Bert.Pattern.PRBS7, "8");
+        byte[] data = sequence(7, 6, 8, 8000);
+        // lose character 3000
+        bert.bytesReceived(data, 0, 3000, 0);
+        bert.bytesReceived(data, 3001, 4999, 0);
+        assertTrue(bert.isLocked());
+        assertEquals(1, bert.getResyncs());
+        // at most the part of a window before it noticed, rather than half of every bit after
+        assertTrue(bert.getBitErrors() < 1024 / 8);
+    }
+
+    @Test
+    public void doesNotLockOnNoise() throws IOException
+    {
+        Bert bert = checker(Bert.Pattern.PRBS23, "8");
+        byte[] data = new byte[4000];
+        new Random(1).nextBytes(data);
+        bert.bytesReceived(data, 0, data.length, 0);
+        assertFalse(bert.isLocked());
+        assertEquals(0, bert.getBitsChecked());
+    }
+}
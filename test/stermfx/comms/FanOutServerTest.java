@@ -0,0 +1,196 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests sharing a loopback port with TCP clients
+ *
+ * @author Brian Powell
+ */
+public class FanOutServerTest
+{
+
+    private CommPort commPort;
+    private FanOutServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (Socket socket : sockets)
+        {
+            socket.close();
+        }
+        if (server != null)
+        {
+            server.stop();
+        }
+        if (commPort != null)
+        {
+            commPort.commPortInterface().closeCommPort();
+        }
+    }
+
+    private LoopbackPort open(String name) throws IOException
+    {
+        commPort = new CommPort(null, new File(System.getProperty("java.io.tmpdir"), name + ".properties").getPath());
+        commPort.setBackend("Loopback");
+        commPort.setCommPortName(name);
+        commPort.commPortInterface().openCommPort(commPort);
+        server = new FanOutServer(commPort.commPortInterface(), new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        return LoopbackPort.get(name);
+    }
+
+    private Socket connect(int receiveBufferSize) throws Exception
+    {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(receiveBufferSize);
+        socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        sockets.add(socket);
+        awaitClients(sockets.size());
+        return socket;
+    }
+
+    private void awaitClients(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getClientCount() != count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertEquals(count, server.getClientCount());
+    }
+
+    private static byte[] pattern(int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i ^ i >>> 8 ^ i >>> 16);
+        }
+        return data;
+    }
+
+    /**
+     * Reads a set number of bytes from a socket on a thread of its own
+     */
+    private static class Reader extends Thread
+    {
+
+        final InputStream in;
+        final byte[] bytes;
+        Exception failure;
+
+        Reader(Socket socket, int length) throws IOException
+        {
+            in = socket.getInputStream();
+            bytes = new byte[length];
+            start();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                new DataInputStream(in).readFully(bytes);
+            }
+            catch (IOException ex)
+            {
+                failure = ex;
+            }
+        }
+    }
+
+    /**
+     * Sends bytes from the device at about the rate of a fast serial port
+     */
+    private static void sendFromDevice(LoopbackPort port, byte[] data) throws Exception
+    {
+        OutputStream device = port.getDeviceOutputStream();
+        for (int i = 0; i < data.length; i += 4096)
+        {
+            device.write(data, i, Math.min(4096, data.length - i));
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void sendsEveryClientEverythingReceived() throws Exception
+    {
+        LoopbackPort port = open("FanOutShare");
+        byte[] data = pattern(4 << 20);
+        List<Reader> readers = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            readers.add(new Reader(connect(65536), data.length));
+        }
+        sendFromDevice(port, data);
+        for (Reader reader : readers)
+        {
+            reader.join(10000);
+            assertEquals(null, reader.failure);
+            assertArrayEquals(data, reader.bytes);
+        }
+    }
+
+    @Test
+    public void onlyTheWriterSendsToThePort() throws Exception
+    {
+        LoopbackPort port = open("FanOutWriter");
+        Socket writer = connect(65536);
+        Socket other = connect(65536);
+        other.getOutputStream().write("ignored".getBytes("US-ASCII"));
+        Thread.sleep(100);
+        writer.getOutputStream().write("hello".getBytes("US-ASCII"));
+        byte[] sent = new byte[5];
+        new DataInputStream(port.getDeviceInputStream()).readFully(sent);
+        assertEquals("hello", new String(sent, "US-ASCII"));
+    }
+
+    @Test
+    public void dropsAClientThatFallsTooFarBehind() throws Exception
+    {
+        LoopbackPort port = open("FanOutSlow");
+        byte[] data = pattern(8 << 20);
+        Reader fast = new Reader(connect(65536), data.length);
+        // never read from
+        connect(4096);
+        sendFromDevice(port, data);
+        fast.join(10000);
+        assertEquals(null, fast.failure);
+        assertArrayEquals(data, fast.bytes);
+        awaitClients(1);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the Linux tty backend against a pseudo terminal pair. The pair comes
+ * from a small python3 helper that relays between its stdin and stdout and the
+ * master side, so the test plays the device. Skipped where there is no
+ * /dev/ptmx, stty or python3.
+ *
+ * @author Brian Powell
+ */
+public class LinuxTtySerialBackendTest
+{
+
+    /**
+     * Opens a PTY pair, prints the slave's name and relays the master to
+     * stdin and stdout. Keeps the slave open itself so the master never
+     * reads as hung up between the backend closing and opening it.
+     */
+    private static final String RELAY = "import os, pty, select, sys\n"
+            + "m, s = pty.openpty()\n"
+            + "sys.stdout.write(os.ttyname(s) + '\\n')\n"
+            + "sys.stdout.flush()\n"
+            + "while True:\n"
+            + "    r = select.select([m, 0], [], [])[0]\n"
+            + "    if m in r:\n"
+            + "        os.write(1, os.read(m, 4096))\n"
+            + "    if 0 in r:\n"
+            + "        d = os.read(0, 4096)\n"
+            + "        if not d:\n"
+            + "            break\n"
+            + "        os.write(m, d)\n";
+    private Process relay;
+    private OutputStream toDevice;
+    private InputStream fromDevice;
+    private String slave;
+    private CommPort commPort;
+
+    private static boolean runs(String... command)
+    {
+        try
+        {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            while (process.getInputStream().read() >= 0)
+            {
+                // drain
+            }
+            return process.waitFor() == 0;
+        }
+        catch (IOException | InterruptedException ex)
+        {
+            return false;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        assumeTrue(new File("/dev/ptmx").exists());
+        assumeTrue(runs("stty", "--version"));
+        assumeTrue(runs("python3", "-c", "import pty"));
+        relay = new ProcessBuilder("python3", "-u", "-c", RELAY).start();
+        toDevice = relay.getOutputStream();
+        fromDevice = relay.getInputStream();
+        slave = new BufferedReader(new InputStreamReader(fromDevice, StandardCharsets.US_ASCII), 1).readLine();
+        assertNotNull(slave);
+        commPort = new CommPort(null, new File(System.getProperty("java.io.tmpdir"), "LinuxTtyTest.properties").getPath());
+        commPort.setBackend("Linux");
+        commPort.setCommPortName(slave);
+        commPort.setBaudRate("19200");
+        // a pseudo terminal refuses character size and parity changes, so 8N2
+        commPort.setDataBits("8");
+        commPort.setStopBits("2");
+        commPort.setParity("None");
+        commPort.setFlowControl("None");
+        commPort.commPortInterface().openCommPort(commPort);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (commPort != null && commPort.commPortInterface().isPortOpen())
+        {
+            commPort.commPortInterface().closeCommPort();
+        }
+        if (relay != null)
+        {
+            relay.destroy();
+        }
+    }
+
+    private String stty() throws IOException
+    {
+        Process process = new ProcessBuilder("stty", "-F", slave, "-a").redirectErrorStream(true).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = process.getInputStream().read(buffer)) > 0)
+        {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Waits for the backend to have received the text, then checks it
+     */
+    private void assertReceived(long from, String text) throws InterruptedException
+    {
+        RxByteStore store = commPort.commPortInterface().getRxStore();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getWritePosition() < from + text.length() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        byte[] received = new byte[text.length()];
+        assertEquals(text.length(), store.read(from, received, 0, received.length));
+        assertEquals(text, new String(received, StandardCharsets.US_ASCII));
+    }
+
+    private String readFromDevice(int length) throws IOException
+    {
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length)
+        {
+            int count = fromDevice.read(bytes, done, length - done);
+            assertTrue(count > 0);
+            done += count;
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static Thread findReader()
+    {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith("LinuxTtyReader"))
+            {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void configuresTheLine() throws IOException
+    {
+        String settings = stty();
+        List<String> flags = Arrays.asList(settings.split("[\\s;]+"));
+        assertTrue(settings, settings.contains("speed 19200 baud"));
+        assertTrue(settings, flags.containsAll(Arrays.asList("cs8", "-parenb", "cstopb", "-crtscts", "-ixon", "-ixoff")));
+        assertTrue(settings, flags.containsAll(Arrays.asList("-echo", "-icanon", "-opost")));
+        assertTrue(settings, settings.contains("min = 0") && settings.contains("time = 1"));
+    }
+
+    @Test
+    public void readsAndWrites() throws Exception
+    {
+        toDevice.write("from the device".getBytes(StandardCharsets.US_ASCII));
+        toDevice.flush();
+        assertReceived(0, "from the device");
+        byte[] sent = "from the host".getBytes(StandardCharsets.US_ASCII);
+        commPort.commPortInterface().sendBytes(sent, 0, sent.length);
+        assertEquals("from the host", readFromDevice(sent.length));
+    }
+
+    @Test
+    public void keepsReadingThroughIdleTimeouts() throws Exception
+    {
+        Thread reader = findReader();
+        assertNotNull(reader);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(reader.getId()) : 0;
+        // several 100 ms read timeouts with nothing arriving
+        Thread.sleep(1000);
+        assertTrue(reader.isAlive());
+        if (threads.isThreadCpuTimeSupported())
+        {
+            // waiting in the read, not spinning round it
+            assertTrue(threads.getThreadCpuTime(reader.getId()) - cpuBefore < 200000000L);
+        }
+        toDevice.write("after a pause".getBytes(StandardCharsets.US_ASCII));
+        toDevice.flush();
+        assertReceived(0, "after a pause");
+    }
+
+    @Test
+    public void closeStopsTheReader() throws Exception
+    {
+        Thread reader = findReader();
+        assertNotNull(reader);
+        commPort.commPortInterface().closeCommPort();
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+    }
+}
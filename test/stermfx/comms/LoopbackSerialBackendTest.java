@@ -0,0 +1,94 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Test;
+
+/**
+ * Tests the in-process loopback link
+ *
+ * @author Brian Powell
+ */
+public class LoopbackSerialBackendTest
+{
+
+    private static CommPort open(String name) throws IOException
+    {
+        CommPort commPort = new CommPort(null, new File(System.getProperty("java.io.tmpdir"), name + ".properties").getPath());
+        commPort.setBackend("Loopback");
+        commPort.setCommPortName(name);
+        commPort.commPortInterface().openCommPort(commPort);
+        return commPort;
+    }
+
+    @Test
+    public void closeReleasesAWriterTheDeviceIsNotReading() throws Exception
+    {
+        final CommPort commPort = open("LoopbackClose");
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread writer = new Thread()
+        {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    // far more than the pipe holds
+                    commPort.commPortInterface().sendBytes(new byte[1 << 20], 0, 1 << 20);
+                }
+                catch (IOException ex)
+                {
+                    failure.set(ex);
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(200);
+        commPort.commPortInterface().closeCommPort();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertNotNull(failure.get());
+    }
+
+    @Test
+    public void aClosedPortCanBeOpenedAgain() throws Exception
+    {
+        CommPort commPort = open("LoopbackReopen");
+        commPort.commPortInterface().closeCommPort();
+        commPort.commPortInterface().openCommPort(commPort);
+        LoopbackPort.get("LoopbackReopen").getDeviceOutputStream().write("hello".getBytes());
+        RxByteStore store = commPort.commPortInterface().getRxStore();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getWritePosition() < 5 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        byte[] received = new byte[5];
+        assertEquals(5, store.read(0, received, 0, 5));
+        assertEquals("hello", new String(received));
+        commPort.commPortInterface().closeCommPort();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests saving and loading profiles through the background writer
+ *
+ * @author Brian Powell
+ */
+public class ProfileStoreTest
+{
+
+    private Path directory;
+    private ProfileStore store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("ProfileStoreTest");
+        store = new ProfileStore(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        store.flush(5000);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static Properties settings(String baud)
+    {
+        Properties settings = new Properties();
+        settings.setProperty("baud", baud);
+        return settings;
+    }
+
+    @Test
+    public void checksNames()
+    {
+        assertTrue(ProfileStore.isValidName("Bench 1_a-b.c"));
+        assertFalse(ProfileStore.isValidName(null));
+        assertFalse(ProfileStore.isValidName(""));
+        assertFalse(ProfileStore.isValidName(".hidden"));
+        assertFalse(ProfileStore.isValidName("../escape"));
+        assertFalse(ProfileStore.isValidName("a/b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidName()
+    {
+        store.saveProfile("../escape", settings("9600"));
+    }
+
+    @Test
+    public void loadsWhatWasSavedBeforeAndAfterWriting() throws IOException
+    {
+        assertTrue(store.loadProfile("bench").isEmpty());
+        store.saveProfile("bench", settings("9600"));
+        assertEquals("9600", store.loadProfile("bench").getProperty("baud"));
+        store.flush(5000);
+        assertTrue(Files.exists(store.getProfilePath("bench")));
+        assertEquals("9600", new ProfileStore(directory).loadProfile("bench").getProperty("baud"));
+    }
+
+    @Test
+    public void copiesSettingsWhenSaving() throws IOException
+    {
+        Properties settings = settings("9600");
+        store.saveProfile("bench", settings);
+        settings.setProperty("baud", "115200");
+        store.flush(5000);
+        assertEquals("9600", new ProfileStore(directory).loadProfile("bench").getProperty("baud"));
+    }
+
+    @Test
+    public void writesOnlyTheNewestOfQuickSaves() throws IOException
+    {
+        for (int baud = 1; baud <= 1000; baud++)
+        {
+            store.saveProfile("bench", settings(Integer.toString(baud)));
+        }
+        assertEquals("1000", store.loadProfile("bench").getProperty("baud"));
+        store.flush(5000);
+        assertEquals("1000", new ProfileStore(directory).loadProfile("bench").getProperty("baud"));
+    }
+
+    @Test
+    public void listsProfilesSortedWithoutTemporaryFiles() throws IOException
+    {
+        store.saveProfile("beta", settings("1"));
+        store.saveProfile("Alpha", settings("2"));
+        store.saveProfile("gamma", settings("3"));
+        store.flush(5000);
+        assertEquals(Arrays.asList("Alpha", "beta", "gamma"), store.getProfileNames());
+        int files = 0;
+        try (DirectoryStream<Path> all = Files.newDirectoryStream(directory))
+        {
+            for (Path file : all)
+            {
+                files++;
+            }
+        }
+        assertEquals(3, files);
+    }
+
+    @Test
+    public void replacesFileWhole() throws IOException
+    {
+        Path file = directory.resolve("settings.properties");
+        Properties big = new Properties();
+        for (int i = 0; i < 100; i++)
+        {
+            big.setProperty("key" + i, "value" + i);
+        }
+        ProfileStore.storeAtomically(file, big, "big");
+        ProfileStore.storeAtomically(file, settings("9600"), "small");
+        Properties read = new ProfileStore(directory).loadProfile("settings");
+        assertEquals(1, read.size());
+        assertEquals("9600", read.getProperty("baud"));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests the receive ring's positions, wrapping and block records
+ *
+ * @author Brian Powell
+ */
+public class RxByteStoreTest
+{
+
+    private static byte[] sequence(int from, int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            bytes[i] = (byte) (from + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * A byte that differs from lap to lap, so an overwritten byte is noticed
+     */
+    private static byte at(long position)
+    {
+        return (byte) (position ^ position >>> 8 ^ position >>> 16);
+    }
+
+    @Test
+    public void readsWhileTheWriterLapsAreNeverTorn() throws Exception
+    {
+        final RxByteStore store = new RxByteStore(16, 8);
+        final long stop = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        Thread writer = new Thread()
+        {
+
+            @Override
+            public void run()
+            {
+                byte[] block = new byte[16384];
+                while (System.nanoTime() < stop)
+                {
+                    long position = store.getWritePosition();
+                    for (int i = 0; i < block.length; i++)
+                    {
+                        block[i] = at(position + i);
+                    }
+                    store.append(block, 0, block.length, position);
+                }
+            }
+        };
+        writer.start();
+        byte[] read = new byte[4096];
+        long clean = 0;
+        long torn = 0;
+        while (writer.isAlive())
+        {
+            // the edge the writer is overwriting
+            long position = store.getOldestPosition();
+            int count = store.read(position, read, 0, read.length);
+            int i = 0;
+            while (i < count && read[i] == at(position + i))
+            {
+                i++;
+            }
+            if (i < count)
+            {
+                torn++;
+            }
+            else if (count > 0)
+            {
+                clean++;
+            }
+        }
+        writer.join();
+        assertEquals(0, torn);
+        assertTrue(clean > 0);
+    }
+
+    @Test
+    public void readsBackWhatWasAppended()
+    {
+        RxByteStore store = new RxByteStore(8, 4);
+        store.append(sequence(0, 10), 0, 10, 100);
+        store.append(sequence(10, 5), 0, 5, 200);
+        assertEquals(15, store.getWritePosition());
+        assertEquals(0, store.getOldestPosition());
+        byte[] read = new byte[15];
+        assertEquals(15, store.read(0, read, 0, 15));
+        assertArrayEquals(sequence(0, 15), read);
+        // nothing past the write position
+        assertEquals(0, store.read(15, read, 0, 15));
+    }
+
+    @Test
+    public void wrapsAroundTheRing()
+    {
+        RxByteStore store = new RxByteStore(8, 4);
+        for (int i = 0; i < 10; i++)
+        {
+            store.append(sequence(i * 100, 100), 0, 100, i);
+        }
+        assertEquals(1000, store.getWritePosition());
+        assertEquals(1000 - 256, store.getOldestPosition());
+        byte[] read = new byte[200];
+        // across the end of the ring
+        assertEquals(200, store.read(780, read, 0, 200));
+        assertArrayEquals(sequence(780, 200), read);
+        assertEquals(-1, store.read(store.getOldestPosition() - 1, read, 0, 1));
+    }
+
+    @Test
+    public void keepsOnlyTheTailOfAnOversizedBlock()
+    {
+        RxByteStore store = new RxByteStore(8, 4);
+        store.append(sequence(0, 300), 0, 300, 1);
+        assertEquals(300, store.getWritePosition());
+        assertEquals(44, store.getBlockStart(0));
+        assertEquals(256, store.getBlockLength(0));
+        byte[] read = new byte[256];
+        assertEquals(256, store.read(44, read, 0, 256));
+        assertArrayEquals(sequence(44, 256), read);
+    }
+
+    @Test
+    public void recordsBlocks()
+    {
+        RxByteStore store = new RxByteStore(8, 2);
+        for (int i = 0; i < 6; i++)
+        {
+            store.append(sequence(0, i + 1), 0, i + 1, 1000 + i);
+        }
+        assertEquals(6, store.getBlockCount());
+        assertEquals(4, store.getBlockCapacity());
+        // block 5 started after 1 + 2 + 3 + 4 + 5 bytes
+        assertEquals(15, store.getBlockStart(5));
+        assertEquals(6, store.getBlockLength(5));
+        assertEquals(1005, store.getBlockTime(5));
+        assertEquals(1005, store.getTimestamp(17));
+        assertEquals(1003, store.getTimestamp(6));
+    }
+
+    @Test
+    public void theSlotBeingRewrittenIsNotRetained()
+    {
+        RxByteStore store = new RxByteStore(8, 2);
+        for (int i = 0; i < 6; i++)
+        {
+            store.append(sequence(0, 1), 0, 1, i);
+        }
+        assertTrue(store.isBlockRetained(5));
+        assertTrue(store.isBlockRetained(3));
+        // block 2 shares its slot with block 6, the next one to be written
+        assertFalse(store.isBlockRetained(2));
+        assertFalse(store.isBlockRetained(1));
+    }
+}
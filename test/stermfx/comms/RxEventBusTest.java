@@ -0,0 +1,167 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests delivering received blocks to several consumers
+ *
+ * @author Brian Powell
+ */
+public class RxEventBusTest
+{
+
+    /**
+     * Collects what it is given
+     */
+    private static class Collector implements CommRxEvent
+    {
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void bytesReceived(byte[] data, int offset, int length, long timestamp)
+        {
+            received.write(data, offset, length);
+        }
+
+        synchronized int size()
+        {
+            return received.size();
+        }
+
+        synchronized byte[] bytes()
+        {
+            return received.toByteArray();
+        }
+    }
+
+    private static byte[] publish(RxEventBus bus, int blocks, int blockSize)
+    {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blocks; i++)
+        {
+            for (int j = 0; j < blockSize; j++)
+            {
+                block[j] = (byte) (i * 31 + j);
+            }
+            bus.publish(block, 0, blockSize, i);
+            sent.write(block, 0, blockSize);
+        }
+        return sent.toByteArray();
+    }
+
+    private static void waitFor(Collector collector, int size) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (collector.size() < size && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void givesEveryConsumerEveryBlockInOrder() throws InterruptedException
+    {
+        RxEventBus bus = new RxEventBus(new RxByteStore(20, 14));
+        Collector[] collectors = new Collector[3];
+        RxEventBus.WaitStrategy[] strategies = {RxEventBus.WaitStrategy.YIELDING,
+            RxEventBus.WaitStrategy.SLEEPING, RxEventBus.WaitStrategy.BLOCKING};
+        for (int i = 0; i < collectors.length; i++)
+        {
+            collectors[i] = new Collector();
+            bus.add(collectors[i], strategies[i].name(), strategies[i]);
+        }
+        byte[] sent = publish(bus, 5000, 100);
+        for (Collector collector : collectors)
+        {
+            waitFor(collector, sent.length);
+            assertArrayEquals(sent, collector.bytes());
+        }
+        for (RxConsumer consumer : bus.getConsumers())
+        {
+            assertEquals(0, consumer.getOverruns());
+        }
+        for (Collector collector : collectors)
+        {
+            assertTrue(bus.remove(collector));
+        }
+    }
+
+    @Test
+    public void aStalledConsumerLosesBytesWithoutHoldingUpTheOthers() throws InterruptedException
+    {
+        RxEventBus bus = new RxEventBus(new RxByteStore(12, 4));
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Collector slow = new Collector()
+        {
+
+            @Override
+            public void bytesReceived(byte[] data, int offset, int length, long timestamp)
+            {
+                super.bytesReceived(data, offset, length, timestamp);
+                stalled.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Collector fast = new Collector();
+        RxConsumer slowConsumer = bus.add(slow, "slow", RxEventBus.WaitStrategy.BLOCKING);
+        bus.add(fast, "fast", RxEventBus.WaitStrategy.BLOCKING);
+        publish(bus, 1, 10);
+        assertTrue(stalled.await(10, TimeUnit.SECONDS));
+        // a block at a time, so the fast consumer keeps up
+        int total = 10;
+        for (int i = 0; i < 200; i++)
+        {
+            publish(bus, 1, 100);
+            total += 100;
+            waitFor(fast, total);
+        }
+        assertEquals(total, fast.size());
+        release.countDown();
+        publish(bus, 1, 10);
+        total += 10;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (slow.size() + slowConsumer.getLostBytes() < total && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        assertTrue(slowConsumer.getOverruns() > 0);
+        assertTrue(slowConsumer.getLostBytes() > 0);
+        assertEquals(total, slow.size() + slowConsumer.getLostBytes());
+        bus.remove(slow);
+        bus.remove(fast);
+    }
+}
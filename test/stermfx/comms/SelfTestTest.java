@@ -0,0 +1,226 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the loopback self test against an echoing device on a loopback port
+ *
+ * @author Brian Powell
+ */
+public class SelfTestTest
+{
+
+    private static final Pattern IDLE = Pattern.compile(
+            "Idle round trip: (\\d+) probes, (\\d+) returned, (\\d+) lost, (\\d+) late, (\\d+) corrupt");
+    private static final Pattern LOADED = Pattern.compile(
+            "sent (\\d+) bytes, received (\\d+) bytes, (\\d+) probes lost, (\\d+) corrupt");
+    private CommPort commPort;
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (commPort != null)
+        {
+            commPort.commPortInterface().closeCommPort();
+        }
+    }
+
+    /**
+     * Echoes probes back, changing or holding some of them. Probes are
+     * numbered by their place in the stream, idle ones first.
+     */
+    private static class Echo extends Thread
+    {
+
+        private final InputStream in;
+        private final OutputStream out;
+
+        Echo(LoopbackPort port)
+        {
+            in = port.getDeviceInputStream();
+            out = port.getDeviceOutputStream();
+            setDaemon(true);
+            start();
+        }
+
+        /**
+         * Changes a probe on its way back
+         *
+         * @return how long to hold it, 0 to send it straight back
+         */
+        long echo(long number, byte[] probe)
+        {
+            return 0;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                for (long number = 0;; number++)
+                {
+                    final byte[] probe = new byte[16];
+                    int done = 0;
+                    while (done < probe.length)
+                    {
+                        int count = in.read(probe, done, probe.length - done);
+                        if (count < 0)
+                        {
+                            return;
+                        }
+                        done += count;
+                    }
+                    final long hold = echo(number, probe);
+                    if (hold == 0)
+                    {
+                        write(probe);
+                        continue;
+                    }
+                    new Thread()
+                    {
+
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                Thread.sleep(hold);
+                                write(probe);
+                            }
+                            catch (InterruptedException | IOException ex)
+                            {
+                                // the port was closed
+                            }
+                        }
+                    }.start();
+                }
+            }
+            catch (IOException ex)
+            {
+                // the port was closed
+            }
+        }
+
+        private synchronized void write(byte[] probe) throws IOException
+        {
+            out.write(probe);
+        }
+    }
+
+    private LoopbackPort open(String name) throws IOException
+    {
+        commPort = new CommPort(null, new File(System.getProperty("java.io.tmpdir"), name + ".properties").getPath());
+        commPort.setBackend("Loopback");
+        commPort.setCommPortName(name);
+        commPort.setBaudRate("115200");
+        commPort.setDataBits("8");
+        commPort.setParity("None");
+        commPort.setStopBits("1");
+        commPort.commPortInterface().openCommPort(commPort);
+        return LoopbackPort.get(name);
+    }
+
+    private static long[] counts(Pattern pattern, String report)
+    {
+        Matcher matcher = pattern.matcher(report);
+        assertTrue(report, matcher.find());
+        long[] counts = new long[matcher.groupCount()];
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = Long.parseLong(matcher.group(i + 1));
+        }
+        return counts;
+    }
+
+    @Test
+    public void aCleanLoopbackLosesNothing() throws Exception
+    {
+        new Echo(open("SelfTestClean"));
+        String report = commPort.commPortInterface().createSelfTest(commPort).run(50, 300);
+        long[] idle = counts(IDLE, report);
+        assertEquals(report, 50, idle[1]);
+        assertEquals(report, 0, idle[2] + idle[3] + idle[4]);
+        long[] loaded = counts(LOADED, report);
+        assertTrue(report, loaded[0] > 0);
+        assertEquals(report, loaded[0], loaded[1]);
+        assertEquals(report, 0, loaded[2] + loaded[3]);
+        assertTrue(report, report.contains("latency ms"));
+    }
+
+    @Test
+    public void countsCorruptProbes() throws Exception
+    {
+        new Echo(open("SelfTestCorrupt"))
+        {
+
+            @Override
+            long echo(long number, byte[] probe)
+            {
+                if (number % 5 == 3)
+                {
+                    // one of the letters
+                    probe[10] ^= 0x01;
+                }
+                return 0;
+            }
+        };
+        String report = commPort.commPortInterface().createSelfTest(commPort).run(20, 300);
+        long[] idle = counts(IDLE, report);
+        // the corrupt ones never come back as themselves
+        assertEquals(report, 16, idle[1]);
+        assertEquals(report, 4, idle[2]);
+        assertEquals(report, 4, idle[4]);
+        long[] loaded = counts(LOADED, report);
+        assertTrue(report, loaded[3] > 0);
+        assertEquals(report, loaded[2], loaded[3]);
+    }
+
+    @Test
+    public void aLateProbeDoesNotStandInForTheNext() throws Exception
+    {
+        new Echo(open("SelfTestLate"))
+        {
+
+            @Override
+            long echo(long number, byte[] probe)
+            {
+                // back after the next one has been sent, then the next one is held too
+                return number == 2 ? 1200 : number == 3 ? 400 : 0;
+            }
+        };
+        String report = commPort.commPortInterface().createSelfTest(commPort).run(10, 200);
+        long[] idle = counts(IDLE, report);
+        assertEquals(report, 9, idle[1]);
+        assertEquals(report, 1, idle[2]);
+        assertEquals(report, 1, idle[3]);
+        assertEquals(report, 0, idle[4]);
+    }
+}
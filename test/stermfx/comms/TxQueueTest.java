@@ -0,0 +1,273 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.comms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests the transmit queue's ordering, back pressure and failure handling
+ *
+ * @author Brian Powell
+ */
+public class TxQueueTest
+{
+
+    private static final int BULK_CAPACITY = 65536;
+    private TxQueue queue;
+
+    /**
+     * Records what is written, and can hold the first write until released
+     * or fail every write
+     */
+    private static class RecordingBackend implements SerialBackend
+    {
+
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final List<Integer> writes = new ArrayList<>();
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release;
+        final boolean failing;
+
+        RecordingBackend(boolean hold, boolean failing)
+        {
+            release = new CountDownLatch(hold ? 1 : 0);
+            this.failing = failing;
+        }
+
+        @Override
+        public List<String> getPortNames()
+        {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void open(CommPort cp, CommPortInterface receiver)
+        {
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException
+        {
+            writing.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException ex)
+            {
+                throw new IOException(ex);
+            }
+            if (failing)
+            {
+                throw new IOException("Unplugged");
+            }
+            synchronized (this)
+            {
+                written.write(data, offset, length);
+                writes.add(length);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        synchronized byte[] getWritten()
+        {
+            return written.toByteArray();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (queue != null)
+        {
+            queue.close();
+            queue.join();
+        }
+    }
+
+    private static void awaitDrained(TxQueue queue) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.getQueued() > 0 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(1);
+        }
+        assertEquals(0, queue.getQueued());
+        // the last chunk has been taken but may still be being written
+        Thread.sleep(50);
+    }
+
+    private static byte[] pattern(int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 7 + i / 251);
+        }
+        return data;
+    }
+
+    @Test
+    public void writesBulkDataInOrderInLineTimeChunks() throws Exception
+    {
+        RecordingBackend backend = new RecordingBackend(false, false);
+        queue = new TxQueue(backend, 115200, "TxQueueTest");
+        byte[] data = pattern(3 * BULK_CAPACITY + 123);
+        queue.send(data, 0, data.length);
+        awaitDrained(queue);
+        assertArrayEquals(data, backend.getWritten());
+        for (int length : backend.writes)
+        {
+            // 10 ms at 115200 baud
+            assertTrue(length <= 115);
+        }
+    }
+
+    @Test
+    public void keysGoAheadOfQueuedBulkData() throws Exception
+    {
+        RecordingBackend backend = new RecordingBackend(true, false);
+        queue = new TxQueue(backend, 9600, "TxQueueTest");
+        byte[] data = new byte[1000];
+        queue.send(data, 0, data.length);
+        assertTrue(backend.writing.await(5, TimeUnit.SECONDS));
+        queue.sendKey((byte) 'k');
+        backend.release.countDown();
+        awaitDrained(queue);
+        byte[] written = backend.getWritten();
+        assertEquals(data.length + 1, written.length);
+        // the chunk already being written when the key came, then the key
+        assertEquals('k', written[16]);
+        assertEquals(1, queue.getKeyCount());
+        assertTrue(queue.getMaxKeyLatencyNanos() > 0);
+        assertTrue(queue.getKeyLatencyPercentileNanos(50) <= queue.getMaxKeyLatencyNanos());
+    }
+
+    @Test
+    public void rejectsKeysWhenTheKeyRingIsFull() throws Exception
+    {
+        RecordingBackend backend = new RecordingBackend(true, false);
+        queue = new TxQueue(backend, 9600, "TxQueueTest");
+        queue.sendKey((byte) 0);
+        assertTrue(backend.writing.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1024; i++)
+        {
+            queue.sendKey((byte) i);
+        }
+        try
+        {
+            queue.sendKey((byte) 0);
+            fail("A full key ring should reject the key");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+        backend.release.countDown();
+        awaitDrained(queue);
+        assertEquals(1025, backend.getWritten().length);
+    }
+
+    @Test
+    public void offerQueuesOnlyWhatFits() throws Exception
+    {
+        RecordingBackend backend = new RecordingBackend(true, false);
+        queue = new TxQueue(backend, 9600, "TxQueueTest");
+        queue.sendKey((byte) 0);
+        assertTrue(backend.writing.await(5, TimeUnit.SECONDS));
+        byte[] data = pattern(BULK_CAPACITY + 1000);
+        assertEquals(BULK_CAPACITY, queue.offer(data, 0, data.length));
+        assertEquals(0, queue.offer(data, BULK_CAPACITY, 1000));
+        backend.release.countDown();
+        awaitDrained(queue);
+        assertEquals(BULK_CAPACITY + 1, backend.getWritten().length);
+    }
+
+    @Test
+    public void aFailedWriteIsReportedToTheNextSender() throws Exception
+    {
+        RecordingBackend backend = new RecordingBackend(true, true);
+        queue = new TxQueue(backend, 9600, "TxQueueTest");
+        byte[] data = new byte[1000];
+        queue.send(data, 0, data.length);
+        assertTrue(backend.writing.await(5, TimeUnit.SECONDS));
+        backend.release.countDown();
+        // everything queued is dropped
+        awaitDrained(queue);
+        try
+        {
+            queue.send(data, 0, data.length);
+            fail("The failure should be reported");
+        }
+        catch (IOException ex)
+        {
+            assertEquals("Unplugged", ex.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void closeReleasesABlockedSender() throws Exception
+    {
+        RecordingBackend backend = new RecordingBackend(true, false);
+        queue = new TxQueue(backend, 9600, "TxQueueTest");
+        final byte[] data = new byte[2 * BULK_CAPACITY];
+        final IOException[] failure = new IOException[1];
+        Thread sender = new Thread()
+        {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    queue.send(data, 0, data.length);
+                }
+                catch (IOException ex)
+                {
+                    failure[0] = ex;
+                }
+            }
+        };
+        sender.start();
+        assertTrue(backend.writing.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertTrue(sender.isAlive());
+        queue.close();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        assertEquals("Port closed", failure[0].getMessage());
+        backend.release.countDown();
+    }
+}
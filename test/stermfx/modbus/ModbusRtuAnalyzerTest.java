@@ -0,0 +1,155 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.modbus;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests framing and checking Modbus RTU traffic, at the default 9600 8N1
+ *
+ * @author Brian Powell
+ */
+public class ModbusRtuAnalyzerTest
+{
+
+    /**
+     * Read 10 holding registers from slave 1, with its well known CRC
+     */
+    private static final byte[] READ_REQUEST = {0x01, 0x03, 0x00, 0x00, 0x00, 0x0A, (byte) 0xC5, (byte) 0xCD};
+    private static final long CHARACTER_NANOS = 10 * 1000000000L / 9600;
+    private ModbusRtuAnalyzer analyzer;
+    private long now;
+
+    @Before
+    public void setUp()
+    {
+        analyzer = new ModbusRtuAnalyzer(2);
+        now = 1000000000L;
+    }
+
+    /**
+     * Receives a block as if it had just come off the wire, after a pause
+     */
+    private void receive(byte[] block, long pauseNanos)
+    {
+        now += pauseNanos + block.length * CHARACTER_NANOS;
+        analyzer.bytesReceived(block, 0, block.length, now);
+    }
+
+    private static byte[] withCrc(int... bytes)
+    {
+        byte[] frame = new byte[bytes.length + 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            frame[i] = (byte) bytes[i];
+        }
+        int crc = ModbusRtuAnalyzer.crc(frame, 0, bytes.length);
+        frame[bytes.length] = (byte) crc;
+        frame[bytes.length + 1] = (byte) (crc >>> 8);
+        return frame;
+    }
+
+    @Test
+    public void computesTheModbusCrc()
+    {
+        assertEquals(0xCDC5, ModbusRtuAnalyzer.crc(READ_REQUEST, 0, 6));
+        // a frame with its CRC appended checks out as zero
+        assertEquals(0, ModbusRtuAnalyzer.crc(READ_REQUEST, 0, READ_REQUEST.length));
+    }
+
+    @Test
+    public void endsAFrameAfterThreeAndAHalfCharactersOfSilence()
+    {
+        assertEquals(CHARACTER_NANOS * 7 / 2, analyzer.getGapNanos());
+        receive(READ_REQUEST, 0);
+        // the gap before the next block is too short to end the frame
+        receive(new byte[] {0x01}, analyzer.getGapNanos() - CHARACTER_NANOS);
+        assertEquals(0, analyzer.getFrameCount());
+        receive(READ_REQUEST, analyzer.getGapNanos());
+        assertEquals(1, analyzer.getFrameCount());
+        assertEquals(ModbusRtuAnalyzer.STATUS_CRC_ERROR, analyzer.getFrameStatus(0));
+        analyzer.poll(now + analyzer.getGapNanos() - 1);
+        assertEquals(1, analyzer.getFrameCount());
+        analyzer.poll(now + analyzer.getGapNanos());
+        assertEquals(2, analyzer.getFrameCount());
+        assertEquals(0, analyzer.getFrameStatus(1));
+        byte[] frame = new byte[ModbusRtuAnalyzer.MAX_FRAME];
+        assertEquals(READ_REQUEST.length, analyzer.getFrame(1, frame));
+        assertArrayEquals(READ_REQUEST, Arrays.copyOf(frame, READ_REQUEST.length));
+        assertEquals(now - READ_REQUEST.length * CHARACTER_NANOS, analyzer.getFrameTime(1));
+    }
+
+    @Test
+    public void joinsAFrameSplitAcrossBlocks()
+    {
+        receive(Arrays.copyOfRange(READ_REQUEST, 0, 3), 0);
+        receive(Arrays.copyOfRange(READ_REQUEST, 3, 8), 0);
+        analyzer.poll(now + analyzer.getGapNanos());
+        assertEquals(1, analyzer.getFrameCount());
+        assertEquals(1, analyzer.getGoodFrames());
+        assertEquals(1, analyzer.getFunctionCount(3));
+        assertEquals(8, analyzer.getByteCount());
+    }
+
+    @Test
+    public void classifiesBadFrames()
+    {
+        byte[] corrupt = READ_REQUEST.clone();
+        corrupt[3] ^= 0x10;
+        receive(corrupt, 0);
+        receive(new byte[] {0x01, 0x03, 0x00}, analyzer.getGapNanos());
+        receive(withCrc(0x01, 0x83, 0x02), analyzer.getGapNanos());
+        receive(new byte[300], analyzer.getGapNanos());
+        analyzer.poll(now + analyzer.getGapNanos());
+        assertEquals(4, analyzer.getFrameCount());
+        assertEquals(ModbusRtuAnalyzer.STATUS_CRC_ERROR, analyzer.getFrameStatus(0));
+        assertEquals(ModbusRtuAnalyzer.STATUS_TOO_SHORT, analyzer.getFrameStatus(1));
+        assertEquals(ModbusRtuAnalyzer.STATUS_EXCEPTION, analyzer.getFrameStatus(2));
+        assertEquals(ModbusRtuAnalyzer.STATUS_TOO_LONG,
+                analyzer.getFrameStatus(3) & ModbusRtuAnalyzer.STATUS_TOO_LONG);
+        assertEquals(ModbusRtuAnalyzer.MAX_FRAME, analyzer.getFrame(3, new byte[ModbusRtuAnalyzer.MAX_FRAME]));
+        assertEquals(1, analyzer.getShortFrames());
+        assertEquals(1, analyzer.getExceptions());
+        assertEquals(1, analyzer.getLongFrames());
+        // an exception response is still a good frame for its function
+        assertEquals(1, analyzer.getGoodFrames());
+        assertEquals(1, analyzer.getFunctionCount(3));
+    }
+
+    @Test
+    public void keepsTheNewestFramesInTheRing()
+    {
+        for (int i = 0; i < 6; i++)
+        {
+            receive(withCrc(i, 0x06, 0x00, 0x01, 0x00, i), analyzer.getGapNanos());
+        }
+        analyzer.poll(now + analyzer.getGapNanos());
+        assertEquals(6, analyzer.getFrameCount());
+        assertEquals(2, analyzer.getFirstFrame());
+        byte[] frame = new byte[ModbusRtuAnalyzer.MAX_FRAME];
+        analyzer.getFrame(5, frame);
+        assertEquals(5, frame[0]);
+        analyzer.getFrame(2, frame);
+        assertEquals(2, frame[0]);
+    }
+}
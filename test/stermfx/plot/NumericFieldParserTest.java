@@ -0,0 +1,114 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.plot;
+
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests picking numbers out of received text
+ *
+ * @author Brian Powell
+ */
+public class NumericFieldParserTest
+{
+
+    private static void send(NumericFieldParser parser, String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        parser.bytesReceived(bytes, 0, bytes.length, 0);
+    }
+
+    private static double[] samples(NumericFieldParser parser, int channel)
+    {
+        PlotChannel plot = parser.getChannel(channel);
+        int count = (int) plot.getCount();
+        double[] min = new double[count];
+        double[] max = new double[count];
+        // one column per sample gives the samples themselves
+        plot.decimate(0, count, min, max, count);
+        return min;
+    }
+
+    @Test
+    public void takesTheNthNumberOfALineForChannelN()
+    {
+        NumericFieldParser parser = new NumericFieldParser(8);
+        send(parser, "1.5,2,-3\nt=4 h=5 p=-6\n7\t8\t9\n");
+        assertEquals(3, parser.getChannelCount());
+        assertArrayEquals(new double[] {1.5, 4, 7}, samples(parser, 0), 0);
+        assertArrayEquals(new double[] {2, 5, 8}, samples(parser, 1), 0);
+        assertArrayEquals(new double[] {-3, -6, 9}, samples(parser, 2), 0);
+    }
+
+    @Test
+    public void parsesFractionsAndExponents()
+    {
+        NumericFieldParser parser = new NumericFieldParser(8);
+        send(parser, ".5 -.25 2.5e-3 1E+2 -4e1 12.000\n");
+        assertEquals(6, parser.getChannelCount());
+        double[] expected = {0.5, -0.25, 0.0025, 100, -40, 12};
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], samples(parser, i)[0], 1e-12);
+        }
+    }
+
+    @Test
+    public void carriesANumberOverFromOneBlockToTheNext()
+    {
+        NumericFieldParser parser = new NumericFieldParser(8);
+        send(parser, "12");
+        assertEquals(0, parser.getChannelCount());
+        send(parser, "3.4");
+        send(parser, "5\n");
+        assertArrayEquals(new double[] {123.45}, samples(parser, 0), 1e-12);
+    }
+
+    @Test
+    public void startsAgainAtChannelZeroOnEachLine()
+    {
+        NumericFieldParser parser = new NumericFieldParser(8);
+        send(parser, "1 2\n3\n");
+        assertArrayEquals(new double[] {1, 3}, samples(parser, 0), 0);
+        assertArrayEquals(new double[] {2}, samples(parser, 1), 0);
+    }
+
+    @Test
+    public void ignoresFieldsPastTheLastChannel()
+    {
+        NumericFieldParser parser = new NumericFieldParser(8);
+        send(parser, "0 1 2 3 4 5 6 7 8 9\n");
+        assertEquals(NumericFieldParser.MAX_CHANNELS, parser.getChannelCount());
+        assertArrayEquals(new double[] {7}, samples(parser, 7), 0);
+    }
+
+    @Test
+    public void onlyChangesVersionWhenSamplesAreAdded()
+    {
+        NumericFieldParser parser = new NumericFieldParser(8);
+        long version = parser.getVersion();
+        send(parser, "no numbers here\n");
+        assertEquals(version, parser.getVersion());
+        send(parser, "42\n");
+        assertEquals(version + 1, parser.getVersion());
+    }
+}
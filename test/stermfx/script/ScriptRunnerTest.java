@@ -0,0 +1,160 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.script;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import stermfx.comms.CommPort;
+import stermfx.comms.LoopbackPort;
+
+/**
+ * Runs scripts against a loopback port
+ *
+ * @author Brian Powell
+ */
+public class ScriptRunnerTest
+{
+
+    /**
+     * Records how a run ended
+     */
+    private static final class Result implements ScriptRunner.Listener
+    {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        int passes;
+        int failures;
+        String message;
+
+        @Override
+        public void stepStarted(int iteration, int line)
+        {
+            started.countDown();
+        }
+
+        @Override
+        public void finished(int passes, int failures, String message)
+        {
+            this.passes = passes;
+            this.failures = failures;
+            this.message = message;
+            done.countDown();
+        }
+    }
+    private CommPort commPort;
+    private Thread device;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        commPort = new CommPort(null, new File(System.getProperty("java.io.tmpdir"), "ScriptRunnerTest.properties").getPath());
+        commPort.setBackend("Loopback");
+        commPort.setCommPortName("ScriptRunnerTest");
+        commPort.commPortInterface().openCommPort(commPort);
+        final LoopbackPort port = LoopbackPort.get("ScriptRunnerTest");
+        // answers each ping with a pong
+        device = new Thread()
+        {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    InputStream in = port.getDeviceInputStream();
+                    OutputStream out = port.getDeviceOutputStream();
+                    int b;
+                    while ((b = in.read()) >= 0)
+                    {
+                        if (b == '\r')
+                        {
+                            out.write("pong\r\n".getBytes());
+                        }
+                    }
+                }
+                catch (IOException ex)
+                {
+                    // the port was closed
+                }
+            }
+        };
+        device.setDaemon(true);
+        device.start();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        commPort.commPortInterface().closeCommPort();
+    }
+
+    private Result run(String source, int iterations) throws ParseException, InterruptedException
+    {
+        Result result = new Result();
+        new ScriptRunner(Script.compile(source), commPort.commPortInterface(), iterations, false, result).start();
+        assertTrue(result.done.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    @Test
+    public void passesEachIterationThatSeesItsReply() throws ParseException, InterruptedException
+    {
+        Result result = run("send \"ping\\r\"\nexpect \"pong\" 2000", 3);
+        assertEquals(3, result.passes);
+        assertEquals(0, result.failures);
+        assertEquals("Completed", result.message);
+    }
+
+    @Test
+    public void failsAnIterationThatTimesOut() throws ParseException, InterruptedException
+    {
+        Result result = run("send \"ping\\r\"\nexpect \"pang\" 50", 2);
+        assertEquals(0, result.passes);
+        assertEquals(2, result.failures);
+        assertEquals("Iteration 2: line 2 timed out after 50 ms", result.message);
+    }
+
+    @Test
+    public void doesNotCountACancelledIteration() throws ParseException, InterruptedException
+    {
+        for (String source : new String[] {"expect \"never\" 10000", "wait 10000"})
+        {
+            Result result = new Result();
+            ScriptRunner runner = new ScriptRunner(Script.compile(source), commPort.commPortInterface(), 5, false, result);
+            runner.start();
+            assertTrue(result.started.await(10, TimeUnit.SECONDS));
+            runner.cancel();
+            assertTrue(result.done.await(10, TimeUnit.SECONDS));
+            assertEquals(0, result.passes);
+            assertEquals(0, result.failures);
+            assertEquals("Cancelled", result.message);
+        }
+    }
+}
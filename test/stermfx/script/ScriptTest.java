@@ -0,0 +1,92 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.script;
+
+import java.text.ParseException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests compiling scripts
+ *
+ * @author Brian Powell
+ */
+public class ScriptTest
+{
+
+    private static void assertRejected(String source, int line)
+    {
+        try
+        {
+            Script.compile(source);
+            fail("compiled " + source);
+        }
+        catch (ParseException ex)
+        {
+            assertEquals(line, ex.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void compilesEachCommand() throws ParseException
+    {
+        Script script = Script.compile("# login\n\nsend \"user\\r\"\nexpect \"ok\"\ntimeout 250\r\nexpect \"$ \"\nexpect \"#\" 40\nwait 100\n");
+        assertEquals(5, script.size());
+        assertArrayEquals(new int[] {Script.SEND, Script.EXPECT, Script.EXPECT, Script.EXPECT, Script.WAIT}, script.ops);
+        // the default timeout, then the one set, then the step's own
+        assertEquals(10000, script.millis[1]);
+        assertEquals(250, script.millis[2]);
+        assertEquals(40, script.millis[3]);
+        assertEquals(100, script.millis[4]);
+        assertArrayEquals(new int[] {3, 4, 6, 7, 8}, script.lines);
+        assertArrayEquals("user\r".getBytes(), script.bytes[0]);
+    }
+
+    @Test
+    public void decodesEscapes() throws ParseException
+    {
+        Script script = Script.compile("send \"\\r\\n\\t\\\\\\\"\\x41\\xfF\\q\"");
+        assertArrayEquals(new byte[] {'\r', '\n', '\t', '\\', '"', 'A', (byte) 0xFF, 'q'}, script.bytes[0]);
+    }
+
+    @Test
+    public void buildsTheFailureTableForEachExpect() throws ParseException
+    {
+        Script script = Script.compile("expect \"abab\"\nexpect \"aabaaab\"\nexpect \"abc\"");
+        assertArrayEquals(new int[] {0, 0, 1, 2}, script.failure[0]);
+        assertArrayEquals(new int[] {0, 1, 0, 1, 2, 2, 3}, script.failure[1]);
+        assertArrayEquals(new int[] {0, 0, 0}, script.failure[2]);
+    }
+
+    @Test
+    public void reportsTheLineOfAnError()
+    {
+        assertRejected("send \"a\"\njump 3", 2);
+        assertRejected("send \"abc", 1);
+        assertRejected("send abc", 1);
+        assertRejected("send \"a\" b", 1);
+        assertRejected("\nexpect \"\"", 2);
+        assertRejected("send \"\\x4\"", 1);
+        assertRejected("send \"\\xzz\"", 1);
+        assertRejected("wait -5", 1);
+        assertRejected("timeout soon", 1);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.sim;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import stermfx.text.Scrollback;
+
+/**
+ * Tests a short soak through its report and the outcome it hands its listener
+ *
+ * @author Brian Powell
+ */
+public class SoakMonitorTest
+{
+
+    private static final Pattern FLUSHES = Pattern.compile(
+            "(\\d+) flushes, p50 ([0-9.]+) ms p99 ([0-9.]+) ms max ([0-9.]+) ms");
+    private Scrollback scrollback;
+    private Path report;
+    private boolean passed;
+    private String summary;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        scrollback = new Scrollback(2, 1 << 20);
+        report = Files.createTempFile("SoakMonitorTest", ".csv");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        scrollback.close();
+        Files.delete(report);
+    }
+
+    /**
+     * Runs a soak of about two seconds, recording the given flush latencies first
+     */
+    private void soak(double maxGrowthMB, long... flushMicros) throws InterruptedException
+    {
+        final CountDownLatch finished = new CountDownLatch(1);
+        SoakMonitor monitor = new SoakMonitor(2 / 3600.0, 1, 0, 1 / 60.0, maxGrowthMB, report, scrollback,
+                new SoakMonitor.Listener()
+                {
+
+                    @Override
+                    public void finished(boolean soakPassed, String soakSummary)
+                    {
+                        passed = soakPassed;
+                        summary = soakSummary;
+                        finished.countDown();
+                    }
+                });
+        for (long micros : flushMicros)
+        {
+            monitor.flushed(micros * 1000);
+        }
+        monitor.start();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+
+    private static long[] repeat(long micros, int count, long... more)
+    {
+        long[] values = new long[count + more.length];
+        for (int i = 0; i < count; i++)
+        {
+            values[i] = micros;
+        }
+        System.arraycopy(more, 0, values, count, more.length);
+        return values;
+    }
+
+    private double[] flushes()
+    {
+        Matcher matcher = FLUSHES.matcher(summary);
+        assertTrue(summary, matcher.find());
+        double[] values = new double[4];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = Double.parseDouble(matcher.group(i + 1));
+        }
+        return values;
+    }
+
+    @Test
+    public void passesAndReportsFlushPercentiles() throws Exception
+    {
+        // 98 fast flushes and 2 slow ones
+        soak(1024, repeat(2000, 98, 100000, 100000));
+        assertTrue(summary, passed);
+        assertTrue(summary, summary.startsWith("Soak passed"));
+        double[] flushes = flushes();
+        assertEquals(100, flushes[0], 0);
+        // from the top of the bucket, which is no more than an eighth wider than its values
+        assertTrue(summary, flushes[1] >= 2.0 && flushes[1] <= 2.25);
+        // never more than the largest seen
+        assertEquals(100.0, flushes[2], 0);
+        assertEquals(100.0, flushes[3], 0);
+    }
+
+    @Test
+    public void keepsLatenciesApartToAnEighth() throws Exception
+    {
+        soak(1024, repeat(10000, 50, repeat(11500, 50)));
+        double[] flushes = flushes();
+        assertTrue(summary, flushes[1] >= 10.0 && flushes[1] < 11.5);
+        assertEquals(11.5, flushes[2], 0);
+    }
+
+    @Test
+    public void writesARowEverySample() throws Exception
+    {
+        soak(1024);
+        List<String> rows = Files.readAllLines(report, StandardCharsets.UTF_8);
+        assertTrue(rows.get(0).startsWith("elapsed_s,received_mb,heap_used_mb"));
+        assertTrue(rows.toString(), rows.size() >= 3);
+        int columns = rows.get(0).split(",").length;
+        for (String row : rows)
+        {
+            assertEquals(row, columns, row.split(",").length);
+        }
+    }
+
+    @Test
+    public void failsWhenTheHeapGrowsTooMuch() throws Exception
+    {
+        // any growth at all is too much
+        soak(-1);
+        assertFalse(summary, passed);
+        assertTrue(summary, summary.startsWith("Soak failed"));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.text;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import stermfx.comms.RxByteStore;
+
+/**
+ * Tests the export formats
+ *
+ * @author Brian Powell
+ */
+public class ExporterTest
+{
+
+    private Scrollback scrollback;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        scrollback = new Scrollback(2, 1L << 30);
+        file = Files.createTempFile("ExporterTest", ".out");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        scrollback.close();
+        Files.delete(file);
+    }
+
+    private void append(String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        scrollback.append(bytes, 0, bytes.length);
+    }
+
+    private String export(long from, long to, Exporter.Format format) throws IOException
+    {
+        assertEquals(to - from, new Exporter(scrollback, from, to, format).export(file, null));
+        return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void laysOutAHexDump() throws IOException
+    {
+        append("0123456789abcdef\u0000\u007f\u00ff");
+        assertEquals("00000000  30 31 32 33 34 35 36 37  38 39 61 62 63 64 65 66  |0123456789abcdef|\n"
+                + "00000010  00 7f ff                                          |...|\n",
+                export(0, scrollback.getLength(), Exporter.Format.HEX));
+    }
+
+    @Test
+    public void numbersHexLinesFromTheStartOfTheRange() throws IOException
+    {
+        append("xxxxABC");
+        assertEquals("00000000  41 42                                             |AB|\n",
+                export(4, 6, Exporter.Format.HEX));
+    }
+
+    @Test
+    public void writesTextWithLineFeedsAndUtf8() throws IOException
+    {
+        append("a\r\nb\rc\nd\u0001\t\u00e9");
+        byte[] expected = "a\nb\nc\nd\t\u00e9".getBytes(StandardCharsets.UTF_8);
+        export(0, scrollback.getLength(), Exporter.Format.TEXT);
+        assertArrayEquals(expected, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void writesRawBytesFromTheReceiveStore() throws IOException
+    {
+        RxByteStore store = new RxByteStore(10, 4);
+        byte[] block = new byte[300];
+        for (int i = 0; i < 4; i++)
+        {
+            for (int j = 0; j < block.length; j++)
+            {
+                block[j] = (byte) (i * block.length + j);
+            }
+            store.append(block, 0, block.length, i);
+        }
+        // only the newest 1024 of the 1200 bytes are held, and the oldest of
+        // those are left out in case they are being overwritten
+        Exporter exporter = new Exporter(store, 0, store.getWritePosition(), Exporter.Format.RAW);
+        long written = exporter.export(file, null);
+        assertEquals(960, written);
+        assertEquals(240, exporter.getSkipped());
+        byte[] bytes = Files.readAllBytes(file);
+        assertEquals(960, bytes.length);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            assertEquals((byte) (240 + i), bytes[i]);
+        }
+    }
+
+    @Test
+    public void carriesOnWhenTheReceiverLapsTheExport() throws Exception
+    {
+        final RxByteStore store = new RxByteStore(18, 8);
+        final byte[] block = new byte[16384];
+        for (int i = 0; i < 32; i++)
+        {
+            store.append(block, 0, block.length, i);
+        }
+        final AtomicBoolean exporting = new AtomicBoolean(true);
+        Thread receiver = new Thread()
+        {
+
+            @Override
+            public void run()
+            {
+                while (exporting.get())
+                {
+                    store.append(block, 0, block.length, 0);
+                    try
+                    {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        long from = store.getOldestPosition();
+        final long to = store.getWritePosition();
+        Exporter exporter = new Exporter(store, from, to, Exporter.Format.RAW);
+        receiver.start();
+        long written;
+        try
+        {
+            written = exporter.export(file, new Exporter.Listener()
+            {
+
+                @Override
+                public void progress(long done, long total)
+                {
+                    // hold the export up until the receiver has overwritten where it goes next
+                    long deadline = System.currentTimeMillis() + 5000;
+                    while (store.getWritePosition() < to + (1 << 17) && System.currentTimeMillis() < deadline)
+                    {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        finally
+        {
+            exporting.set(false);
+            receiver.join();
+        }
+        assertTrue(written > 0);
+        assertTrue(exporter.getSkipped() > 1 << 16);
+        assertEquals(written, Files.size(file));
+        assertEquals(to - from, written + exporter.getSkipped());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.text;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the line filter against a scan of the source
+ *
+ * @author Brian Powell
+ */
+public class FilterIndexTest
+{
+
+    private Scrollback scrollback;
+    private FilterIndex filter;
+
+    @After
+    public void tearDown()
+    {
+        filter.close();
+        scrollback.close();
+    }
+
+    private void append(int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            byte[] bytes = ("line " + i + " value=" + (i * 7919 % 10007) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            scrollback.append(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Gets the complete lines held that contain the text, by reading each one
+     */
+    private List<Long> scan(String text)
+    {
+        List<Long> lines = new ArrayList<>();
+        byte[] bytes = new byte[256];
+        for (long line = scrollback.getFirstLine(); line < scrollback.getLineCount() - 1; line++)
+        {
+            long start = scrollback.getLineStart(line);
+            int length = scrollback.read(start, bytes, 0, (int) (scrollback.getLineStart(line + 1) - start));
+            if (new String(bytes, 0, length, StandardCharsets.ISO_8859_1).contains(text))
+            {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Gets the matches the filter holds, once it has settled
+     */
+    private List<Long> matches() throws InterruptedException
+    {
+        int settled = 0;
+        int last = -1;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (settled < 5 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(20);
+            int count = filter.getMatchCount();
+            settled = filter.getProgress() >= 1 && count == last ? settled + 1 : 0;
+            last = count;
+        }
+        List<Long> lines = new ArrayList<>();
+        for (int i = filter.findMatch(scrollback.getFirstLine()); i < filter.getMatchCount(); i++)
+        {
+            lines.add(filter.getMatch(i));
+        }
+        return lines;
+    }
+
+    @Test
+    public void matchesSubstrings() throws InterruptedException
+    {
+        scrollback = new Scrollback(4, 1L << 30);
+        append(0, 50000);
+        filter = new FilterIndex(scrollback);
+        assertFalse(filter.isActive());
+        filter.setQuery("value=12", false);
+        assertTrue(filter.isActive());
+        assertEquals(scan("value=12"), matches());
+    }
+
+    @Test
+    public void narrowsAndWidensAQuery() throws InterruptedException
+    {
+        scrollback = new Scrollback(4, 1L << 30);
+        append(0, 50000);
+        filter = new FilterIndex(scrollback);
+        filter.setQuery("value=1", false);
+        assertEquals(scan("value=1"), matches());
+        // typing more refines the last query's matches
+        filter.setQuery("value=12", false);
+        assertEquals(scan("value=12"), matches());
+        filter.setQuery("value=123", false);
+        assertEquals(scan("value=123"), matches());
+        // deleting goes back to a query already indexed, which catches up with new lines
+        append(50000, 60000);
+        filter.setQuery("value=1", false);
+        assertEquals(scan("value=1"), matches());
+    }
+
+    /**
+     * A source that reads slowly, so the filter is part way through a batch
+     * when the query changes
+     */
+    private static final class SlowSource implements TextSource
+    {
+
+        private final TextSource source;
+        private int reads = 0;
+
+        SlowSource(TextSource source)
+        {
+            this.source = source;
+        }
+
+        @Override
+        public long getStart()
+        {
+            return source.getStart();
+        }
+
+        @Override
+        public long getLength()
+        {
+            return source.getLength();
+        }
+
+        @Override
+        public int read(long position, byte[] data, int offset, int length)
+        {
+            if (++reads % 50 == 0)
+            {
+                try
+                {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return source.read(position, data, offset, length);
+        }
+
+        @Override
+        public long getFirstLine()
+        {
+            return source.getFirstLine();
+        }
+
+        @Override
+        public long getLineCount()
+        {
+            return source.getLineCount();
+        }
+
+        @Override
+        public long getLineStart(long line)
+        {
+            return source.getLineStart(line);
+        }
+    }
+
+    @Test
+    public void narrowsAQueryPartWayThroughAScan() throws InterruptedException
+    {
+        scrollback = new Scrollback(4, 1L << 30);
+        append(0, 20000);
+        filter = new FilterIndex(new SlowSource(scrollback));
+        filter.setQuery("value=1", false);
+        Thread.sleep(30);
+        assertTrue(filter.getProgress() < 1);
+        filter.setQuery("value=12", false);
+        // narrowed again while the last one is still refining
+        Thread.sleep(5);
+        filter.setQuery("value=123", false);
+        assertEquals(scan("value=123"), matches());
+        filter.setQuery("value=12", false);
+        assertEquals(scan("value=12"), matches());
+    }
+
+    @Test
+    public void matchesRegularExpressions() throws InterruptedException
+    {
+        scrollback = new Scrollback(4, 1L << 30);
+        append(0, 20000);
+        filter = new FilterIndex(scrollback);
+        filter.setQuery("line \\d*5 value=\\d{2}$", true);
+        List<Long> expected = new ArrayList<>();
+        for (long line = 0; line < 20000; line++)
+        {
+            if (line % 10 == 5 && line * 7919 % 10007 >= 10 && line * 7919 % 10007 < 100)
+            {
+                expected.add(line);
+            }
+        }
+        assertEquals(expected, matches());
+    }
+
+    @Test
+    public void keepsUpWithNewLines() throws InterruptedException
+    {
+        scrollback = new Scrollback(4, 1L << 30);
+        filter = new FilterIndex(scrollback);
+        filter.setQuery("value=7", false);
+        for (int i = 0; i < 10; i++)
+        {
+            append(i * 5000, (i + 1) * 5000);
+            Thread.sleep(10);
+        }
+        assertEquals(scan("value=7"), matches());
+    }
+
+    @Test
+    public void dropsMatchesWithTheSourcesLines() throws InterruptedException
+    {
+        scrollback = new Scrollback(2, 256 << 10);
+        filter = new FilterIndex(scrollback);
+        filter.setQuery("value=7", false);
+        for (int i = 0; i < 40; i++)
+        {
+            append(i * 10000, (i + 1) * 10000);
+            Thread.sleep(10);
+        }
+        assertTrue(scrollback.getFirstLine() > 0);
+        List<Long> held = matches();
+        assertEquals(scan("value=7"), held);
+        // the matches found before the source dropped their lines still count
+        assertTrue(filter.getMatchCount() > held.size());
+    }
+}
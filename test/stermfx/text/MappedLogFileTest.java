@@ -0,0 +1,120 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.text;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the line index of a mapped log file against a scan of its bytes
+ *
+ * @author Brian Powell
+ */
+public class MappedLogFileTest
+{
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = Files.createTempFile("MappedLogFileTest", ".log");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.delete(file);
+    }
+
+    private static void assertIndexed(byte[] bytes, MappedLogFile log)
+    {
+        assertEquals(bytes.length, log.getLength());
+        long line = 0;
+        assertEquals(0, log.getLineStart(0));
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (bytes[i] == '\n')
+            {
+                line++;
+                assertEquals(i + 1, log.getLineStart(line));
+            }
+        }
+        // the text after the last newline is a line, even if it is empty
+        assertEquals(line + 1, log.getLineCount());
+        assertEquals(bytes.length, log.getLineStart(line + 1));
+    }
+
+    @Test
+    public void indexesLinesAcrossSegments() throws IOException
+    {
+        // lines of random length so the 16 MB segments split them anywhere
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder();
+        int number = 0;
+        while (text.length() < 40 << 20)
+        {
+            text.append("line ").append(number++).append(' ');
+            for (int i = random.nextInt(200); i > 0; i--)
+            {
+                text.append('x');
+            }
+            text.append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+        }
+        text.append("no newline at the end");
+        byte[] bytes = text.toString().getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(file, bytes);
+        final AtomicLong progress = new AtomicLong();
+        MappedLogFile log = MappedLogFile.open(file, new MappedLogFile.Listener()
+        {
+
+            @Override
+            public void progress(long done, long total)
+            {
+                progress.set(Math.max(progress.get(), done * 100 / total));
+            }
+        });
+        assertEquals(number + 1, log.getLineCount());
+        assertIndexed(bytes, log);
+        assertEquals(100, progress.get());
+        byte[] read = new byte[21];
+        assertEquals(21, log.read(log.getLineStart(number), read, 0, 21));
+        assertArrayEquals("no newline at the end".getBytes(StandardCharsets.ISO_8859_1), read);
+    }
+
+    @Test
+    public void indexesSmallFiles() throws IOException
+    {
+        for (String text : new String[] {"", "\n", "one", "one\ntwo\n", "\n\n\n"})
+        {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            Files.write(file, bytes);
+            assertIndexed(bytes, MappedLogFile.open(file, null));
+        }
+    }
+}
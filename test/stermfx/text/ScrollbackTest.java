@@ -0,0 +1,159 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.text;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the compressed scrollback
+ *
+ * @author Brian Powell
+ */
+public class ScrollbackTest
+{
+
+    private Scrollback scrollback;
+
+    @After
+    public void tearDown()
+    {
+        scrollback.close();
+    }
+
+    private static byte[] line(int number)
+    {
+        return ("2012-06-01 12:00:00 INFO line " + number + " of the log\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Appends numbered lines, returning everything appended
+     */
+    private static byte[] fill(Scrollback scrollback, int lines)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+        {
+            byte[] bytes = line(i);
+            scrollback.append(bytes, 0, bytes.length);
+            text.append(new String(bytes, StandardCharsets.ISO_8859_1));
+        }
+        return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void waitForCompression(long limit) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scrollback.getStoredBytes() > limit && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void readsBackThroughCompressedBlocks() throws InterruptedException
+    {
+        scrollback = new Scrollback(1, 1L << 30);
+        byte[] text = fill(scrollback, 50000);
+        assertEquals(text.length, scrollback.getLength());
+        // the line index takes 8 bytes a line on top of the blocks
+        waitForCompression(text.length / 2);
+        assertTrue(scrollback.getStoredBytes() <= text.length / 2);
+        byte[] read = new byte[text.length];
+        assertEquals(text.length, scrollback.read(0, read, 0, read.length));
+        assertArrayEquals(text, read);
+        // and again out of order, across block boundaries
+        for (long position = text.length - 1000; position > 0; position -= 70001)
+        {
+            byte[] part = new byte[1000];
+            assertEquals(1000, scrollback.read(position, part, 0, 1000));
+            for (int i = 0; i < 1000; i++)
+            {
+                assertEquals(text[(int) position + i], part[i]);
+            }
+        }
+    }
+
+    @Test
+    public void indexesLines()
+    {
+        scrollback = new Scrollback(2, 1L << 30);
+        fill(scrollback, 1000);
+        byte[] partial = "no end".getBytes(StandardCharsets.ISO_8859_1);
+        scrollback.append(partial, 0, partial.length);
+        // the unterminated last line counts
+        assertEquals(1001, scrollback.getLineCount());
+        assertEquals(0, scrollback.getFirstLine());
+        long start = scrollback.getLineStart(500);
+        byte[] read = new byte[line(500).length];
+        scrollback.read(start, read, 0, read.length);
+        assertArrayEquals(line(500), read);
+        assertEquals(scrollback.getLength() - partial.length, scrollback.getLineStart(1000));
+        assertEquals(scrollback.getLength(), scrollback.getLineStart(1001));
+    }
+
+    @Test
+    public void dropsTheOldestTextOverTheLimit()
+    {
+        scrollback = new Scrollback(2, 256 << 10);
+        fill(scrollback, 200000);
+        assertTrue(scrollback.getStart() > 0);
+        assertTrue(scrollback.getFirstLine() > 0);
+        assertTrue(scrollback.getStoredBytes() <= 512 << 10);
+        byte[] read = new byte[1];
+        assertEquals(-1, scrollback.read(scrollback.getStart() - 1, read, 0, 1));
+        // the first line held starts in the oldest block held
+        long first = scrollback.getFirstLine();
+        assertTrue(scrollback.getLineStart(first) >= scrollback.getStart());
+        assertTrue(scrollback.getLineStart(first) - scrollback.getStart() < line(199999).length);
+        byte[] last = new byte[line(199999).length];
+        scrollback.read(scrollback.getLineStart(scrollback.getLineCount() - 2), last, 0, last.length);
+        assertArrayEquals(line(199999), last);
+    }
+
+    @Test
+    public void countsTheLineIndexAgainstTheLimit()
+    {
+        scrollback = new Scrollback(2, 1 << 20);
+        // short lines compress well, so the index of where they start is most of the memory
+        byte[] line = "short line\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < 2000000; i++)
+        {
+            scrollback.append(line, 0, line.length);
+        }
+        assertTrue(scrollback.getFirstLine() > 0);
+        assertTrue(scrollback.getStoredBytes() <= 1 << 20);
+    }
+
+    @Test
+    public void givesADroppedLineTheStartOfTheOldestLineHeld()
+    {
+        scrollback = new Scrollback(2, 256 << 10);
+        fill(scrollback, 100000);
+        long first = scrollback.getFirstLine();
+        assertTrue(first > 0);
+        // a worker may ask for a line the source dropped since it looked
+        assertEquals(scrollback.getLineStart(first), scrollback.getLineStart(first - 1));
+        assertEquals(scrollback.getLineStart(first), scrollback.getLineStart(0));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  sTermFX - A serial terminal application with some nifty features.
+ *  Copyright (C) 2012  Brian Powell
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package stermfx.text;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javafx.scene.paint.Color;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests styling lines with colour rules
+ *
+ * @author Brian Powell
+ */
+public class StyleIndexTest
+{
+
+    private Scrollback scrollback;
+    private StyleIndex styles;
+
+    @After
+    public void tearDown()
+    {
+        if (styles != null)
+        {
+            styles.close();
+            scrollback.close();
+        }
+    }
+
+    private void append(String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        scrollback.append(bytes, 0, bytes.length);
+    }
+
+    private void waitForStyling() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (styles.getStyledLineCount() < scrollback.getLineCount() - 1 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+    }
+
+    private int[] runs(long line)
+    {
+        int[] out = new int[16];
+        return Arrays.copyOf(out, styles.getRuns(line, out));
+    }
+
+    private static int run(int column, int style)
+    {
+        return (column << 8) | style;
+    }
+
+    @Test
+    public void stylesWholeLinesAndMatches() throws InterruptedException
+    {
+        scrollback = new Scrollback(2, 1L << 30);
+        styles = new StyleIndex(scrollback, Arrays.asList(
+                new StyleIndex.Rule("ERROR", Color.RED, true),
+                new StyleIndex.Rule("WARN|ERROR", Color.ORANGE, true),
+                new StyleIndex.Rule("\\d+ms", Color.LIME, false)));
+        append("plain line\nERROR disk full\r\nWARN slow\nread took 12ms, write 3ms\nWARN 40ms\npartial");
+        waitForStyling();
+        assertEquals(5, styles.getStyledLineCount());
+        assertArrayEquals(new int[0], runs(0));
+        // the first line rule that matches wins
+        assertArrayEquals(new int[] {run(0, 1)}, runs(1));
+        assertArrayEquals(new int[] {run(0, 2)}, runs(2));
+        assertArrayEquals(new int[] {run(10, 3), run(14, 0), run(22, 3)}, runs(3));
+        // matches are drawn over the line's colour
+        assertArrayEquals(new int[] {run(0, 2), run(5, 3)}, runs(4));
+        // the last line is not complete yet
+        assertArrayEquals(new int[0], runs(5));
+        assertNull(styles.getColor(0));
+        assertSame(Color.RED, styles.getColor(1));
+        assertSame(Color.LIME, styles.getColor(3));
+        assertEquals(22, StyleIndex.runColumn(run(22, 3)));
+        assertEquals(3, StyleIndex.runStyle(run(22, 3)));
+    }
+
+    @Test
+    public void parsesRuleSettings()
+    {
+        StyleIndex.Rule rule = StyleIndex.Rule.parse("match, red ,a,b");
+        assertEquals("a,b", rule.pattern.pattern());
+        assertFalse(rule.wholeLine);
+        assertTrue(StyleIndex.Rule.parse("line,#ff0000,x").wholeLine);
+        for (String setting : new String[] {"word,red,x", "line,red"})
+        {
+            try
+            {
+                StyleIndex.Rule.parse(setting);
+                fail(setting);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void keepsStylingAsTheSourceDropsLines() throws InterruptedException
+    {
+        scrollback = new Scrollback(2, 256 << 10);
+        styles = new StyleIndex(scrollback, Arrays.asList(new StyleIndex.Rule("7$", Color.RED, true)));
+        for (int i = 0; i < 200000; i++)
+        {
+            append("line " + i + "\n");
+            if (i % 20000 == 0)
+            {
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(scrollback.getFirstLine() > 0);
+        waitForStyling();
+        assertEquals(scrollback.getLineCount() - 1, styles.getStyledLineCount());
+        assertArrayEquals(new int[0], runs(scrollback.getFirstLine() - 1));
+        // line numbers match the text, so every line ending in 7 is red
+        for (long line = scrollback.getFirstLine(); line < scrollback.getLineCount() - 1; line++)
+        {
+            assertEquals("line " + line, line % 10 == 7 ? 1 : 0, runs(line).length);
+        }
+    }
+}